@@ -0,0 +1,202 @@
+package com.datastax.kellett;
+
+/*
+WriteStrategyBenchmark compares the labs' ways of writing rows, under JMH:
+- simpleStatement: a new SimpleStatement per row, as in Lab 2
+- preparedStatement: one PreparedStatement, bound per row, as in Lab 3
+- partitionBatch: bound statements grouped into per-partition UNLOGGED batches, as in Labs 4 to 8
+- asyncPipeline: bound statements sent with executeAsync, a bounded number in flight, as in Lab 9
+
+Each operation writes ROWS_PER_OPERATION rows, so scores are per row.  The table is partitioned by tier, with 10
+tiers, so that the batch strategy has something to group.
+
+Parameters:
+- target: "simulated" (the default) runs against an in-process SimulatedSession, so the benchmark can run anywhere,
+  including CI; "loopback" runs the real driver against a SimulatedCqlServer on 127.0.0.1, so that the driver's own
+  costs are measured too; anything else is taken as the contact point of a real cluster.
+- simulatedLatencyMicros: the latency of every simulated request, for both simulated targets.
+- asyncMaxInFlight: the in-flight limit of the async pipeline.
+
+Throughput and sample-time (per-operation percentile) modes are both measured.  Run with "-prof gc" for the
+allocation rate.  Every request is also recorded in a LatencyRecorder, whose per-request percentiles are printed at
+the end of each trial and written to an HDR log named after the benchmark and mode.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.dse.DseCluster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class WriteStrategyBenchmark {
+
+    static final int ROWS_PER_OPERATION = 1000;
+
+    private static final int TIERS = 10;
+    private static final int DISTINCT_NAMES = 1000;
+
+    // A simulated session keeps every row, so account numbers are reused (making later writes upserts) to keep its
+    // memory bounded however many operations JMH runs
+    private static final int DISTINCT_ACCOUNTS = 100000;
+
+    private static final String INSERT =
+            "INSERT INTO bench.customers (tier, acct_no, first_name, last_name) VALUES (?, ?, ?, ?)";
+
+    @Param({"simulated"})
+    public String target;
+
+    @Param({"250"})
+    public long simulatedLatencyMicros;
+
+    @Param({"64"})
+    public int asyncMaxInFlight;
+
+    private Cluster cluster;
+    private Session session;
+    private SimulatedSession backend;
+    private SimulatedCqlServer server;
+    private PreparedStatement cqlInsert;
+    private LatencyRecorder latencies;
+
+    // Generated up front so that building strings is not part of what is measured
+    private final String[] firstNames = new String[DISTINCT_NAMES];
+    private final String[] lastNames = new String[DISTINCT_NAMES];
+
+    private int nextAcctNo;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+
+        if (target.equals("simulated")) {
+            session = new SimulatedSession(simulatedLatencyMicros);
+        }
+        else if (target.equals("loopback")) {
+            backend = new SimulatedSession(simulatedLatencyMicros);
+            server = new SimulatedCqlServer(backend, SimulatedCqlServer.DEFAULT_PORT).start();
+            cluster = DseCluster.builder().addContactPoint("127.0.0.1").build();
+            session = cluster.connect();
+        }
+        else {
+            cluster = DseCluster.builder().addContactPoint(target).build();
+            session = cluster.connect();
+        }
+
+        session.execute("CREATE KEYSPACE IF NOT EXISTS bench "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE IF NOT EXISTS "
+                + "bench.customers ( tier int, acct_no int, first_name text, last_name text, PRIMARY KEY (tier, acct_no));");
+
+        cqlInsert = session.prepare(INSERT);
+        latencies = new LatencyRecorder();
+
+        for (int i = 0; i < DISTINCT_NAMES; i++) {
+            firstNames[i] = "First" + i;
+            lastNames[i] = "Last" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close(BenchmarkParams pParams) throws IOException {
+
+        String benchmark = pParams.getBenchmark();
+        String name = benchmark.substring(benchmark.lastIndexOf('.') + 1) + "-" + pParams.getMode().shortLabel();
+        latencies.printReport(name + "-latency.hlog");
+
+        session.close();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (server != null) {
+            server.close();
+            backend.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_OPERATION)
+    public void simpleStatement() {
+
+        for (int i = 0; i < ROWS_PER_OPERATION; i++) {
+            int acctNo = nextAcctNo++ % DISTINCT_ACCOUNTS;
+            Statement cqlInsertSimple = new SimpleStatement(INSERT,
+                    acctNo % TIERS, acctNo, firstNames[acctNo % DISTINCT_NAMES], lastNames[acctNo % DISTINCT_NAMES]);
+            cqlInsertSimple.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+            latencies.execute(session, cqlInsertSimple);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_OPERATION)
+    public void preparedStatement() {
+
+        for (int i = 0; i < ROWS_PER_OPERATION; i++) {
+            latencies.execute(session, bindNext());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_OPERATION)
+    public long partitionBatch() {
+
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(session).setLatencyRecorder(latencies);
+        for (int i = 0; i < ROWS_PER_OPERATION; i++) {
+            cqlInsertBatch.add(bindNext());
+        }
+        cqlInsertBatch.flush();
+
+        return cqlInsertBatch.getBatchesSent();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_OPERATION)
+    public long asyncPipeline() throws InterruptedException, ExecutionException {
+
+        AsyncWritePipeline pipeline = new AsyncWritePipeline(session, asyncMaxInFlight, 0,
+                (statement, error) -> { })
+                .setLatencyRecorder(latencies);
+
+        for (int i = 0; i < ROWS_PER_OPERATION; i++) {
+            pipeline.submit(bindNext());
+        }
+        pipeline.drain().get();
+
+        return pipeline.getSucceeded();
+    }
+
+    private BoundStatement bindNext() {
+
+        int acctNo = nextAcctNo++ % DISTINCT_ACCOUNTS;
+        BoundStatement cqlInsertBound = cqlInsert.bind(
+                acctNo % TIERS, acctNo, firstNames[acctNo % DISTINCT_NAMES], lastNames[acctNo % DISTINCT_NAMES]);
+        cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+        return cqlInsertBound;
+    }
+}
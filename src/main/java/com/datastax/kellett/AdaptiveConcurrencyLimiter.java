@@ -0,0 +1,241 @@
+package com.datastax.kellett;
+
+/*
+AdaptiveConcurrencyLimiter decides how many requests may be in flight, based on the latency the cluster is giving us.
+
+A fixed in-flight limit is either too timid for a healthy cluster or too aggressive for a cluster that is busy
+compacting.  This limiter uses the TCP Vegas idea: compare each response time with the best response time seen
+recently (minRtt).  If a response took no longer than minRtt, nothing is queueing and the limit can grow; if it took
+much longer, roughly limit * (1 - minRtt / rtt) requests are sitting in a queue somewhere and the limit shrinks.
+Timeouts and OverloadedException are treated as a clear sign of overload and cut the limit by 10% at once.  As in
+TCP, the limit is cut at most once per round trip: drops of requests that were already in flight at the last cut
+are the same congestion, and are not cut for again.
+
+minRtt is re-measured every PROBE_INTERVAL samples, as the lowest response time seen over those samples, so that a
+permanent change in latency (a new data center, a bigger table) is eventually accepted as the new baseline.
+
+executeAsync() wraps Session.executeAsync with acquire/sample/release.  Callers with their own retry logic, such as
+AsyncWritePipeline, can call acquire(), onSample() and release() directly.
+*/
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double RTT_SMOOTHING = 0.1;
+    private static final long PROBE_INTERVAL = 5000;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    // All mutable state is guarded by this
+    private double limit;
+    private int inFlight;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long probeMinRttNanos = Long.MAX_VALUE;
+    private boolean decreased;
+    private long lastDecreaseNanos;
+    private double smoothedRttNanos;
+    // Response times sampled, not counting drops
+    private long samples;
+    private long rejected;
+    private long dropped;
+
+    public AdaptiveConcurrencyLimiter(int pInitialLimit, int pMinLimit, int pMaxLimit) {
+        minLimit = pMinLimit;
+        maxLimit = pMaxLimit;
+        limit = Math.max(pMinLimit, Math.min(pMaxLimit, pInitialLimit));
+    }
+
+    /*
+    Take a slot, waiting while the current limit is reached.  Every call that has to wait counts as a rejection.
+     */
+    public synchronized void acquire() throws InterruptedException {
+
+        if (inFlight >= (int) limit) {
+            rejected++;
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        }
+        inFlight++;
+    }
+
+    /*
+    Take a slot only if one is free right now.
+     */
+    public synchronized boolean tryAcquire() {
+
+        if (inFlight >= (int) limit) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /*
+    Feed one response time into the limit.  pDropped is true when the request timed out or the server
+    reported it was overloaded; other failures carry no latency information and should not be sampled.
+     */
+    public synchronized void onSample(long pRttNanos, boolean pDropped) {
+
+        if (pDropped) {
+            dropped++;
+            // Only a request sent after the last cut shows that the cut was not enough
+            long nowNanos = System.nanoTime();
+            if (!decreased || nowNanos - pRttNanos - lastDecreaseNanos >= 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                decreased = true;
+                lastDecreaseNanos = nowNanos;
+            }
+            return;
+        }
+
+        smoothedRttNanos = (smoothedRttNanos == 0)
+                ? pRttNanos
+                : smoothedRttNanos + RTT_SMOOTHING * (pRttNanos - smoothedRttNanos);
+
+        samples++;
+        probeMinRttNanos = Math.min(probeMinRttNanos, pRttNanos);
+        if (samples % PROBE_INTERVAL == 0) {
+            minRttNanos = probeMinRttNanos;
+            probeMinRttNanos = Long.MAX_VALUE;
+        }
+        else if (pRttNanos < minRttNanos) {
+            minRttNanos = pRttNanos;
+        }
+
+        int currentLimit = (int) limit;
+        double queueSize = currentLimit * (1.0 - (double) minRttNanos / Math.max(1, pRttNanos));
+        int step = log10(currentLimit);
+
+        // Only grow if the limit is really being used; an idle caller tells us nothing about capacity
+        if (queueSize <= 3 * step && inFlight * 2 >= currentLimit) {
+            limit = Math.min(maxLimit, limit + step);
+            notifyAll();
+        }
+        else if (queueSize >= 6 * step) {
+            limit = Math.max(minLimit, limit - step);
+        }
+    }
+
+    /*
+    Session.executeAsync under the limit.  Blocks only while the limit is reached.
+     */
+    public ResultSetFuture executeAsync(Session pSession, Statement pStatement) throws InterruptedException {
+
+        acquire();
+        final long startTime = System.nanoTime();
+
+        ResultSetFuture future;
+        try {
+            future = pSession.executeAsync(pStatement);
+        }
+        catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(ResultSet pResult) {
+                onSample(System.nanoTime() - startTime, false);
+                release();
+            }
+
+            @Override
+            public void onFailure(Throwable pError) {
+                if (isDrop(pError)) {
+                    onSample(System.nanoTime() - startTime, true);
+                }
+                release();
+            }
+        }, MoreExecutors.directExecutor());
+
+        return future;
+    }
+
+    /*
+    Errors that mean "you are sending too much", as opposed to errors in the request itself.
+     */
+    public static boolean isDrop(Throwable pError) {
+        return pError instanceof WriteTimeoutException
+                || pError instanceof ReadTimeoutException
+                || pError instanceof OperationTimedOutException
+                || pError instanceof OverloadedException
+                || pError instanceof BusyPoolException;
+    }
+
+    /*
+    Publish the limiter's state as gauges.  The driver's own registry (Cluster.getMetrics().getRegistry())
+    is a good choice, since it is already reported over JMX.
+     */
+    public void registerMetrics(MetricRegistry pRegistry, String pName) {
+        pRegistry.register(MetricRegistry.name(pName, "limit"), (Gauge<Integer>) this::getLimit);
+        pRegistry.register(MetricRegistry.name(pName, "in-flight"), (Gauge<Integer>) this::getInFlight);
+        pRegistry.register(MetricRegistry.name(pName, "min-rtt-micros"), (Gauge<Long>) this::getMinRttMicros);
+        pRegistry.register(MetricRegistry.name(pName, "smoothed-rtt-micros"), (Gauge<Long>) this::getSmoothedRttMicros);
+        pRegistry.register(MetricRegistry.name(pName, "rejected"), (Gauge<Long>) this::getRejected);
+        pRegistry.register(MetricRegistry.name(pName, "dropped"), (Gauge<Long>) this::getDropped);
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getMinRttMicros() {
+        return (minRttNanos == Long.MAX_VALUE) ? 0 : minRttNanos / 1000;
+    }
+
+    public synchronized long getSmoothedRttMicros() {
+        return (long) smoothedRttNanos / 1000;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "limit " + getLimit()
+                + ", in flight " + getInFlight()
+                + ", min RTT " + getMinRttMicros() + " microseconds"
+                + ", smoothed RTT " + getSmoothedRttMicros() + " microseconds"
+                + ", rejected " + getRejected()
+                + ", dropped " + getDropped();
+    }
+
+    // Integer log10, never less than 1, so that small limits can still move
+    private static int log10(int pValue) {
+        return Math.max(1, (int) Math.log10(pValue));
+    }
+}
@@ -0,0 +1,173 @@
+package com.datastax.kellett;
+
+/*
+AdaptiveFetchSize decides how many rows to ask for in the next page of a paged query.
+
+A fixed fetch size suits one row size only.  Small pages of small rows spend a bulk scan waiting on round trips;
+large pages of wide rows fill the client heap, and make the coordinator hold a whole page in memory.  This
+controller aims each page at a byte budget and a latency budget instead:
+- from the bytes and rows of recent pages it keeps a smoothed row size, and the budget divided by the row size is
+  the most rows a page should hold;
+- if the last page took longer than the latency budget the size shrinks in proportion, and if it came back well
+  within it the size may grow in proportion, since a page's latency grows roughly with its rows.
+The smaller of the two wins.  A step never more than doubles or halves the size, so one odd page cannot swing it
+far, and the result always stays within the floor and ceiling given.
+
+Pages are reported with onPage() (PageCursor does it for every page it reads), and the next page is asked for with
+getFetchSize().  Decisions are published as gauges by registerMetrics().
+*/
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Row;
+
+import java.nio.ByteBuffer;
+
+public class AdaptiveFetchSize {
+
+    public static final long DEFAULT_TARGET_PAGE_BYTES = 1024 * 1024;
+    public static final long DEFAULT_TARGET_PAGE_MILLIS = 50;
+
+    private static final double ROW_SIZE_SMOOTHING = 0.3;
+    private static final double MAX_STEP = 2.0;
+
+    // The [bytes] length that precedes each value in a ROWS response
+    private static final int VALUE_OVERHEAD_BYTES = 4;
+
+    private final int minFetchSize;
+    private final int maxFetchSize;
+    private final long targetPageBytes;
+    private final long targetPageNanos;
+
+    // All mutable state is guarded by this
+    private int fetchSize;
+    private double rowBytes;
+    private long lastPageBytes;
+    private long lastPageNanos;
+    private long pages;
+    private long increases;
+    private long decreases;
+
+    public AdaptiveFetchSize(int pInitialFetchSize, int pMinFetchSize, int pMaxFetchSize) {
+        this(pInitialFetchSize, pMinFetchSize, pMaxFetchSize, DEFAULT_TARGET_PAGE_BYTES, DEFAULT_TARGET_PAGE_MILLIS);
+    }
+
+    public AdaptiveFetchSize(int pInitialFetchSize, int pMinFetchSize, int pMaxFetchSize,
+                             long pTargetPageBytes, long pTargetPageMillis) {
+        minFetchSize = pMinFetchSize;
+        maxFetchSize = pMaxFetchSize;
+        targetPageBytes = pTargetPageBytes;
+        targetPageNanos = pTargetPageMillis * 1000000;
+        fetchSize = clamp(pInitialFetchSize);
+    }
+
+    /*
+    The fetch size to use for the next page.
+     */
+    public synchronized int getFetchSize() {
+        return fetchSize;
+    }
+
+    /*
+    Report a page of pRows rows, pBytes bytes in all, that took pLatencyNanos to arrive.
+     */
+    public synchronized void onPage(int pRows, long pBytes, long pLatencyNanos) {
+
+        pages++;
+        lastPageBytes = pBytes;
+        lastPageNanos = pLatencyNanos;
+
+        // An empty page says nothing about row size, but its latency still counts
+        if (pRows > 0) {
+            double pageRowBytes = (double) pBytes / pRows;
+            rowBytes = (rowBytes == 0) ? pageRowBytes : rowBytes + ROW_SIZE_SMOOTHING * (pageRowBytes - rowBytes);
+        }
+
+        double desired = Double.MAX_VALUE;
+        if (rowBytes > 0) {
+            desired = targetPageBytes / rowBytes;
+        }
+        if (pLatencyNanos > 0 && pRows > 0) {
+            // How many rows the last page's rate would deliver within the latency budget
+            desired = Math.min(desired, (double) pRows * targetPageNanos / pLatencyNanos);
+        }
+        if (desired == Double.MAX_VALUE) {
+            return;
+        }
+
+        int next = clamp((int) Math.max(fetchSize / MAX_STEP, Math.min(fetchSize * MAX_STEP, desired)));
+        if (next > fetchSize) {
+            increases++;
+        }
+        else if (next < fetchSize) {
+            decreases++;
+        }
+        fetchSize = next;
+    }
+
+    /*
+    The size of pRow as it came over the wire: its values, each with its length.
+     */
+    public static long sizeOf(Row pRow) {
+
+        long bytes = 0;
+        int columns = pRow.getColumnDefinitions().size();
+        for (int i = 0; i < columns; i++) {
+            ByteBuffer value = pRow.getBytesUnsafe(i);
+            bytes += VALUE_OVERHEAD_BYTES + ((value == null) ? 0 : value.remaining());
+        }
+        return bytes;
+    }
+
+    /*
+    Publish the controller's state as gauges, for example in the driver's registry
+    (Cluster.getMetrics().getRegistry()), which is already reported over JMX.
+     */
+    public void registerMetrics(MetricRegistry pRegistry, String pName) {
+        pRegistry.register(MetricRegistry.name(pName, "fetch-size"), (Gauge<Integer>) this::getFetchSize);
+        pRegistry.register(MetricRegistry.name(pName, "row-bytes"), (Gauge<Long>) this::getRowBytes);
+        pRegistry.register(MetricRegistry.name(pName, "last-page-bytes"), (Gauge<Long>) this::getLastPageBytes);
+        pRegistry.register(MetricRegistry.name(pName, "last-page-micros"), (Gauge<Long>) this::getLastPageMicros);
+        pRegistry.register(MetricRegistry.name(pName, "pages"), (Gauge<Long>) this::getPages);
+        pRegistry.register(MetricRegistry.name(pName, "increases"), (Gauge<Long>) this::getIncreases);
+        pRegistry.register(MetricRegistry.name(pName, "decreases"), (Gauge<Long>) this::getDecreases);
+    }
+
+    public synchronized long getRowBytes() {
+        return (long) rowBytes;
+    }
+
+    public synchronized long getLastPageBytes() {
+        return lastPageBytes;
+    }
+
+    public synchronized long getLastPageMicros() {
+        return lastPageNanos / 1000;
+    }
+
+    public synchronized long getPages() {
+        return pages;
+    }
+
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    @Override
+    public String toString() {
+        return "fetch size " + getFetchSize()
+                + ", row size " + getRowBytes() + " bytes"
+                + ", last page " + getLastPageBytes() + " bytes in " + getLastPageMicros() + " microseconds"
+                + ", " + getPages() + " pages"
+                + ", " + getIncreases() + " increases"
+                + ", " + getDecreases() + " decreases";
+    }
+
+    private int clamp(int pFetchSize) {
+        return Math.max(minFetchSize, Math.min(maxFetchSize, pFetchSize));
+    }
+}
@@ -0,0 +1,264 @@
+package com.datastax.kellett;
+
+/*
+AsyncWritePipeline keeps a fixed number of writes in flight with executeAsync.
+
+Waiting on each future before sending the next write (or polling isDone()) throws away the point of going async:
+only one request is ever on the wire.  Here submit() only blocks when the in-flight limit has been reached.
+A permit is taken before each executeAsync and given back from the future's completion callback, so the caller
+never touches the futures at all.
+
+A write that fails because the cluster is overloaded or timed out is retried up to maxRetries times, after a
+backoff that doubles with each attempt (with random jitter, so that retries from many writes do not arrive
+together).  Retries are sent from a timer thread rather than the driver I/O thread, and the write keeps its permit
+while it waits, so a struggling cluster slows the caller down.  Any other error, such as an invalid query or too
+few replicas, would only fail again, so it goes straight to the DeadLetterSink, as does a write that is out of
+retries or that executeAsync refuses outright.  Retrying is only safe for idempotent writes, such as the labs'
+plain INSERTs.
+
+drain() returns one future that completes when everything submitted so far has finished.
+
+Instead of a fixed limit, the pipeline can be given an AdaptiveConcurrencyLimiter, which moves the limit up and
+down with the latency the cluster reports.  A WriteThrottle can also be attached to cap the write rate, and a
+LatencyRecorder to record the latency of every attempt.
+*/
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncWritePipeline {
+
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 100;
+    public static final long MAX_RETRY_BACKOFF_MILLIS = 5000;
+
+    // Shared by every pipeline; its thread is a daemon, so it never keeps the JVM alive
+    private static final ScheduledThreadPoolExecutor RETRY_TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "async-write-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+    Receives writes that failed with an error not worth retrying, or still failed after all retries.  Called from a
+    driver I/O thread, so it must not block.
+     */
+    public interface DeadLetterSink {
+        void accept(Statement pStatement, Throwable pError);
+    }
+
+    private final Session session;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final DeadLetterSink deadLetterSink;
+
+    // Exactly one of these is set, depending on the constructor used
+    private final Semaphore permits;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final SettableFuture<Void> drained = SettableFuture.create();
+    private volatile boolean draining;
+
+    private WriteThrottle throttle;
+    private LatencyRecorder latencyRecorder;
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+
+    public AsyncWritePipeline(Session pSession, int pMaxInFlight, int pMaxRetries, DeadLetterSink pDeadLetterSink) {
+        session = pSession;
+        maxInFlight = pMaxInFlight;
+        maxRetries = pMaxRetries;
+        deadLetterSink = pDeadLetterSink;
+        permits = new Semaphore(pMaxInFlight);
+        limiter = null;
+    }
+
+    public AsyncWritePipeline(Session pSession, AdaptiveConcurrencyLimiter pLimiter, int pMaxRetries, DeadLetterSink pDeadLetterSink) {
+        session = pSession;
+        maxInFlight = 0;
+        maxRetries = pMaxRetries;
+        deadLetterSink = pDeadLetterSink;
+        permits = null;
+        limiter = pLimiter;
+    }
+
+    /*
+    Apply a rate limit to every write submitted from now on.  Retries are not throttled again.
+     */
+    public AsyncWritePipeline setThrottle(WriteThrottle pThrottle) {
+        throttle = pThrottle;
+        return this;
+    }
+
+    public AsyncWritePipeline setLatencyRecorder(LatencyRecorder pLatencyRecorder) {
+        latencyRecorder = pLatencyRecorder;
+        return this;
+    }
+
+    /*
+    The backoff before the first retry of a write; each later retry waits twice as long, up to
+    MAX_RETRY_BACKOFF_MILLIS.
+     */
+    public AsyncWritePipeline setRetryBackoffMillis(long pRetryBackoffMillis) {
+        retryBackoffMillis = pRetryBackoffMillis;
+        return this;
+    }
+
+    /*
+    Send a write, blocking only while maxInFlight writes are already outstanding.
+     */
+    public void submit(Statement pStatement) throws InterruptedException {
+
+        if (draining) {
+            throw new IllegalStateException("Pipeline is draining; no more writes can be submitted");
+        }
+
+        // Wait for the rate limit before taking an in-flight slot, so that slots are not held while throttled
+        if (throttle != null) {
+            throttle.acquire(pStatement);
+        }
+
+        if (limiter != null) {
+            limiter.acquire();
+        }
+        else {
+            permits.acquire();
+        }
+        outstanding.incrementAndGet();
+        send(pStatement, 0);
+    }
+
+    /*
+    Stop accepting writes and return a future that completes once every submitted write has succeeded
+    or been dead-lettered.
+     */
+    public ListenableFuture<Void> drain() {
+
+        draining = true;
+        if (outstanding.get() == 0) {
+            drained.set(null);
+        }
+        return drained;
+    }
+
+    public int getMaxInFlight() {
+        return (limiter != null) ? limiter.getLimit() : maxInFlight;
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void send(final Statement pStatement, final int pAttempt) {
+
+        final long startTime = System.nanoTime();
+
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(pStatement);
+        }
+        catch (RuntimeException e) {
+            // Thrown before anything was sent (by a closed session, say), so no callback will give the slot back
+            fail(pStatement, e);
+            return;
+        }
+
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(ResultSet pResult) {
+                long latency = System.nanoTime() - startTime;
+                if (latencyRecorder != null) {
+                    latencyRecorder.record(LatencyRecorder.kindOf(pStatement), latency);
+                }
+                if (limiter != null) {
+                    limiter.onSample(latency, false);
+                }
+                succeeded.incrementAndGet();
+                complete();
+            }
+
+            @Override
+            public void onFailure(Throwable pError) {
+
+                long latency = System.nanoTime() - startTime;
+                if (latencyRecorder != null) {
+                    latencyRecorder.record(LatencyRecorder.kindOf(pStatement), latency);
+                }
+                if (limiter != null && AdaptiveConcurrencyLimiter.isDrop(pError)) {
+                    limiter.onSample(latency, true);
+                }
+
+                if (pAttempt < maxRetries && isRetryable(pError)) {
+                    retried.incrementAndGet();
+                    RETRY_TIMER.schedule(() -> send(pStatement, pAttempt + 1), backoffMillis(pAttempt),
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                fail(pStatement, pError);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void fail(Statement pStatement, Throwable pError) {
+
+        failed.incrementAndGet();
+        try {
+            deadLetterSink.accept(pStatement, pError);
+        }
+        finally {
+            complete();
+        }
+    }
+
+    /*
+    Timeouts and overload are worth retrying: the next attempt may well succeed once the cluster catches up.
+     */
+    static boolean isRetryable(Throwable pError) {
+        return AdaptiveConcurrencyLimiter.isDrop(pError);
+    }
+
+    // Exponential backoff with full jitter: a random wait of up to base * 2^attempt
+    private long backoffMillis(int pAttempt) {
+        long ceiling = Math.min(MAX_RETRY_BACKOFF_MILLIS, retryBackoffMillis << Math.min(pAttempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void complete() {
+
+        if (limiter != null) {
+            limiter.release();
+        }
+        else {
+            permits.release();
+        }
+        if (outstanding.decrementAndGet() == 0 && draining) {
+            drained.set(null);
+        }
+    }
+}
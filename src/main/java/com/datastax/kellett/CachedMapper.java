@@ -0,0 +1,177 @@
+package com.datastax.kellett;
+
+/*
+CachedMapper puts a bounded in-memory cache in front of a Mapper, for entities that are read far more often than
+they change.
+
+get() is served from the cache when it can, and otherwise loads the entity with Mapper.get() and keeps it.  An
+entity that does not exist is cached as absent too, so a popular missing key does not reach the cluster either.
+Loading is single-flight: when several threads miss on the same key at once, one of them runs the query and the
+others wait for its result.  The cache holds at most maxEntities entries, evicting the least recently used first,
+and each entry expires a fixed time after it was loaded or written, which bounds how stale a read can be when
+another client changes the table.
+
+The cache is Guava's, which comes with the driver.  A W-TinyLFU cache such as Caffeine's admits entries by how
+often they are read, so a scan of one-off keys cannot flush the hot set as it can from an LRU cache; but Caffeine
+would be a new dependency, and the labs' reads (the same hot keys over and over) are ones LRU handles well.
+Switching would only change the CacheBuilder below.
+
+save() and delete() write through: the Mapper's write runs first, and once it has succeeded the cache is updated
+with the saved entity, or with its absence.  An update to the cache replaces the result of a load still in
+progress for the same key, so a read that started before the write cannot put the old entity back.  A write that
+fails drops the key, since the row may or may not have changed.  Dropping a key does not stop a load already in
+progress from installing what it read, so a failed write also moves the key's generation on, and a load that sees
+its generation move while it reads reads again.  Generations are kept per stripe of keys rather than per key, so
+a failed write may cost a load of another key in its stripe a second read.
+
+With a KeyFilter set, a key the filter has never seen is answered as absent at once, neither cached nor loaded,
+and every entity saved is added to the filter.
+
+Hit ratio, load counts and average load latency come from the cache's own statistics, and are published as gauges
+by registerMetrics().
+*/
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.mapping.Mapper;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+public class CachedMapper<T> {
+
+    private static final int GENERATION_STRIPES = 64;
+
+    private final Mapper<T> mapper;
+    private final Function<T, List<Object>> primaryKey;
+    private final LoadingCache<List<Object>, Optional<T>> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private KeyFilter keyFilter;
+
+    /*
+    A cache of up to pMaxEntities entities of pMapper, each kept for pExpireAfterWriteMillis.  pPrimaryKey gives an
+    entity's primary key values, in the order Mapper.get() takes them.
+     */
+    public CachedMapper(Mapper<T> pMapper, Function<T, List<Object>> pPrimaryKey,
+                        long pMaxEntities, long pExpireAfterWriteMillis) {
+
+        mapper = pMapper;
+        primaryKey = pPrimaryKey;
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(pMaxEntities)
+                .expireAfterWrite(pExpireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(new CacheLoader<List<Object>, Optional<T>>() {
+                    @Override
+                    public Optional<T> load(List<Object> pKey) {
+                        int stripe = stripe(pKey);
+                        while (true) {
+                            long generation = generations.get(stripe);
+                            Optional<T> loaded = Optional.ofNullable(mapper.get(pKey.toArray()));
+                            if (generations.get(stripe) == generation) {
+                                return loaded;
+                            }
+                        }
+                    }
+                });
+    }
+
+    /*
+    Skip lookups of keys that pKeyFilter rules out.  It must hold the primary key values, with the types and in the
+    order get() is given them.
+     */
+    public CachedMapper<T> setKeyFilter(KeyFilter pKeyFilter) {
+        keyFilter = pKeyFilter;
+        return this;
+    }
+
+    /*
+    The entity with primary key pPrimaryKey, or null if there is none, as with Mapper.get().
+     */
+    public T get(Object... pPrimaryKey) {
+
+        if (keyFilter != null && !keyFilter.mightContain(pPrimaryKey)) {
+            return null;
+        }
+        try {
+            return cache.getUnchecked(Arrays.asList(pPrimaryKey)).orElse(null);
+        }
+        catch (UncheckedExecutionException e) {
+            throw DriverErrors.propagate(e.getCause());
+        }
+    }
+
+    public void save(T pEntity) {
+
+        List<Object> key = primaryKey.apply(pEntity);
+        if (keyFilter != null) {
+            // Before the write, so that no reader can see the row but be told by the filter that it is absent
+            keyFilter.put(key.toArray());
+        }
+        try {
+            mapper.save(pEntity);
+        }
+        catch (RuntimeException e) {
+            failedWrite(key);
+            throw e;
+        }
+        cache.put(key, Optional.of(pEntity));
+    }
+
+    public void delete(T pEntity) {
+
+        List<Object> key = primaryKey.apply(pEntity);
+        try {
+            mapper.delete(pEntity);
+        }
+        catch (RuntimeException e) {
+            failedWrite(key);
+            throw e;
+        }
+        cache.put(key, Optional.empty());
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public void registerMetrics(MetricRegistry pRegistry, String pName) {
+        pRegistry.register(MetricRegistry.name(pName, "hit-ratio"), (Gauge<Double>) () -> cache.stats().hitRate());
+        pRegistry.register(MetricRegistry.name(pName, "loads"), (Gauge<Long>) () -> cache.stats().loadCount());
+        pRegistry.register(MetricRegistry.name(pName, "load-micros"),
+                (Gauge<Long>) () -> (long) cache.stats().averageLoadPenalty() / 1000);
+        pRegistry.register(MetricRegistry.name(pName, "evictions"), (Gauge<Long>) () -> cache.stats().evictionCount());
+        pRegistry.register(MetricRegistry.name(pName, "size"), (Gauge<Long>) cache::size);
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return cache.size() + " entities, "
+                + stats.hitCount() + " hits, "
+                + stats.missCount() + " misses, "
+                + String.format("%.1f%% hit ratio, ", stats.hitRate() * 100)
+                + stats.loadCount() + " loads averaging " + (long) stats.averageLoadPenalty() / 1000 + " microseconds, "
+                + stats.evictionCount() + " evictions";
+    }
+
+    // The generation moves before the key is dropped, so that no load can read before the write and install after
+    private void failedWrite(List<Object> pKey) {
+        generations.incrementAndGet(stripe(pKey));
+        cache.invalidate(pKey);
+    }
+
+    private static int stripe(List<Object> pKey) {
+        return Math.floorMod(pKey.hashCode(), GENERATION_STRIPES);
+    }
+}
@@ -0,0 +1,144 @@
+package com.datastax.kellett;
+
+/*
+CsvReaderBenchmark compares the heap allocated per row by the original BufferedReader + String.split() ingest loop
+with MappedCsvReader.
+
+The input file (normally data/lab8.csv) is repeated into a temporary file until it is large enough to give
+stable numbers.  Allocation is measured with the HotSpot per-thread allocation counter, so no database is needed.
+*/
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static java.lang.System.exit;
+
+public class CsvReaderBenchmark {
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+    The ingest loop as the labs originally wrote it.  Columns follow data/lab8.csv:
+    country, membership_tier, income_tier, acct_no, first_name, last_name
+     */
+    private static long readWithSplit(String pCsvFile) throws IOException {
+
+        long checksum = 0;
+        String line;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(pCsvFile))) {
+            while ((line = br.readLine()) != null) {
+                String[] customer = line.split(",");
+                checksum += customer[0].length()
+                        + Integer.parseInt(customer[1])
+                        + Integer.parseInt(customer[2])
+                        + Integer.parseInt(customer[3])
+                        + customer[4].length()
+                        + customer[5].length();
+            }
+        }
+
+        return checksum;
+    }
+
+    private static long readWithMappedReader(String pCsvFile) throws IOException {
+
+        long checksum = 0;
+
+        try (MappedCsvReader csv = new MappedCsvReader(pCsvFile)) {
+            while (csv.next()) {
+                checksum += csv.getString(0).length()
+                        + csv.getInt(1)
+                        + csv.getInt(2)
+                        + csv.getInt(3)
+                        + csv.getString(4).length()
+                        + csv.getString(5).length();
+            }
+        }
+
+        return checksum;
+    }
+
+    private static void report(String pLabel, long pRows, long pBytes, long pNanos) {
+        System.out.println(pLabel
+                + ": " + pBytes / pRows + " bytes/row allocated, "
+                + pNanos / 1000000 + " milliseconds, "
+                + (pRows * 1000000000L / Math.max(1, pNanos)) + " rows/second");
+    }
+
+    public static void main(String args[]) throws IOException {
+
+        System.out.println("Starting CSV reader benchmark");
+
+        String csvFile = "";
+        int scale = 0;
+
+        try {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(System.in));
+
+            System.out.println("Enter path/filename of input csv file (in the shape of data/lab8.csv):");
+            csvFile = reader.readLine();
+
+            System.out.println("Enter the number of times to repeat the file (for example 1000):");
+            scale = Integer.parseInt(reader.readLine().trim());
+        }
+
+        catch(IOException e) {
+            System.out.println(e);
+        }
+
+        // Build the scaled-up input file
+        Path scaledFile = Files.createTempFile("csv-benchmark", ".csv");
+        scaledFile.toFile().deleteOnExit();
+
+        byte[] original = Files.readAllBytes(Paths.get(csvFile));
+        long rowsPerCopy = 0;
+        for (byte b : original) {
+            if (b == '\n') {
+                rowsPerCopy++;
+            }
+        }
+        for (int i = 0; i < scale; i++) {
+            Files.write(scaledFile, original, StandardOpenOption.APPEND);
+        }
+
+        long rows = rowsPerCopy * scale;
+        System.out.println("Scaled file " + scaledFile + " has " + rows + " rows, " + Files.size(scaledFile) + " bytes");
+
+        // Warm up both paths so the JIT has compiled them before we measure
+        for (int i = 0; i < 3; i++) {
+            readWithSplit(scaledFile.toString());
+            readWithMappedReader(scaledFile.toString());
+        }
+
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        long splitChecksum = readWithSplit(scaledFile.toString());
+        report("BufferedReader + split", rows, allocatedBytes() - startBytes, System.nanoTime() - startTime);
+
+        startBytes = allocatedBytes();
+        startTime = System.nanoTime();
+        long mappedChecksum = readWithMappedReader(scaledFile.toString());
+        report("MappedCsvReader       ", rows, allocatedBytes() - startBytes, System.nanoTime() - startTime);
+
+        if (splitChecksum != mappedChecksum) {
+            System.out.println("Checksum mismatch: " + splitChecksum + " vs " + mappedChecksum);
+        }
+
+        System.out.println("Terminating execution of CSV reader benchmark.");
+        exit(0);
+    }
+}
@@ -0,0 +1,37 @@
+package com.datastax.kellett;
+
+/*
+DriverErrors rethrows the cause of a failed driver future the way the driver's own blocking calls do, for the
+classes that wait on futures themselves (ResultSetFuture.getUninterruptibly() does this internally).
+
+A DriverException is copied, so that the exception thrown carries the waiting thread's stack trace as well as the
+original one as its cause.  Other runtime exceptions are rethrown as they are, and Errors (OutOfMemoryError,
+AssertionError ...) propagate unchanged.  A checked exception, which no driver future should fail with, is wrapped
+in a DriverInternalError.
+*/
+
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+
+final class DriverErrors {
+
+    private DriverErrors() {
+    }
+
+    /*
+    The exception to throw for pCause, typically ExecutionException.getCause(): throw DriverErrors.propagate(cause).
+     */
+    static RuntimeException propagate(Throwable pCause) {
+
+        if (pCause instanceof Error) {
+            throw (Error) pCause;
+        }
+        if (pCause instanceof DriverException) {
+            return ((DriverException) pCause).copy();
+        }
+        if (pCause instanceof RuntimeException) {
+            return (RuntimeException) pCause;
+        }
+        return new DriverInternalError("Unexpected exception thrown", pCause);
+    }
+}
@@ -0,0 +1,384 @@
+package com.datastax.kellett;
+
+/*
+HostScoringPolicy reorders the first hosts of its child policy's query plan so that requests go to the replica that
+is currently answering fastest, and is least busy.
+
+TokenAwarePolicy(DCAwareRoundRobinPolicy) puts a statement's replicas first and rotates between them, however slow
+each is at the moment: a replica in a long GC pause keeps getting its share of the requests, and each of those
+waits for the pause.  This policy scores each host, in the spirit of the server's dynamic snitch:
+    score = decayed latency * (1 + requests in flight)
+- The latency is an exponentially decayed average of the host's recent response times, the weight of a response
+  halving every decayHalfLifeMillis.  A response slower than the average replaces it outright, so a host that
+  suddenly slows down is penalized at once and only recovers gradually.
+- The in-flight count comes from the Session's pool state, refreshed at most every IN_FLIGHT_REFRESH_MILLIS.  It
+  penalizes a host with a queue building up before its slow responses have even come back.
+The first window hosts of the child's plan (the replicas, for a token-aware child with window set to the
+replication factor) are sorted by score, lowest first; the rest of the plan is left as it is.  A host with no
+response in the last retryPeriodMillis (one that was avoided, or just came up) is scored with the average latency
+of the others, so that it gets traffic again and its score is brought up to date.
+
+Responses are recorded through the LatencyTracker the policy registers with the Cluster.  Only successes and
+errors that say something about the host's speed (timeouts, overload) count.  getScores() and printScores(), and
+the gauges registered by registerMetrics(), show each host's latency, in-flight count and score, so that a shift
+in traffic can be explained.
+*/
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Iterators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HostScoringPolicy implements ChainableLoadBalancingPolicy, LatencyTracker {
+
+    public static final int DEFAULT_WINDOW = 3;
+    public static final long DEFAULT_DECAY_HALF_LIFE_MILLIS = 1000;
+    public static final long DEFAULT_RETRY_PERIOD_MILLIS = 10000;
+
+    private static final long IN_FLIGHT_REFRESH_MILLIS = 100;
+
+    /*
+    What the policy currently knows about one host.
+     */
+    public static class HostScore {
+
+        private final long latencyNanos;
+        private final int inFlight;
+        private final double score;
+        private final long samples;
+        private final boolean stale;
+
+        HostScore(long pLatencyNanos, int pInFlight, double pScore, long pSamples, boolean pStale) {
+            latencyNanos = pLatencyNanos;
+            inFlight = pInFlight;
+            score = pScore;
+            samples = pSamples;
+            stale = pStale;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        // True if the host has had no response for the retry period, so its latency is taken to be average
+        public boolean isStale() {
+            return stale;
+        }
+
+        @Override
+        public String toString() {
+            return "latency " + latencyNanos / 1000 + " microseconds" + (stale ? " (stale)" : "")
+                    + ", " + inFlight + " in flight"
+                    + ", score " + String.format("%.0f", score / 1000)
+                    + ", " + samples + " samples";
+        }
+    }
+
+    // Decayed latency of one host, guarded by itself
+    private static class HostLatency {
+        double latencyNanos;
+        long lastUpdateNanos;
+        long samples;
+    }
+
+    private final LoadBalancingPolicy childPolicy;
+    private final Map<Host, HostLatency> latencies = new ConcurrentHashMap<>();
+
+    private int window = DEFAULT_WINDOW;
+    private long decayHalfLifeNanos = DEFAULT_DECAY_HALF_LIFE_MILLIS * 1000000;
+    private long retryPeriodNanos = DEFAULT_RETRY_PERIOD_MILLIS * 1000000;
+
+    private volatile Session session;
+    private volatile Map<Host, Integer> inFlight = new HashMap<>();
+    private volatile long inFlightRefreshedNanos;
+
+    private MetricRegistry registry;
+    private String metricsName;
+
+    public HostScoringPolicy(LoadBalancingPolicy pChildPolicy) {
+        childPolicy = pChildPolicy;
+    }
+
+    // The number of hosts at the head of the child's plan that are reordered
+    public HostScoringPolicy setWindow(int pWindow) {
+        window = pWindow;
+        return this;
+    }
+
+    public HostScoringPolicy setDecayHalfLifeMillis(long pDecayHalfLifeMillis) {
+        decayHalfLifeNanos = pDecayHalfLifeMillis * 1000000;
+        return this;
+    }
+
+    public HostScoringPolicy setRetryPeriodMillis(long pRetryPeriodMillis) {
+        retryPeriodNanos = pRetryPeriodMillis * 1000000;
+        return this;
+    }
+
+    /*
+    The session whose pools give the in-flight counts.  Until it is set, only latency is scored.
+     */
+    public HostScoringPolicy setSession(Session pSession) {
+        session = pSession;
+        return this;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster pCluster, Collection<Host> pHosts) {
+        childPolicy.init(pCluster, pHosts);
+        pCluster.register(this);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String pLoggedKeyspace, Statement pStatement) {
+
+        Iterator<Host> childPlan = childPolicy.newQueryPlan(pLoggedKeyspace, pStatement);
+
+        List<Host> head = new ArrayList<>(window);
+        while (head.size() < window && childPlan.hasNext()) {
+            head.add(childPlan.next());
+        }
+        if (head.size() > 1) {
+            Map<Host, HostScore> scores = scores(head);
+            // A stable sort, so that hosts with equal scores keep the child's rotation
+            head.sort(Comparator.comparingDouble(host -> scores.get(host).getScore()));
+        }
+        return Iterators.concat(head.iterator(), childPlan);
+    }
+
+    @Override
+    public void update(Host pHost, Statement pStatement, Exception pException, long pNewLatencyNanos) {
+
+        if (pException != null
+                && !(pException instanceof OperationTimedOutException)
+                && !(pException instanceof ReadTimeoutException)
+                && !(pException instanceof WriteTimeoutException)
+                && !(pException instanceof OverloadedException)) {
+            return;
+        }
+
+        HostLatency latency = latencies.computeIfAbsent(pHost, host -> new HostLatency());
+        long now = System.nanoTime();
+        synchronized (latency) {
+            if (latency.samples == 0 || pNewLatencyNanos > latency.latencyNanos) {
+                latency.latencyNanos = pNewLatencyNanos;
+            }
+            else {
+                double keep = Math.pow(0.5, (double) (now - latency.lastUpdateNanos) / decayHalfLifeNanos);
+                latency.latencyNanos = keep * latency.latencyNanos + (1 - keep) * pNewLatencyNanos;
+            }
+            latency.lastUpdateNanos = now;
+            latency.samples++;
+        }
+    }
+
+    /*
+    The current score of every host the child policy does not ignore.
+     */
+    public Map<Host, HostScore> getScores() {
+
+        List<Host> hosts = new ArrayList<>();
+        Session current = session;
+        if (current != null) {
+            hosts.addAll(current.getCluster().getMetadata().getAllHosts());
+        }
+        else {
+            hosts.addAll(latencies.keySet());
+        }
+        hosts.removeIf(host -> childPolicy.distance(host) == HostDistance.IGNORED);
+        return scores(hosts);
+    }
+
+    public void printScores() {
+
+        System.out.println("Host scores (lowest is preferred):");
+        Map<String, HostScore> byAddress = new TreeMap<>();
+        getScores().forEach((host, score) -> byAddress.put(String.valueOf(host.getSocketAddress()), score));
+        byAddress.forEach((address, score) -> System.out.println("  " + address + ": " + score));
+    }
+
+    /*
+    Gauges of each host's latency, in-flight count and score.  Hosts added later get their gauges when added.
+     */
+    public synchronized void registerMetrics(MetricRegistry pRegistry, String pName) {
+
+        registry = pRegistry;
+        metricsName = pName;
+        for (Host host : getScores().keySet()) {
+            registerHostMetrics(host);
+        }
+    }
+
+    @Override
+    public HostDistance distance(Host pHost) {
+        return childPolicy.distance(pHost);
+    }
+
+    @Override
+    public void onAdd(Host pHost) {
+        childPolicy.onAdd(pHost);
+        registerHostMetrics(pHost);
+    }
+
+    @Override
+    public void onUp(Host pHost) {
+        childPolicy.onUp(pHost);
+    }
+
+    @Override
+    public void onDown(Host pHost) {
+        childPolicy.onDown(pHost);
+    }
+
+    @Override
+    public void onRemove(Host pHost) {
+        childPolicy.onRemove(pHost);
+        latencies.remove(pHost);
+        unregisterHostMetrics(pHost);
+    }
+
+    @Override
+    public void onRegister(Cluster pCluster) {
+    }
+
+    @Override
+    public void onUnregister(Cluster pCluster) {
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+    private Map<Host, HostScore> scores(Collection<Host> pHosts) {
+
+        long now = System.nanoTime();
+        Map<Host, Integer> currentInFlight = inFlight(now);
+
+        // Latency of the hosts with recent responses, and their average for the others
+        Map<Host, HostLatency> fresh = new HashMap<>();
+        double total = 0;
+        for (Host host : pHosts) {
+            HostLatency latency = latencies.get(host);
+            if (latency != null) {
+                synchronized (latency) {
+                    if (now - latency.lastUpdateNanos <= retryPeriodNanos) {
+                        fresh.put(host, latency);
+                        total += latency.latencyNanos;
+                    }
+                }
+            }
+        }
+        double average = fresh.isEmpty() ? 0 : total / fresh.size();
+
+        Map<Host, HostScore> scores = new HashMap<>();
+        for (Host host : pHosts) {
+            HostLatency latency = latencies.get(host);
+            long samples = 0;
+            double latencyNanos = average;
+            if (latency != null) {
+                synchronized (latency) {
+                    samples = latency.samples;
+                    if (fresh.containsKey(host)) {
+                        latencyNanos = latency.latencyNanos;
+                    }
+                }
+            }
+            int hostInFlight = currentInFlight.getOrDefault(host, 0);
+            scores.put(host, new HostScore((long) latencyNanos, hostInFlight, latencyNanos * (1 + hostInFlight),
+                    samples, !fresh.containsKey(host)));
+        }
+        return scores;
+    }
+
+    // In-flight counts per host, read again from the session's pools when the last reading is too old
+    private Map<Host, Integer> inFlight(long pNow) {
+
+        Session current = session;
+        if (current == null) {
+            return inFlight;
+        }
+        if (pNow - inFlightRefreshedNanos > IN_FLIGHT_REFRESH_MILLIS * 1000000) {
+            inFlightRefreshedNanos = pNow;
+            Session.State state = current.getState();
+            Map<Host, Integer> counts = new HashMap<>();
+            for (Host host : state.getConnectedHosts()) {
+                counts.put(host, state.getInFlightQueries(host));
+            }
+            inFlight = counts;
+        }
+        return inFlight;
+    }
+
+    private synchronized void registerHostMetrics(Host pHost) {
+
+        if (registry == null) {
+            return;
+        }
+        String prefix = MetricRegistry.name(metricsName, String.valueOf(pHost.getSocketAddress()));
+        if (registry.getGauges().containsKey(MetricRegistry.name(prefix, "score"))) {
+            return;
+        }
+        registry.register(MetricRegistry.name(prefix, "latency-micros"),
+                (Gauge<Long>) () -> hostScore(pHost).getLatencyNanos() / 1000);
+        registry.register(MetricRegistry.name(prefix, "in-flight"),
+                (Gauge<Integer>) () -> hostScore(pHost).getInFlight());
+        registry.register(MetricRegistry.name(prefix, "score"),
+                (Gauge<Long>) () -> (long) hostScore(pHost).getScore() / 1000);
+    }
+
+    private synchronized void unregisterHostMetrics(Host pHost) {
+
+        if (registry == null) {
+            return;
+        }
+        String prefix = MetricRegistry.name(metricsName, String.valueOf(pHost.getSocketAddress()));
+        registry.remove(MetricRegistry.name(prefix, "latency-micros"));
+        registry.remove(MetricRegistry.name(prefix, "in-flight"));
+        registry.remove(MetricRegistry.name(prefix, "score"));
+    }
+
+    private HostScore hostScore(Host pHost) {
+        List<Host> host = new ArrayList<>(1);
+        host.add(pHost);
+        return scores(host).get(pHost);
+    }
+}
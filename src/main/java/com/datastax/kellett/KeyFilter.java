@@ -0,0 +1,166 @@
+package com.datastax.kellett;
+
+/*
+KeyFilter is a Bloom filter of the primary keys known to exist in a table, so that a lookup of a key that does not
+exist can be answered without a round trip to the cluster.
+
+mightContain() never says no to a key that was put in the filter.  It says yes to a key that was not with about the
+false positive rate the filter was sized for, as long as no more than the expected number of keys are put in it;
+such a lookup simply goes to the cluster as it would have anyway.  Keys cannot be taken out, so a deleted key keeps
+costing a read, just as before.  The filter is filled wherever keys go by: while loading a CSV file, when a row is
+written, or from a TokenRangeScanner over the whole table (fromScan()).
+
+For n keys and a false positive rate p the filter has m = -n ln p / (ln 2)^2 bits and uses k = m/n ln 2 hashes:
+about 9.6 bits (1.2 bytes) per key at 1%.  The bits live in a direct ByteBuffer, outside the Java heap, so even a
+filter of hundreds of millions of keys adds nothing for the garbage collector to trace.  The k bit positions come
+from one 128-bit Murmur3 hash of the key, combined as h1 + i * h2.
+
+The values of a key are hashed by type, so a key must be given with the same types every time: put(42) and
+mightContain("42") are different keys.  put() may be called from several threads; a key put before a call to
+mightContain() starts is always seen by it.
+*/
+
+import com.datastax.driver.core.Row;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class KeyFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final ByteBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long expectedKeys;
+
+    // Written after each put's bits are set, and read before testing bits, so that completed puts are visible
+    private volatile long keys;
+
+    /*
+    A filter for up to pExpectedKeys keys, wrongly reporting about pFalsePositiveRate of absent keys as present.
+     */
+    public KeyFilter(long pExpectedKeys, double pFalsePositiveRate) {
+
+        if (pExpectedKeys <= 0 || pFalsePositiveRate <= 0 || pFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected keys must be positive and the false positive rate between 0 and 1");
+        }
+
+        long wantedBits = (long) Math.ceil(-pExpectedKeys * Math.log(pFalsePositiveRate) / (LN2 * LN2));
+        // Whole longs, within what one direct buffer can hold
+        long words = Math.min((wantedBits + 63) / 64, Integer.MAX_VALUE / 8);
+        bitCount = words * 64;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / pExpectedKeys * LN2));
+        expectedKeys = pExpectedKeys;
+        bits = ByteBuffer.allocateDirect((int) (words * 8));
+    }
+
+    /*
+    A filter of every key in the table pScanner reads, made of the values of pKeyColumns in each row.
+     */
+    public static KeyFilter fromScan(TokenRangeScanner pScanner, long pExpectedKeys, double pFalsePositiveRate,
+                                     String... pKeyColumns) {
+
+        KeyFilter filter = new KeyFilter(pExpectedKeys, pFalsePositiveRate);
+        pScanner.scan((Row row) -> {
+            Object[] key = new Object[pKeyColumns.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = row.getObject(pKeyColumns[i]);
+            }
+            filter.put(key);
+        });
+        return filter;
+    }
+
+    public synchronized void put(Object... pKey) {
+
+        long[] hash = hash(pKey);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash, i);
+            int word = (int) (bit >>> 6) * 8;
+            bits.putLong(word, bits.getLong(word) | (1L << bit));
+        }
+        keys = keys + 1;
+    }
+
+    /*
+    False if pKey was certainly never put in the filter; true if it probably was.
+     */
+    public boolean mightContain(Object... pKey) {
+
+        if (keys == 0) {
+            return false;
+        }
+
+        long[] hash = hash(pKey);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash, i);
+            if ((bits.getLong((int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getKeyCount() {
+        return keys;
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /*
+    The false positive rate to expect with the keys put in so far: (1 - e^(-kn/m))^k.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * keys / bitCount), hashCount);
+    }
+
+    @Override
+    public String toString() {
+        return keys + " keys (sized for " + expectedKeys + "), "
+                + bitCount / 8 + " bytes off heap, "
+                + hashCount + " hashes, "
+                + String.format("%.3f%% expected false positives", getExpectedFalsePositiveRate() * 100);
+    }
+
+    private long index(long[] pHash, int pI) {
+        // floorMod keeps the position positive however the sum overflows
+        return Math.floorMod(pHash[0] + pI * pHash[1], bitCount);
+    }
+
+    private static long[] hash(Object[] pKey) {
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Object value : pKey) {
+            if (value == null) {
+                hasher.putByte((byte) 0);
+            }
+            else if (value instanceof Integer) {
+                hasher.putByte((byte) 1).putInt((Integer) value);
+            }
+            else if (value instanceof Long) {
+                hasher.putByte((byte) 2).putLong((Long) value);
+            }
+            else if (value instanceof CharSequence) {
+                byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                hasher.putByte((byte) 3).putInt(bytes.length).putBytes(bytes);
+            }
+            else {
+                // Any other type by its string form, which is stable for UUIDs, dates and numbers alike
+                byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                hasher.putByte((byte) 4).putInt(bytes.length).putBytes(bytes);
+            }
+        }
+
+        ByteBuffer hash = ByteBuffer.wrap(hasher.hash().asBytes());
+        return new long[] {hash.getLong(), hash.getLong() | 1};
+    }
+}
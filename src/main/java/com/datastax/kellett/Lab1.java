@@ -8,6 +8,7 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
 import com.datastax.driver.core.policies.DefaultRetryPolicy;
 import com.datastax.driver.core.policies.ExponentialReconnectionPolicy;
+import com.datastax.driver.core.policies.PercentileSpeculativeExecutionPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.datastax.driver.dse.DseCluster;
 import com.datastax.driver.dse.DseSession;
@@ -105,17 +106,37 @@ public class Lab1 {
         With this configuration, the driver will, on each query, try to use a coordinator node that contains a
         replica of the desired data.  Furthermore, it will try to round-robin requests across all the different nodes
         that hold replicas, and it tries to do all this within the client's local data center.
+
+        Round-robin treats every replica alike, however busy or slow it is at the moment.  So we wrap the chain in a
+        HostScoringPolicy, which puts the replicas in order of a score: each host's recent latency, decayed over time,
+        times its requests in flight.  A replica in a GC pause or a compaction gets less traffic until it recovers.
          */
         System.out.println("Adding Load Balancing Policy...");
 
-        clusterBuilder.withLoadBalancingPolicy(
+        HostScoringPolicy hostScoringPolicy = new HostScoringPolicy(
                 new TokenAwarePolicy(
                         DCAwareRoundRobinPolicy.builder().withLocalDc("DC1").build()
                 )
         );
+        clusterBuilder.withLoadBalancingPolicy(hostScoringPolicy);
 
         System.out.println("... Load Balancing Policy added.");
 
+        /*
+        Finally, an optional speculative execution policy.  Without one, a read waits for its coordinator however
+        slow it is, so every read that lands on a struggling node sees the whole tail.  With this policy an
+        idempotent read that has not been answered within the 95th percentile latency of its table is sent again
+        to the next host in the query plan (at most 2 executions in all), the first answer wins, and the other is
+        cancelled.  Only statements marked idempotent are hedged.
+         */
+        System.out.println("Adding Speculative Execution Policy...");
+
+        clusterBuilder.withSpeculativeExecutionPolicy(
+                new PercentileSpeculativeExecutionPolicy(new TablePercentileTracker(), 95.0, 2)
+        );
+
+        System.out.println("... Speculative Execution Policy added.");
+
         /*
         Now let's build the connection.  Note that we could have done all of the above with a longer fluent API
         statement, but we wanted to highlight each step.  We'll see the fluent API in our next lab.
@@ -135,6 +156,9 @@ public class Lab1 {
 
         DseSession mySession = myCluster.connect("dse_analytics;");
 
+        // The session's connection pools tell the policy how many requests each host has in flight
+        hostScoringPolicy.setSession(mySession);
+
         System.out.println("... Session created.");
 
         /*
@@ -147,6 +171,11 @@ public class Lab1 {
 
         System.out.println("... one row printed.");
 
+        /*
+        The scores show why the policy prefers one host over another.
+         */
+        hostScoringPolicy.printScores();
+
         /*
         Now we can close the session and terminate.
         */
@@ -20,7 +20,6 @@ import com.datastax.driver.dse.DseSession;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.util.Date;
 
 
@@ -109,36 +108,38 @@ public class Lab2 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-        long startTime = System.nanoTime();
+        /*
+        Tracing every statement would double the write load, so we only trace a sample of them.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        TraceAggregator traces = new TraceAggregator();
+        TracingSampler sampler = TracingSampler.oneIn(100).sendTracesTo(traces);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+        long startTime = System.nanoTime();
 
-            while ((line = br.readLine()) != null) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+            while (customer.next()) {
 
-                System.out.print("\rWriting customer " + customer[0]);
+                System.out.print("\rWriting customer " + customer.getInt(0));
 
                 Statement cqlInsert = new SimpleStatement(
                         "INSERT INTO lab2.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)"
-                        , Integer.parseInt(customer[0]), customer[1], customer[2]);
+                        , customer.getInt(0), customer.getString(1), customer.getString(2));
 
                 /*
                 Set options for the SimpleStatement.
-                Note that we enable tracing.  This causes trace information to be written asynchronously to
-                system_traces.sessions and system_traces.events.  We won't further impact performance by retrieving
-                that data in this program.  Instead, we'll look at it in Studio.  Note that these tables store
-                elapsed time information in microseconds.
+                Note that the sampler enables tracing on 1 statement in 100.  This causes trace information to be
+                written asynchronously to system_traces.sessions and system_traces.events.  Note that these tables
+                store elapsed time information in microseconds.
                 */
                 cqlInsert.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
-                cqlInsert.enableTracing();
+                sampler.sample(cqlInsert);
 
-                // execute the SimpleStatement
-                mySession.execute(cqlInsert);
+                // execute the SimpleStatement, and hand its trace and client-side latency on if it was traced
+                long executeStart = System.nanoTime();
+                rs = latencies.execute(mySession, cqlInsert);
+                sampler.collect(rs, System.nanoTime() - executeStart);
             }
 
         } catch (IOException e) {
@@ -152,22 +153,17 @@ public class Lab2 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime/1000000 + " milliseconds");
+        latencies.printReport("lab2-latency.hlog");
 
-        // Now get the average elapsed time server-side per query
-        // Pause 10 seconds to make sure system_traces records were written
-        System.out.println("");
-        System.out.println("Beginning 10-second pause to quiesce system_traces.");
-        Thread.sleep(10000);
-        System.out.println("10-second pause complete.");
+        /*
+        Now get the server-side latency percentiles of the sampled queries.  The driver fetches each trace from
+        system_traces by its session id, retrying until the trace is complete, so there is no need to pause first.
+        */
         System.out.println("");
-
-        rs = mySession.execute(
-                "select avg(duration) as avg_duration from system_traces.sessions;");
-        System.out.println("Average server-side elapsed time per query: " + rs.one().getInt("avg_duration") + " microseconds" );
-
-        rs = mySession.execute(
-                "select avg(source_elapsed) as avg_source_elapsed from system_traces.events where activity = 'Preparing statement' allow filtering");
-        System.out.println("Average server-side elapsed time spent in query preparation phase: " + rs.one().getInt("avg_source_elapsed") + " microseconds");
+        System.out.println("Traced " + sampler.getStatementsSampled() + " of " + sampler.getStatementsSeen() + " statements");
+        System.out.println("Waiting for traces...");
+        traces.awaitFetches();
+        traces.printReport();
 
         System.out.println("");
 
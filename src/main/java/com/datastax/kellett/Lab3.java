@@ -12,20 +12,30 @@ import com.datastax.driver.dse.DseSession;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
 
 import static java.lang.System.exit;
 
 public class Lab3 {
 
-    public static void main(String args[]) throws InterruptedException {
+    // Keys slower than this are saved to SLOW_KEYS_FILE, and only they are traced on the next run
+    private static final long SLOW_KEY_MILLIS = 50;
+    private static final String SLOW_KEYS_FILE = "lab3-slow-keys.txt";
+
+    public static void main(String args[]) throws InterruptedException, IOException {
 
         System.out.println("Starting Lab 3");
 
         String ipAddress = "";
         String csvFile = "";
+        int ingestWorkers = 1;
+        double maxRowsPerSecond = 0;
 
         /*
         Let's begin by getting one contact point to our cluster, and the path to our input data.
@@ -41,6 +51,14 @@ public class Lab3 {
             System.out.println("Enter path/filename of input csv file:");
             // Reading data using readLine
             csvFile = reader.readLine();
+
+            System.out.println("Enter number of parallel ingest workers (1 to load on a single thread):");
+            // Reading data using readLine
+            ingestWorkers = Integer.parseInt(reader.readLine().trim());
+
+            System.out.println("Enter maximum write rate in rows/second (0 for unlimited):");
+            // Reading data using readLine
+            maxRowsPerSecond = Double.parseDouble(reader.readLine().trim());
         }
 
         catch(IOException e) {
@@ -99,37 +117,89 @@ public class Lab3 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab3.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
 
+        /*
+        A throttle keeps a replay against a shared cluster from crowding out online traffic.
+        It is registered with JMX, so the rate can be changed (for example with jconsole) while the load runs.
+        */
+        WriteThrottle throttle = new WriteThrottle(maxRowsPerSecond);
+        throttle.register("lab3");
+
+        /*
+        Tracing every statement would double the write load, so we only trace 1 statement in 100.
+        If an earlier run saved the accounts whose writes were slow, we trace just those instead, to see where
+        their time went.  Either way, the accounts slow on this run are saved for the next one.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        TraceAggregator traces = new TraceAggregator();
+        Set<String> slowKeys = Files.exists(Paths.get(SLOW_KEYS_FILE))
+                ? TracingSampler.loadSlowKeys(SLOW_KEYS_FILE) : Collections.<String>emptySet();
+        TracingSampler sampler;
+        if (!slowKeys.isEmpty()) {
+            sampler = TracingSampler.slowKeys(slowKeys, SLOW_KEY_MILLIS);
+            System.out.println("Tracing the " + slowKeys.size() + " slow accounts listed in " + SLOW_KEYS_FILE);
+        }
+        else {
+            sampler = TracingSampler.oneIn(100).recordSlowKeysOver(SLOW_KEY_MILLIS);
+        }
+        sampler.sendTracesTo(traces);
+
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+        if (ingestWorkers > 1) {
+
+            /*
+            Parallel mode: the file is split at byte offsets and each split is parsed and written by its own
+            ForkJoinPool worker.  The PreparedStatement and the Session are both safe to share between threads.
+            */
+            try {
+                ParallelCsvLoader loader = new ParallelCsvLoader(
+                        mySession,
+                        customer -> {
+                            BoundStatement cqlInsertBound = cqlInsert.bind(customer.getInt(0), customer.getString(1), customer.getString(2));
+                            cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+                            return cqlInsertBound;
+                        },
+                        ingestWorkers,
+                        ParallelCsvLoader.defaultSplitSize(csvFile, ingestWorkers))
+                        .setThrottle(throttle)
+                        .setTracingSampler(sampler, 0)
+                        .setLatencyRecorder(latencies);
+
+                List<ParallelCsvLoader.SplitResult> splitResults = loader.load(csvFile);
+                ParallelCsvLoader.printReport(splitResults, System.nanoTime() - startTime);
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else {
+
+            try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-            while ((line = br.readLine()) != null) {
+                while (customer.next()) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+                    System.out.print("\rWriting customer " + customer.getInt(0));
 
-                System.out.print("\rWriting customer " + customer[0]);
+                    // Create the bound statement and set options
+                    BoundStatement cqlInsertBound = cqlInsert.bind(customer.getInt(0), customer.getString(1), customer.getString(2));
+                    cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+                    sampler.sample(cqlInsertBound, customer.getInt(0));
 
-                // Create the bound statement and set options
-                BoundStatement cqlInsertBound = cqlInsert.bind(Integer.parseInt(customer[0]), customer[1], customer[2]);
-                cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
-                cqlInsertBound.enableTracing();
+                    // execute the bound statement, once the throttle allows it
+                    throttle.acquire(cqlInsertBound);
+                    long executeStart = System.nanoTime();
+                    rs = latencies.execute(mySession, cqlInsertBound);
+                    sampler.collect(rs, customer.getInt(0), System.nanoTime() - executeStart);
+                }
 
-                // execute the bound statement
-                mySession.execute(cqlInsertBound);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
         System.out.println("... finished reading csv and writing to database.");
@@ -139,22 +209,22 @@ public class Lab3 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime/1000000 + " milliseconds");
+        throttle.printReport();
+        latencies.printReport("lab3-latency.hlog");
 
-        // Now get the average elapsed time server-side per query
-        // Pause 10 seconds to make sure system_traces records were written
-        System.out.println("");
-        System.out.println("Beginning 10-second pause to quiesce system_traces.");
-        Thread.sleep(10000);
-        System.out.println("10-second pause complete.");
+        /*
+        Now get the server-side latency percentiles of the sampled queries.  The driver fetches each trace from
+        system_traces by its session id, retrying until the trace is complete, so there is no need to pause first.
+        */
         System.out.println("");
-
-        rs = mySession.execute(
-                "select avg(duration) as avg_duration from system_traces.sessions;");
-        System.out.println("Average server-side elapsed time per query: " + rs.one().getInt("avg_duration") + " microseconds" );
-
-        rs = mySession.execute(
-                "select avg(source_elapsed) as avg_source_elapsed from system_traces.events where activity = 'Preparing statement' allow filtering");
-        System.out.println("Average server-side elapsed time spent in query preparation phase: " + rs.one().getInt("avg_source_elapsed") + " microseconds");
+        System.out.println("Traced " + sampler.getStatementsSampled() + " of " + sampler.getStatementsSeen() + " statements");
+        System.out.println("Waiting for traces...");
+        traces.awaitFetches();
+        traces.printReport();
+
+        sampler.saveSlowKeys(SLOW_KEYS_FILE);
+        System.out.println(sampler.getSlowKeyCount() + " accounts slower than " + SLOW_KEY_MILLIS
+                + " milliseconds saved to " + SLOW_KEYS_FILE);
 
         System.out.println("");
 
@@ -11,7 +11,6 @@ import com.datastax.driver.dse.DseSession;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.util.Date;
 
 
@@ -98,40 +97,37 @@ public class Lab4 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab4.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
 
-        BatchStatement cqlInsertBatch = new BatchStatement();
+        /*
+        Rather than one logged batch holding the whole file, statements are grouped by partition
+        and sent as small UNLOGGED batches.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(mySession).setLatencyRecorder(latencies);
 
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-
-            while ((line = br.readLine()) != null) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+            while (customer.next()) {
 
-                System.out.print("\rWriting customer " + customer[0]);
+                System.out.print("\rWriting customer " + customer.getInt(0));
 
                 // Create the bound statement and set options
-                BoundStatement cqlInsertBound = cqlInsert.bind(Integer.parseInt(customer[0]), customer[1], customer[2]);
+                BoundStatement cqlInsertBound = cqlInsert.bind(customer.getInt(0), customer.getString(1), customer.getString(2));
                 cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
 
-                // Add the bound statement to the batch
+                // Add the bound statement to its partition's batch
                 cqlInsertBatch.add(cqlInsertBound);
-                cqlInsertBatch.enableTracing();
 
             }
 
-            // execute the batch statement
-            mySession.execute(cqlInsertBatch);
+            // send the batches that are still partially filled
+            cqlInsertBatch.flush();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -144,6 +140,8 @@ public class Lab4 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime/1000000 + " milliseconds");
+        cqlInsertBatch.printReport();
+        latencies.printReport("lab4-latency.hlog");
 
         System.out.println("DSE tracing does not capture durations of individual transactions in a batch");
 
@@ -5,21 +5,33 @@ In Lab 5 we examine Query topics including basic queries, iteration, and QueryBu
 */
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.PercentileSpeculativeExecutionPolicy;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.dse.DseCluster;
 import com.datastax.driver.dse.DseSession;
+import org.HdrHistogram.Histogram;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 
 import static java.lang.System.exit;
 
 public class Lab5 {
 
+    private static void printTail(String pLabel, Histogram pLatencies) {
+        System.out.println(pLabel + ": "
+                + "p50 " + pLatencies.getValueAtPercentile(50) / 1000 + ", "
+                + "p95 " + pLatencies.getValueAtPercentile(95) / 1000 + ", "
+                + "p99 " + pLatencies.getValueAtPercentile(99) / 1000 + ", "
+                + "p99.9 " + pLatencies.getValueAtPercentile(99.9) / 1000 + ", "
+                + "max " + pLatencies.getMaxValue() / 1000 + " microseconds");
+    }
+
     public static void main(String args[]) throws InterruptedException {
 
         System.out.println("Starting Lab 5");
@@ -51,7 +63,11 @@ public class Lab5 {
         /*
         Now let's build the connection.
         */
-        DseCluster myCluster = DseCluster.builder().addContactPoint(ipAddress).build();
+        DseCluster myCluster = DseCluster.builder()
+                .addContactPoint(ipAddress)
+                .withSpeculativeExecutionPolicy(
+                        new PercentileSpeculativeExecutionPolicy(new TablePercentileTracker(), 95.0, 2))
+                .build();
 
         /*
         Now we can actually connect to the cluster and create a session.
@@ -93,40 +109,41 @@ public class Lab5 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab5.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
 
-        BatchStatement cqlInsertBatch = new BatchStatement();
+        /*
+        Rather than one logged batch holding the whole file, statements are grouped by partition
+        and sent as small UNLOGGED batches.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(mySession).setLatencyRecorder(latencies);
+
+        // Every account number written goes into a filter, so that lookups of accounts that don't exist stay local
+        KeyFilter accounts = new KeyFilter(100000, 0.01);
 
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-            while ((line = br.readLine()) != null) {
+            while (customer.next()) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
-
-                System.out.print("\rWriting customer " + customer[0]);
+                System.out.print("\rWriting customer " + customer.getInt(0));
 
                 // Create the bound statement and set options
-                BoundStatement cqlInsertBound = cqlInsert.bind(Integer.parseInt(customer[0]), customer[1], customer[2]);
+                BoundStatement cqlInsertBound = cqlInsert.bind(customer.getInt(0), customer.getString(1), customer.getString(2));
                 cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
 
-                // Add the bound statement to the batch
+                // Add the bound statement to its partition's batch
                 cqlInsertBatch.add(cqlInsertBound);
-                cqlInsertBatch.enableTracing();
+                accounts.put(customer.getInt(0));
 
             }
 
-            // execute the batch statement
-            mySession.execute(cqlInsertBatch);
+            // send the batches that are still partially filled
+            cqlInsertBatch.flush();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -139,6 +156,8 @@ public class Lab5 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime/1000000 + " milliseconds");
+        cqlInsertBatch.printReport();
+        latencies.printReport("lab5-latency.hlog");
 
         /*
         Now that we have some data, let's do a very basic query.
@@ -163,16 +182,64 @@ public class Lab5 {
         // Sleep 1 second to make sure of consistency
         Thread.sleep(1000);
 
-        SimpleStatement qry_1 = new SimpleStatement(
-                "SELECT acct_no, first_name, last_name from lab5.customers WHERE acct_no = ?",
-                    Integer.parseInt(single_acct_no));
-        qry_1.setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM);
-        rs = mySession.execute(qry_1);
+        // An account number the filter has never seen certainly does not exist, and costs no round trip
+        System.out.println("Account filter: " + accounts);
+        Row oneRow = null;
+        if (accounts.mightContain(Integer.parseInt(single_acct_no))) {
+            SimpleStatement qry_1 = new SimpleStatement(
+                    "SELECT acct_no, first_name, last_name from lab5.customers WHERE acct_no = ?",
+                        Integer.parseInt(single_acct_no));
+            qry_1.setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM);
+            rs = mySession.execute(qry_1);
+            oneRow = rs.one();
+        }
 
-        Row oneRow = rs.one();
-        System.out.println("Account Number: " + oneRow.getInt("acct_no"));
-        System.out.println("First Name: " + oneRow.getString("first_name"));
-        System.out.println("Last Name: " + oneRow.getString("last_name"));
+        if (oneRow == null) {
+            System.out.println("Account Number " + single_acct_no + " not found.");
+        }
+        else {
+            System.out.println("Account Number: " + oneRow.getInt("acct_no"));
+            System.out.println("First Name: " + oneRow.getString("first_name"));
+            System.out.println("Last Name: " + oneRow.getString("last_name"));
+        }
+
+        /*
+        LOCAL_QUORUM reads wait for the slower of two replicas, so the slowest node sets the tail.  The cluster has a
+        speculative execution policy (see Lab 1): an idempotent read that takes longer than its table's p95 is sent
+        again to the next host, and the first answer wins.  Reads not marked idempotent are never hedged, so
+        alternating the two shows the tail with and without hedging, under the same load.
+        The tracker needs a few seconds of latencies before it has a p95, so we warm up first.
+         */
+        System.out.println(" ");
+        System.out.println("Comparing hedged and unhedged reads...");
+
+        PreparedStatement readOne = mySession.prepare(
+                "SELECT acct_no, first_name, last_name from lab5.customers WHERE acct_no = ?");
+        Random random = new Random();
+
+        long warmUpEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * TablePercentileTracker.INTERVAL_MILLIS);
+        while (System.nanoTime() < warmUpEnd) {
+            mySession.execute(readOne.bind(1 + random.nextInt(1000))
+                    .setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM));
+        }
+
+        LatencyRecorder unhedged = new LatencyRecorder();
+        LatencyRecorder hedged = new LatencyRecorder();
+        long hedgesBefore = myCluster.getMetrics().getErrorMetrics().getSpeculativeExecutions().getCount();
+        int readsEach = 2000;
+
+        for (int i = 0; i < 2 * readsEach; i++) {
+            Statement read = readOne.bind(1 + random.nextInt(1000))
+                    .setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM)
+                    .setIdempotent(i % 2 == 1);
+            (read.isIdempotent() ? hedged : unhedged).execute(mySession, read);
+        }
+
+        long hedges = myCluster.getMetrics().getErrorMetrics().getSpeculativeExecutions().getCount() - hedgesBefore;
+        System.out.println("Hedge rate: " + hedges + " hedges for " + readsEach + " idempotent reads ("
+                + (hedges * 100 / readsEach) + "%)");
+        printTail("Without hedging", unhedged.getHistogram(LatencyRecorder.Kind.PREPARED));
+        printTail("With hedging", hedged.getHistogram(LatencyRecorder.Kind.PREPARED));
 
         /*
         Next let's iterate over a multi-row result set.
@@ -5,19 +5,54 @@ In Lab 6 we examine Query pagination basics.
 */
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.PercentileSpeculativeExecutionPolicy;
 import com.datastax.driver.dse.DseCluster;
 import com.datastax.driver.dse.DseSession;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.System.exit;
 
 public class Lab6 {
 
+    // A stand-in for the work an application does with each row it reads, such as rendering it
+    private static final long ROW_WORK_NANOS = 100000;
+
+    private static long scanPageByPage(Session pSession, PageReader pReader) {
+
+        long rows = 0;
+        String pagingState = "";
+        do {
+            ResultSet rsPage = pReader.readPage(pSession, pagingState);
+            PagingState next = rsPage.getExecutionInfo().getPagingState();
+            pagingState = (next == null) ? "" : next.toString();
+
+            // Only this page's rows, so that iterating does not fetch the next page
+            for (int remaining = rsPage.getAvailableWithoutFetching(); remaining > 0; remaining--) {
+                rsPage.one();
+                LockSupport.parkNanos(ROW_WORK_NANOS);
+                rows++;
+            }
+        } while (!pagingState.isEmpty());
+
+        return rows;
+    }
+
+    private static long scanWithCursor(PageCursor pCursor) {
+
+        long rows = 0;
+        while (pCursor.hasNext()) {
+            pCursor.next();
+            LockSupport.parkNanos(ROW_WORK_NANOS);
+            rows++;
+        }
+        return rows;
+    }
+
     public static void main(String args[]) throws InterruptedException {
 
         System.out.println("Starting Lab 6");
@@ -45,9 +80,14 @@ public class Lab6 {
         }
 
         /*
-        Now let's build the connection.
+        Now let's build the connection.  Page reads are LOCAL_QUORUM, so a slow replica holds up every page it
+        serves; as in Lab 5, an idempotent read slower than its table's p95 is sent again to the next host.
         */
-        DseCluster myCluster = DseCluster.builder().addContactPoint(ipAddress).build();
+        DseCluster myCluster = DseCluster.builder()
+                .addContactPoint(ipAddress)
+                .withSpeculativeExecutionPolicy(
+                        new PercentileSpeculativeExecutionPolicy(new TablePercentileTracker(), 95.0, 2))
+                .build();
 
         /*
         Now we can actually connect to the cluster and create a session.
@@ -89,44 +129,41 @@ public class Lab6 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab6.customers_tiered (acct_no, first_name, last_name, tier) VALUES (?, ?, ?, ?)");
 
-        BatchStatement cqlInsertBatch = new BatchStatement();
+        /*
+        Rather than one logged batch holding the whole file, statements are grouped by partition
+        and sent as small UNLOGGED batches.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(mySession).setLatencyRecorder(latencies);
 
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-
-            while ((line = br.readLine()) != null) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+            while (customer.next()) {
 
-                System.out.print("\rWriting customer " + customer[0]);
+                System.out.print("\rWriting customer " + customer.getInt(0));
 
                 // Create the bound statement and set options
                 BoundStatement cqlInsertBound = cqlInsert.bind(
-                        Integer.parseInt(customer[0]),
-                        customer[1],
-                        customer[2],
-                        Integer.parseInt(customer[3]));
+                        customer.getInt(0),
+                        customer.getString(1),
+                        customer.getString(2),
+                        customer.getInt(3));
                 cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
 
-                // Add the bound statement to the batch
+                // Add the bound statement to its partition's batch
                 cqlInsertBatch.add(cqlInsertBound);
-                cqlInsertBatch.enableTracing();
 
             }
 
-            // execute the batch statement
-            mySession.execute(cqlInsertBatch);
+            // send the batches that are still partially filled
+            cqlInsertBatch.flush();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -139,6 +176,8 @@ public class Lab6 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime / 1000000 + " milliseconds");
+        cqlInsertBatch.printReport();
+        latencies.printReport("lab6-latency.hlog");
 
         // Sleep 3 seconds to make sure of consistency
         Thread.sleep(3000);
@@ -146,8 +185,14 @@ public class Lab6 {
         // set true when last page is retrieved
         boolean lastPage = false;
 
+        /*
+        Prepare the page query once, up front.  Every page reader is given the same registry, so every page
+        is read with a statement bound from that one PreparedStatement.
+        */
+        StatementRegistry statements = new StatementRegistry(mySession).prepareAll(Lab6PageReader.QUERY);
+
         // Now read the first page of results from a table
-        Lab6PageReader pageReader = new Lab6PageReader();
+        Lab6PageReader pageReader = new Lab6PageReader(statements);
         ResultSet rsPage = pageReader.readPage(mySession, "");
 
         /*
@@ -206,7 +251,7 @@ public class Lab6 {
 
             if (getAnotherPage.equalsIgnoreCase("y")) {
 
-                Lab6PageReader pageReaderSubsequentPage = new Lab6PageReader();
+                Lab6PageReader pageReaderSubsequentPage = new Lab6PageReader(statements);
                 rsPage = pageReaderSubsequentPage.readPage(mySession, mySavedPagingState);
                 if (rsPage.isFullyFetched()) {
                     lastPage = true;
@@ -245,11 +290,49 @@ public class Lab6 {
             }
         }
 
+        /*
+        Finally, scan every page of the query twice, doing a little work on each row.
+        The first scan asks for each page only when it has finished with the one before, so every page costs a
+        round trip of waiting.  The second uses a PageCursor, which asks for the next page while the current one
+        is still being worked on.
+        */
+        System.out.println(" ");
+        System.out.println("Scanning all pages, one page at a time...");
+        long scanStartTime = System.nanoTime();
+        long scanned = scanPageByPage(mySession, new Lab6PageReader(statements));
+        System.out.println(scanned + " rows in " + (System.nanoTime() - scanStartTime) / 1000000 + " milliseconds");
+
+        System.out.println("Scanning all pages, fetching the next page ahead...");
+        scanStartTime = System.nanoTime();
+        PageCursor cursor = new PageCursor(mySession, new Lab6PageReader(statements), "");
+        scanned = scanWithCursor(cursor);
+        System.out.println(scanned + " rows in " + (System.nanoTime() - scanStartTime) / 1000000 + " milliseconds, "
+                + cursor.getPagesPrefetched() + " of " + cursor.getPagesRead() + " pages fetched ahead");
+
+        /*
+        A fetch size of 20 makes a full scan cost a round trip for every 20 rows.  The last scan lets an
+        AdaptiveFetchSize choose each page's size from the row size and page latency it has seen, between 20
+        and 1000 rows.  Its decisions are published in the cluster's metric registry as well.
+        */
+        System.out.println("Scanning all pages, fetching the next page ahead with an adaptive fetch size...");
+        AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(Lab6PageReader.FETCH_SIZE, Lab6PageReader.FETCH_SIZE, 1000);
+        fetchSize.registerMetrics(myCluster.getMetrics().getRegistry(), "lab6-scan");
+        scanStartTime = System.nanoTime();
+        cursor = new PageCursor(mySession, new Lab6PageReader(statements).setFetchSize(fetchSize), "")
+                .setFetchSize(fetchSize);
+        scanned = scanWithCursor(cursor);
+        System.out.println(scanned + " rows in " + (System.nanoTime() - scanStartTime) / 1000000 + " milliseconds, "
+                + cursor.getPagesRead() + " pages");
+        System.out.println("Adaptive fetch size: " + fetchSize);
+        System.out.println("Hedged page reads: "
+                + myCluster.getMetrics().getErrorMetrics().getSpeculativeExecutions().getCount());
+
         /*
         Now we can close the session and terminate.
         */
         System.out.println(" ");
         System.out.println("Data retrieval complete.");
+        statements.printReport();
         System.out.println("Closing session...");
 
         mySession.close();
@@ -2,15 +2,42 @@ package com.datastax.kellett;
 
 import com.datastax.driver.core.*;
 
-public class Lab6PageReader {
+public class Lab6PageReader implements PageReader {
 
+    /*
+    The query is prepared once, by the application's StatementRegistry, and every page is read with a statement
+    bound from it, rather than a new SimpleStatement that the server would have to parse each time.
+     */
+    public static final String QUERY =
+            "SELECT acct_no, first_name, last_name, tier from lab6.customers_tiered WHERE tier = ?";
+
+    public static final int FETCH_SIZE = 20;
+
+    private final StatementRegistry statements;
+    private AdaptiveFetchSize fetchSize;
+
+    public Lab6PageReader(StatementRegistry pStatements) {
+        statements = pStatements;
+    }
+
+    /*
+    Read the page with the fetch size pFetchSize gives, instead of FETCH_SIZE.
+     */
+    public Lab6PageReader setFetchSize(AdaptiveFetchSize pFetchSize) {
+        fetchSize = pFetchSize;
+        return this;
+    }
+
+    @Override
     public ResultSet readPage(Session pSession, String pPagingStateSerialized) {
 
-        SimpleStatement qry = new SimpleStatement(
-                "SELECT acct_no, first_name, last_name, tier from lab6.customers_tiered WHERE tier = 2");
+        BoundStatement qry = statements.bind(QUERY, 2);
 
         qry.setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM);
-        qry.setFetchSize(20);
+        qry.setFetchSize((fetchSize == null) ? FETCH_SIZE : fetchSize.getFetchSize());
+
+        // A read is safe to send twice, so a slow page can be hedged by the cluster's speculative execution policy
+        qry.setIdempotent(true);
 
         /*
         If a stringified paging state was passed in, that means we are trying to read a page
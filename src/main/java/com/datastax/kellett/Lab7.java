@@ -11,7 +11,6 @@ import com.datastax.driver.dse.DseSession;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.util.Date;
 
 import static java.lang.System.exit;
@@ -88,43 +87,40 @@ public class Lab7 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab7.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
 
-        BatchStatement cqlInsertBatch = new BatchStatement();
+        /*
+        Rather than one logged batch holding the whole file, statements are grouped by partition
+        and sent as small UNLOGGED batches.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(mySession).setLatencyRecorder(latencies);
 
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-            while ((line = br.readLine()) != null) {
+            while (customer.next()) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
-
-                System.out.print("\rWriting customer " + customer[0]);
+                System.out.print("\rWriting customer " + customer.getInt(0));
 
                 // Create the bound statement and set options
                 BoundStatement cqlInsertBound = cqlInsert.bind(
-                        Integer.parseInt(customer[0]),
-                        customer[1],
-                        customer[2]);
+                        customer.getInt(0),
+                        customer.getString(1),
+                        customer.getString(2));
                 cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
 
-                // Add the bound statement to the batch
+                // Add the bound statement to its partition's batch
                 cqlInsertBatch.add(cqlInsertBound);
-                cqlInsertBatch.enableTracing();
 
             }
 
-            // execute the batch statement
-            mySession.execute(cqlInsertBatch);
+            // send the batches that are still partially filled
+            cqlInsertBatch.flush();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -137,6 +133,8 @@ public class Lab7 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime / 1000000 + " milliseconds");
+        cqlInsertBatch.printReport();
+        latencies.printReport("lab7-latency.hlog");
 
         // Sleep 3 seconds to make sure of consistency
         Thread.sleep(3000);
@@ -153,8 +151,11 @@ public class Lab7 {
         // set true when last page is retrieved
         boolean lastPage = false;
 
+        // Prepare the page query once; every page reader below shares it
+        StatementRegistry statements = new StatementRegistry(mySession).prepareAll(Lab7PageReader.QUERY);
+
         // Now read the first page of results from a table
-        Lab7PageReader pageReader = new Lab7PageReader();
+        Lab7PageReader pageReader = new Lab7PageReader(statements);
         ResultSet rsPage = pageReader.readPage(mySession, "");
 
         /*
@@ -211,7 +212,7 @@ public class Lab7 {
 
             if (getAnotherPage.equalsIgnoreCase("y")) {
 
-                Lab7PageReader pageReaderSubsequentPage = new Lab7PageReader();
+                Lab7PageReader pageReaderSubsequentPage = new Lab7PageReader(statements);
                 rsPage = pageReaderSubsequentPage.readPage(mySession, mySavedPagingState);
                 if (rsPage.isFullyFetched()) {
                     lastPage = true;
@@ -248,11 +249,30 @@ public class Lab7 {
             }
         }
 
+        /*
+        Finally, read every row of the query with a PageCursor, letting an AdaptiveFetchSize size each page from
+        the row size and page latency it has seen, rather than a fixed 200 rows.
+        */
+        System.out.println(" ");
+        System.out.println("Reading all rows with an adaptive fetch size...");
+        AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(Lab7PageReader.FETCH_SIZE, 50, 5000);
+        fetchSize.registerMetrics(myCluster.getMetrics().getRegistry(), "lab7-scan");
+        PageCursor cursor = new PageCursor(mySession, new Lab7PageReader(statements).setFetchSize(fetchSize), "")
+                .setFetchSize(fetchSize);
+        long rowCount = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            rowCount++;
+        }
+        System.out.println(rowCount + " rows in " + cursor.getPagesRead() + " pages");
+        System.out.println("Adaptive fetch size: " + fetchSize);
+
         /*
         Now we can close the session and terminate.
         */
         System.out.println(" ");
         System.out.println("Data retrieval complete.");
+        statements.printReport();
         System.out.println("Closing session...");
 
         mySession.close();
@@ -2,16 +2,37 @@ package com.datastax.kellett;
 
 import com.datastax.driver.core.*;
 
-public class Lab7PageReader {
+public class Lab7PageReader implements PageReader {
 
+    // Prepared once per session by the StatementRegistry passed in, as in Lab6PageReader
+    public static final String QUERY =
+            "SELECT acct_no, first_name, last_name from lab7.customers ORDER BY acct_no";
+
+    public static final int FETCH_SIZE = 200;
+
+    private final StatementRegistry statements;
+    private AdaptiveFetchSize fetchSize;
+
+    public Lab7PageReader(StatementRegistry pStatements) {
+        statements = pStatements;
+    }
+
+    /*
+    Read the page with the fetch size pFetchSize gives, instead of FETCH_SIZE.
+     */
+    public Lab7PageReader setFetchSize(AdaptiveFetchSize pFetchSize) {
+        fetchSize = pFetchSize;
+        return this;
+    }
+
+    @Override
     public ResultSet readPage(Session pSession, String pPagingStateSerialized) {
 
-        SimpleStatement qry = new SimpleStatement(
-                "SELECT acct_no, first_name, last_name from lab7.customers ORDER BY acct_no");
+        BoundStatement qry = statements.bind(QUERY);
 
         // Note that when using Search, allowed consistency levels are ONE and LOCAL_ONE
         qry.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
-        qry.setFetchSize(200);
+        qry.setFetchSize((fetchSize == null) ? FETCH_SIZE : fetchSize.getFetchSize());
 
         /*
         If a stringified paging state was passed in, that means we are trying to read a page
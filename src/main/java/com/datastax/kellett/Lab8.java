@@ -5,6 +5,8 @@ In Lab 8 we examine Mapper
 */
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.datastax.driver.dse.DseCluster;
 import com.datastax.driver.dse.DseSession;
 import com.datastax.driver.mapping.Mapper;
@@ -14,9 +16,15 @@ import com.datastax.driver.mapping.Result;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static java.lang.System.exit;
 
@@ -48,9 +56,14 @@ public class Lab8 {
         }
 
         /*
-        Now let's build the connection.
+        Now let's build the connection.  The ReplicaRoutingPolicy around the usual token-aware policy lets the
+        token-range scan below send each range to one of its own replicas.
         */
-        DseCluster myCluster = DseCluster.builder().addContactPoint(ipAddress).build();
+        DseCluster myCluster = DseCluster.builder()
+                .addContactPoint(ipAddress)
+                .withLoadBalancingPolicy(new ReplicaRoutingPolicy(
+                        new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build())))
+                .build();
 
         /*
         Now we can actually connect to the cluster and create a session.
@@ -94,47 +107,48 @@ public class Lab8 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab8.customers (country, membership_tier, income_tier, "
                 + "acct_no, first_name, last_name) VALUES (?, ?, ?, ?, ?, ?)");
 
-        BatchStatement cqlInsertBatch = new BatchStatement();
+        /*
+        Rather than one logged batch holding the whole file, statements are grouped by partition
+        and sent as small UNLOGGED batches.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        PartitionBatchWriter cqlInsertBatch = new PartitionBatchWriter(mySession).setLatencyRecorder(latencies);
+
+        // The primary key of every customer written, for the customer cache below
+        KeyFilter customerKeys = new KeyFilter(100000, 0.01);
 
         long startTime = System.nanoTime();
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-
-            while ((line = br.readLine()) != null) {
+        try (MappedCsvReader customer = new MappedCsvReader(csvFile)) {
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+            while (customer.next()) {
 
-                System.out.print("\rWriting customer " + customer[3]);
+                System.out.print("\rWriting customer " + customer.getInt(3));
 
                 // Create the bound statement and set options
                 BoundStatement cqlInsertBound = cqlInsert.bind(
-                        customer[0],
-                        Integer.parseInt(customer[1]),
-                        Integer.parseInt(customer[2]),
-                        Integer.parseInt(customer[3]),
-                        customer[4],
-                        customer[5]);
+                        customer.getString(0),
+                        customer.getInt(1),
+                        customer.getInt(2),
+                        customer.getInt(3),
+                        customer.getString(4),
+                        customer.getString(5));
                 cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
 
-                // Add the bound statement to the batch
+                // Add the bound statement to its partition's batch
                 cqlInsertBatch.add(cqlInsertBound);
-                cqlInsertBatch.enableTracing();
+                customerKeys.put(customer.getString(0), customer.getInt(1), customer.getInt(2), customer.getInt(3));
 
             }
 
-            // execute the batch statement
-            mySession.execute(cqlInsertBatch);
+            // send the batches that are still partially filled
+            cqlInsertBatch.flush();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -147,6 +161,7 @@ public class Lab8 {
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime / 1000000 + " milliseconds");
+        cqlInsertBatch.printReport();
 
         // Sleep 3 seconds to make sure of consistency
         Thread.sleep(3000);
@@ -171,7 +186,7 @@ public class Lab8 {
                 .setFirst_name("Test")
                 .setLast_name("Customer");
 
-        mapCustomers.save(newCustomer);
+        latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.save(newCustomer));
 
         System.out.println("... record inserted.");
 
@@ -182,7 +197,7 @@ public class Lab8 {
         Thread.sleep(1000);
 
         // Read the inserted record
-        Lab8Customer retrievedCustomer = mapCustomers.get("US", 1, 2, 9999);
+        Lab8Customer retrievedCustomer = latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.get("US", 1, 2, 9999));
 
         System.out.println(" ");
         System.out.println("Newly inserted record retrieved from database:");
@@ -200,12 +215,12 @@ public class Lab8 {
         System.out.println("About to update record...");
 
         retrievedCustomer.setFirst_name("Satisfied");
-        mapCustomers.save(retrievedCustomer);
+        latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.save(retrievedCustomer));
 
         System.out.println("... record updated.");
 
         // Read the updated record
-        Lab8Customer updatedCustomer = mapCustomers.get("US", 1, 2, 9999);
+        Lab8Customer updatedCustomer = latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.get("US", 1, 2, 9999));
 
         System.out.println(" ");
         System.out.println("Updated record retrieved from database:");
@@ -226,20 +241,50 @@ public class Lab8 {
         System.out.println(" ");
         System.out.println("About to delete record...");
 
-        mapCustomers.delete(retrievedCustomer);
+        latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.delete(retrievedCustomer));
 
         System.out.println("... record deleted.");
 
         Thread.sleep(1000);
 
         // Now we'll try to read the deleted record.  If the record does not exist, Mapper.get returns null
-        if(Objects.isNull(mapCustomers.get("US", 1, 2, 9999))) {
+        if(Objects.isNull(latencies.time(LatencyRecorder.Kind.MAPPER, () -> mapCustomers.get("US", 1, 2, 9999)))) {
             System.out.println("Tried to read, but record was successfully deleted from database.  ");
         }
         else {
             System.out.println("Unexpected result.  Record was not deleted.");
         }
 
+        /*
+        A customer read many times a second need not go to the cluster at QUORUM every time.  A CachedMapper serves
+        repeated reads from memory, and keeps the cache right when the customer is saved or deleted through it.
+         */
+        System.out.println(" ");
+        System.out.println("About to read one customer 1000 times through a cache...");
+
+        CachedMapper<Lab8Customer> cachedCustomers = new CachedMapper<>(mapCustomers,
+                customer -> Arrays.asList(customer.getCountry(), customer.getMembership_tier(),
+                        customer.getIncome_tier(), customer.getAcct_no()),
+                10000, 60000);
+        cachedCustomers.setKeyFilter(customerKeys)
+                .registerMetrics(myCluster.getMetrics().getRegistry(), "lab8-customer-cache");
+
+        cachedCustomers.save(newCustomer);
+        for (int i = 0; i < 1000; i++) {
+            cachedCustomers.get("US", 1, 2, 9999);
+        }
+        cachedCustomers.delete(newCustomer);
+        if (Objects.isNull(cachedCustomers.get("US", 1, 2, 9999))) {
+            System.out.println("Deleted through the cache, and no longer found in it.");
+        }
+
+        // A customer that was never written is ruled out by the key filter, without a query or a cache entry
+        if (Objects.isNull(cachedCustomers.get("US", 1, 2, 123456789))) {
+            System.out.println("Customer 123456789 not found.");
+        }
+        System.out.println("Customer cache: " + cachedCustomers);
+        System.out.println("Customer key filter: " + customerKeys);
+
         /*
         Basic CRUD operations are working.  Now let's think about multi-row result sets
          */
@@ -252,10 +297,11 @@ public class Lab8 {
         Lab8CustomerAccessor customerAccessor = mapManager.createAccessor(Lab8CustomerAccessor.class);
 
         // Now fill in the parameters and execute the query
-        Result<Lab8Customer> qryResults = customerAccessor.getPartialPartition(
+        Result<Lab8Customer> qryResults = latencies.time(LatencyRecorder.Kind.ACCESSOR,
+                () -> customerAccessor.getPartialPartition(
                                             "US",
                                             1,
-                                            2);
+                                            2));
 
         // Now print the results
         for (Lab8Customer row : qryResults) {
@@ -273,6 +319,73 @@ public class Lab8 {
                             + row.getLast_name());
         }
 
+        /*
+        The whole table, read as a stream of customers.  No more than 1000 customers are held in memory at once,
+        however large the table, and only the counts per country are kept.
+         */
+        System.out.println(" ");
+        System.out.println("Counting all customers by country, streaming the whole table");
+        Map<String, Long> customersByCountry = PagedStream.of(customerAccessor.getAll(), 1000)
+                .collect(Collectors.groupingBy(Lab8Customer::getCountry, TreeMap::new, Collectors.counting()));
+        customersByCountry.forEach((country, count) -> System.out.println(country + " " + count));
+
+        /*
+        Every tier 2 customer, in any country: one partition per country, all read at once (at most 16 queries
+        outstanding) and merged into income_tier, acct_no order as they are read.
+         */
+        System.out.println(" ");
+        System.out.println("Reading tier 2 customers of every country, in income tier and account order");
+        Iterator<Lab8Customer> tier2 = new Lab8PartitionReader(customerAccessor, 16).read(
+                Lab8PartitionReader.product(customersByCountry.keySet(), Collections.singletonList(2)));
+        long tier2Count = 0;
+        while (tier2.hasNext()) {
+            Lab8Customer customer = tier2.next();
+            if (tier2Count++ < 10) {
+                System.out.println(customer.getIncome_tier() + " " + customer.getAcct_no() + " " + customer.getCountry());
+            }
+        }
+        System.out.println(tier2Count + " tier 2 customers");
+
+        /*
+        getAll() is one query, walking the ring from one coordinator.  A TokenRangeScanner reads the same rows as
+        many token ranges at once, each from one of its replicas.
+         */
+        System.out.println(" ");
+        System.out.println("Counting all customers with a parallel token-range scan");
+        long scanStartTime = System.nanoTime();
+        Map<String, Long> scannedByCountry = new TreeMap<>();
+        long scannedRows = new TokenRangeScanner(mySession, "lab8", "customers", "country", "membership_tier")
+                .setSplits(32)
+                .scan(row -> scannedByCountry.merge(row.getString("country"), 1L, Long::sum));
+        System.out.println(scannedRows + " customers in " + (System.nanoTime() - scanStartTime) / 1000000
+                + " milliseconds, same counts as the single query: " + scannedByCountry.equals(customersByCountry));
+
+        /*
+        The same scan, written to local files: one CSV file per token range, in the shape of lab8.csv.  If this is
+        interrupted, running it again carries on from the ranges recorded in lab8-export/checkpoint.
+         */
+        System.out.println(" ");
+        System.out.println("Exporting all customers to lab8-export");
+        try {
+            long exportStartTime = System.nanoTime();
+            List<TableExporter.RangeResult> exported = new TableExporter(
+                    new TokenRangeScanner(mySession, "lab8", "customers", "country", "membership_tier"),
+                    "lab8-export",
+                    TableExporter.Format.CSV).export();
+            TableExporter.printReport(exported, System.nanoTime() - exportStartTime);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+
+        // Stopping early stops reading pages too
+        PagedStream.of(customerAccessor.getAll(), 1000)
+                .filter(customer -> Objects.equals(customer.getMembership_tier(), 3))
+                .findFirst()
+                .ifPresent(customer -> System.out.println("First tier 3 customer: " + customer.getAcct_no()));
+
+        // Batched ingest, mapper CRUD and accessor latencies, side by side
+        latencies.printReport("lab8-latency.hlog");
+
         /*
         Now we can close the session and terminate.
         */
@@ -3,16 +3,25 @@ package com.datastax.kellett;
 import com.datastax.driver.mapping.Result;
 import com.datastax.driver.mapping.annotations.Accessor;
 import com.datastax.driver.mapping.annotations.Query;
+import com.datastax.driver.mapping.annotations.QueryParameters;
+import com.google.common.util.concurrent.ListenableFuture;
 
 @Accessor
 public interface Lab8CustomerAccessor {
 
+    // A whole-table read, so pages are kept small enough to stream through a PagedStream
     @Query("SELECT * FROM lab8.customers;")
+    @QueryParameters(fetchSize = 500)
     Result<Lab8Customer> getAll();
 
     @Query("SELECT * FROM lab8.customers WHERE country = ? and membership_tier = ?")
     Result<Lab8Customer> getPartition(String country, Integer membership_tier);
 
+    // Used by Lab8PartitionReader to query many partitions at once
+    @Query("SELECT * FROM lab8.customers WHERE country = ? and membership_tier = ?")
+    @QueryParameters(fetchSize = 500)
+    ListenableFuture<Result<Lab8Customer>> getPartitionAsync(String country, Integer membership_tier);
+
     @Query("SELECT * FROM lab8.customers WHERE country = ? and membership_tier = ? and income_tier = ?")
     Result<Lab8Customer> getPartialPartition(String country, Integer membership_tier, Integer income_tier);
 }
@@ -0,0 +1,181 @@
+package com.datastax.kellett;
+
+/*
+Lab8PartitionReader reads many lab8.customers partitions at once (scatter), and merges their rows into one sequence
+in clustering order, income_tier then acct_no (gather).
+
+Answering "every tier 2 customer, in any country" with getPartition() means one query per country, each waiting for
+the one before.  Here the partition queries go out concurrently through the accessor's getPartitionAsync(), with
+no more than maxInFlight outstanding: each query that completes starts the next, so the caller is never blocked
+while they are sent.  Each partition is already in clustering order, so a k-way merge (MergingIterator) of the
+partitions gives the whole result in that order.
+
+The rows come out as they are merged, rather than as one list at the end.  A merge cannot emit its first row before
+every partition's first page is in, since any of them could hold the smallest row, but after that each partition's
+later pages are fetched as the merge reaches them, through a PagedStream, so at most maxBufferedRows rows of each
+partition are held in memory.
+*/
+
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.mapping.Result;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class Lab8PartitionReader {
+
+    public static final Comparator<Lab8Customer> CLUSTERING_ORDER =
+            Comparator.comparing(Lab8Customer::getIncome_tier).thenComparing(Lab8Customer::getAcct_no);
+
+    public static final int DEFAULT_MAX_BUFFERED_ROWS = 1000;
+
+    /*
+    The partition key of lab8.customers.
+     */
+    public static class PartitionKey {
+
+        private final String country;
+        private final Integer membershipTier;
+
+        public PartitionKey(String pCountry, Integer pMembershipTier) {
+            country = pCountry;
+            membershipTier = pMembershipTier;
+        }
+
+        public String getCountry() {
+            return country;
+        }
+
+        public Integer getMembershipTier() {
+            return membershipTier;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + country + ", " + membershipTier + ")";
+        }
+    }
+
+    private final Lab8CustomerAccessor accessor;
+    private final int maxInFlight;
+
+    private int maxBufferedRows = DEFAULT_MAX_BUFFERED_ROWS;
+
+    public Lab8PartitionReader(Lab8CustomerAccessor pAccessor, int pMaxInFlight) {
+        accessor = pAccessor;
+        maxInFlight = pMaxInFlight;
+    }
+
+    // The most rows held in memory for each partition
+    public Lab8PartitionReader setMaxBufferedRows(int pMaxBufferedRows) {
+        maxBufferedRows = pMaxBufferedRows;
+        return this;
+    }
+
+    /*
+    Every partition key made of one of pCountries and one of pMembershipTiers.
+     */
+    public static List<PartitionKey> product(Collection<String> pCountries, Collection<Integer> pMembershipTiers) {
+
+        List<PartitionKey> keys = new ArrayList<>(pCountries.size() * pMembershipTiers.size());
+        for (String country : pCountries) {
+            for (Integer membershipTier : pMembershipTiers) {
+                keys.add(new PartitionKey(country, membershipTier));
+            }
+        }
+        return keys;
+    }
+
+    /*
+    The customers of all of pKeys' partitions, in clustering order.  The queries are sent straight away; the
+    iterator waits for them when it is first used.
+     */
+    public Iterator<Lab8Customer> read(List<PartitionKey> pKeys) {
+
+        List<SettableFuture<Result<Lab8Customer>>> partitions = new ArrayList<>(pKeys.size());
+        for (int i = 0; i < pKeys.size(); i++) {
+            partitions.add(SettableFuture.create());
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(maxInFlight, pKeys.size()); i++) {
+            sendNext(pKeys, partitions, next);
+        }
+
+        return new Iterator<Lab8Customer>() {
+
+            private Iterator<Lab8Customer> merged;
+
+            @Override
+            public boolean hasNext() {
+                if (merged == null) {
+                    merged = merge(partitions);
+                }
+                return merged.hasNext();
+            }
+
+            @Override
+            public Lab8Customer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return merged.next();
+            }
+        };
+    }
+
+    public Stream<Lab8Customer> stream(List<PartitionKey> pKeys) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(read(pKeys),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // Send the next partition's query, and the one after that once it completes
+    private void sendNext(List<PartitionKey> pKeys, List<SettableFuture<Result<Lab8Customer>>> pPartitions,
+                          AtomicInteger pNext) {
+
+        int i = pNext.getAndIncrement();
+        if (i >= pKeys.size()) {
+            return;
+        }
+
+        ListenableFuture<Result<Lab8Customer>> partition;
+        try {
+            partition = accessor.getPartitionAsync(pKeys.get(i).getCountry(), pKeys.get(i).getMembershipTier());
+        }
+        catch (DriverException e) {
+            pPartitions.get(i).setException(e);
+            sendNext(pKeys, pPartitions, pNext);
+            return;
+        }
+        pPartitions.get(i).setFuture(partition);
+        partition.addListener(() -> sendNext(pKeys, pPartitions, pNext), MoreExecutors.directExecutor());
+    }
+
+    private Iterator<Lab8Customer> merge(List<SettableFuture<Result<Lab8Customer>>> pPartitions) {
+
+        List<Iterator<Lab8Customer>> sources = new ArrayList<>(pPartitions.size());
+        for (SettableFuture<Result<Lab8Customer>> partition : pPartitions) {
+            try {
+                sources.add(PagedStream.of(Uninterruptibles.getUninterruptibly(partition), maxBufferedRows).iterator());
+            }
+            catch (ExecutionException e) {
+                throw DriverErrors.propagate(e.getCause());
+            }
+        }
+        return new MergingIterator<>(sources, CLUSTERING_ORDER);
+    }
+}
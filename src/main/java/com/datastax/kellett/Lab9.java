@@ -11,10 +11,9 @@ import com.datastax.driver.dse.DseSession;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.FileReader;
-import java.time.LocalTime;
 import java.util.Date;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
@@ -27,31 +26,65 @@ import static java.lang.System.exit;
 
 public class Lab9 {
 
-    private static List<ResultSetFuture> sendQueries(Session session, String query, String[] account_numbers) {
+    private static List<ResultSetFuture> sendQueries(StatementRegistry statements, String query, String[] account_numbers) {
 
         // Start a query for each account number in the list, and return a list of futures.
+        // Every query is bound from the same prepared statement, rather than being a new string the server must parse.
         List<ResultSetFuture> futures = Lists.newArrayListWithExpectedSize(account_numbers.length);
 
-        for (Object account_number : account_numbers)
-            futures.add(session.executeAsync(new String(query + " " + account_number)));
+        for (String account_number : account_numbers)
+            futures.add(statements.executeAsync(query, Integer.valueOf(account_number)));
 
         return futures;
     }
 
-    private static Future<List<ResultSet>> queryAllAsList( Session session, String query, String[] account_numbers) {
+    private static Future<List<ResultSet>> queryAllAsList( StatementRegistry statements, String query, String[] account_numbers) {
 
         // List of Futures is available when ALL queries are complete.
-        List<ResultSetFuture> futures = sendQueries(session, query, account_numbers);
+        List<ResultSetFuture> futures = sendQueries(statements, query, account_numbers);
         return Futures.successfulAsList((futures));
     }
 
-    private static List<ListenableFuture<ResultSet>> queryAllAsAvailable(Session session, String query, String[] account_numbers) {
+    private static List<ListenableFuture<ResultSet>> queryAllAsAvailable(StatementRegistry statements, String query, String[] account_numbers) {
 
         // Similar to sendQueries() above, but each future is available as soon as it completes.
-        List<ResultSetFuture> futures = sendQueries(session, query, account_numbers);
+        List<ResultSetFuture> futures = sendQueries(statements, query, account_numbers);
         return Futures.inCompletionOrder(futures);
     }
 
+    private static AsyncWritePipeline writeAllAsync(Session pSession, PreparedStatement pInsert, String pCsvFile, int pMaxInFlight)
+            throws InterruptedException, ExecutionException {
+
+        // Writes that cannot be retried, or time out twice more after the first attempt, end up here
+        return writeAllAsync(pInsert, pCsvFile, new AsyncWritePipeline(pSession, pMaxInFlight, 2,
+                (statement, error) -> System.out.println("Write failed: " + error)));
+    }
+
+    private static AsyncWritePipeline writeAllAsync(PreparedStatement pInsert, String pCsvFile, AsyncWritePipeline pPipeline)
+            throws InterruptedException, ExecutionException {
+
+        try (MappedCsvReader customer = new MappedCsvReader(pCsvFile)) {
+
+            while (customer.next()) {
+
+                // Create the bound statement and set options
+                BoundStatement cqlInsertBound = pInsert.bind(customer.getInt(0), customer.getString(1), customer.getString(2));
+                cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+
+                // Only blocks when the pipeline's in-flight limit has been reached
+                pPipeline.submit(cqlInsertBound);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // A single future tells us when every write has completed
+        pPipeline.drain().get();
+
+        return pPipeline;
+    }
+
     public static void main(String args[]) throws InterruptedException, ExecutionException {
 
         System.out.println("Starting Lab 9");
@@ -122,10 +155,6 @@ public class Lab9 {
         System.out.println("");
         System.out.println("About to read csv and write to database...");
 
-        //BufferedReader br = null;
-        String line = "";
-        String csvSplitBy = ",";
-
         PreparedStatement cqlInsert = mySession.prepare(
                 "INSERT INTO lab9.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
 
@@ -133,46 +162,56 @@ public class Lab9 {
         Date startDateTime = new Date();
         System.out.println("Start time: " + startDateTime);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-
-            while ((line = br.readLine()) != null) {
+        /*
+        Write every customer asynchronously, with up to 64 writes in flight at once.
+        The pipeline gets its permits back from completion callbacks, so we never wait on an individual future.
+        Every attempt's latency is recorded, for comparison with the synchronous labs.
+        */
+        LatencyRecorder latencies = new LatencyRecorder();
+        AsyncWritePipeline pipeline = writeAllAsync(cqlInsert, csvFile, new AsyncWritePipeline(mySession, 64, 2,
+                (statement, error) -> System.out.println("Write failed: " + error))
+                .setLatencyRecorder(latencies));
 
-                // use comma as separator
-                String[] customer = line.split(csvSplitBy);
+        System.out.println("Writes succeeded: " + pipeline.getSucceeded()
+                + ", retried: " + pipeline.getRetried()
+                + ", failed: " + pipeline.getFailed());
+        latencies.printReport("lab9-latency.hlog");
 
-                // Create the bound statement and set options
-                BoundStatement cqlInsertBound = cqlInsert.bind(Integer.parseInt(customer[0]), customer[1], customer[2]);
-                cqlInsertBound.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+        /*
+        Now measure throughput at several in-flight limits.  An INSERT is an upsert, so loading the same
+        file again for each limit is harmless.
+        */
+        System.out.println("");
+        System.out.println("Measuring write throughput at several in-flight limits...");
 
-                if(Integer.parseInt(customer[0]) < 101) {
-                    System.out.println("Beginning write for customer "
-                            + customer[0]
-                            + " at "
-                            + LocalTime.now());
-
-                    ResultSetFuture future = mySession.executeAsync(cqlInsertBound);
-                    while (!future.isDone()) {
-                        //System.out.print("Doing something else while writing customer "
-                         //       + customer[0]);
-                        System.out.print(".");
-                        //System.out.println(mySession.execute(cqlCountBound).toString());
-                        Thread.sleep(10);
-                    }
-                    System.out.println("");
-                    System.out.println("Completed writing customer "
-                                        + customer[0]
-                                        + " at "
-                                        + LocalTime.now());
-
-                    rs = future.get();
-                    System.out.println("Insert successful: " + rs.wasApplied());
-                }
-            }
+        for (int maxInFlight : new int[] {1, 8, 32, 128, 512}) {
+            long limitStartTime = System.nanoTime();
+            AsyncWritePipeline measured = writeAllAsync(mySession, cqlInsert, csvFile, maxInFlight);
+            long limitElapsedTime = System.nanoTime() - limitStartTime;
 
-        } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("In-flight limit " + maxInFlight + ": "
+                    + (measured.getSucceeded() * 1000000000L / Math.max(1, limitElapsedTime)) + " rows/second, "
+                    + measured.getFailed() + " failed");
         }
 
+        /*
+        Finally let the in-flight limit find its own level.  The adaptive limiter raises the limit while latency
+        stays near the best we've seen, and backs off when latency climbs or the cluster times out.
+        Its state is also published in the driver's metric registry, so it shows up over JMX.
+        */
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 1024);
+        limiter.registerMetrics(myCluster.getMetrics().getRegistry(), "lab9-adaptive-limiter");
+
+        long adaptiveStartTime = System.nanoTime();
+        AsyncWritePipeline adaptive = writeAllAsync(cqlInsert, csvFile, new AsyncWritePipeline(mySession, limiter, 2,
+                (statement, error) -> System.out.println("Write failed: " + error)));
+        long adaptiveElapsedTime = System.nanoTime() - adaptiveStartTime;
+
+        System.out.println("Adaptive in-flight limit: "
+                + (adaptive.getSucceeded() * 1000000000L / Math.max(1, adaptiveElapsedTime)) + " rows/second, "
+                + adaptive.getFailed() + " failed");
+        System.out.println("Limiter state: " + limiter);
+
         System.out.println("");
         System.out.println("... finished reading csv and writing to database.");
 
@@ -186,12 +225,15 @@ public class Lab9 {
         // Now we'll query for a specific 20 of the records we just inserted.
         String[] account_numbers = {"5", "10", "15", "20", "25", "30", "35", "40", "45", "50",
                                     "55", "60", "65", "70", "75", "80", "85", "90", "95", "100"};
-        String query = "SELECT * FROM lab9.customers WHERE acct_no =";
+        String query = "SELECT * FROM lab9.customers WHERE acct_no = ?";
+
+        // Prepared once, before any query is sent, and shared by every query below
+        StatementRegistry statements = new StatementRegistry(mySession).prepareAll(query);
 
         // This will give us the results, in the order we submitted them, when ALL futures are complete.
         System.out.println("");
         System.out.println("Show query results when all async queries are complete.");
-        Future<List<ResultSet>> future = queryAllAsList(mySession, query, account_numbers);
+        Future<List<ResultSet>> future = queryAllAsList(statements, query, account_numbers);
 
         List<ResultSet> rsList = future.get();
 
@@ -209,7 +251,7 @@ public class Lab9 {
         // Now we do a similar query, but we get each result as soon as it is available
         System.out.println("");
         System.out.println("Show query results as soon as they are available.");
-        List<ListenableFuture<ResultSet>> futuresAsAvailable = queryAllAsAvailable(mySession, query, account_numbers);
+        List<ListenableFuture<ResultSet>> futuresAsAvailable = queryAllAsAvailable(statements, query, account_numbers);
 
         for (ListenableFuture<ResultSet> futureAvailable : futuresAsAvailable) {
             ResultSet rsAvailable = futureAvailable.get();
@@ -223,12 +265,62 @@ public class Lab9 {
             });
         }
 
+        /*
+        Both of the approaches above hold complete results in memory.  Streaming a query instead pulls its pages
+        as they are consumed, with no more than 1000 rows buffered, so this scan of the whole table needs the same
+        heap whether the table holds a hundred customers or a hundred million.
+        */
+        System.out.println("");
+        System.out.println("Stream every customer, then just the first five.");
+        Statement scan = new SimpleStatement("SELECT acct_no, last_name FROM lab9.customers")
+                .setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+        long customerCount = PagedStream.query(mySession, scan, 1000).count();
+        System.out.println(customerCount + " customers streamed");
+
+        // limit() stops the stream after five rows, and with it the reading of pages
+        PagedStream.query(mySession, scan, 1000)
+                .limit(5)
+                .forEach(row -> System.out.println(row.getInt("acct_no") + " " + row.getString("last_name")));
+
+        /*
+        Real callers look up hundreds of keys, not 20.  A MultiGetReader groups the keys by the replicas that hold
+        them, and reads each group either with one small IN query or with a single-key read per key, whichever
+        its measured latencies say is faster.  Keys with no row are reported, not silently left out.
+        */
+        System.out.println("");
+        System.out.println("Look up 300 account numbers, some of which do not exist.");
+        List<Integer> lookups = new ArrayList<>();
+        for (int acct = 1; acct <= 300; acct++) {
+            lookups.add(acct * 5);
+        }
+        MultiGetReader<Integer> multiGet = new MultiGetReader<>(mySession, "lab9", "customers", "acct_no", Integer.class);
+        MultiGetReader.Result<Integer> customers = multiGet.get(lookups);
+        System.out.println(customers);
+        System.out.println("Missing account numbers: " + customers.getMissing());
+
+        /*
+        Many requests for the same hot account at the same moment.  Through a ReadCoalescer, identical reads that
+        overlap share one query, and a result stays shared for 50 milliseconds after it arrives.
+        */
+        System.out.println("");
+        System.out.println("Send 1000 concurrent reads of account 5, coalescing identical ones.");
+        try (ReadCoalescer coalescer = new ReadCoalescer(mySession, 50)) {
+            coalescer.registerMetrics(myCluster.getMetrics().getRegistry(), "lab9-read-coalescer");
+            List<ListenableFuture<List<Row>>> hotReads = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                hotReads.add(coalescer.readAsync(statements.bind(query, 5)));
+            }
+            Futures.allAsList(hotReads).get();
+            System.out.println("Read coalescer: " + coalescer);
+        }
+
         long endTime = System.nanoTime();
         long elapsedTime = endTime - startTime;
         Date endDateTime = new Date();
         System.out.println("");
         System.out.println("End time: " + endDateTime);
         System.out.println("Elapsed time: " + elapsedTime / 1000000 + " milliseconds");
+        statements.printReport();
 
         /*
         Now we can close the session and terminate.
@@ -0,0 +1,245 @@
+package com.datastax.kellett;
+
+/*
+LatencyRecorder records the latency of every request into HdrHistograms, one per kind of statement.
+
+Total elapsed time divided by the number of rows only gives the mean, and the mean says nothing about the slow
+requests that users actually notice.  An HdrHistogram keeps the full distribution (to 3 significant digits) in a
+fixed amount of memory, so percentiles can be read off at the end of a run.
+
+Each thread records into its own SingleWriterRecorder, which is wait-free for the writing thread; this matters
+because async completions are recorded on the driver's I/O threads.  The per-thread histograms are merged into the
+totals only when a report is asked for.
+
+Requests are timed from just before the call to the driver until the response (or error) arrives, so failed
+requests are recorded too.  writeLog() exports the histograms as an HDR log, tagged by statement kind, so that runs
+of different labs can be compared with HdrHistogram's HistogramLogProcessor or plotting tools.
+*/
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class LatencyRecorder {
+
+    public enum Kind { SIMPLE, PREPARED, BATCH, MAPPER, ACCESSOR }
+
+    // Anything slower than a minute is recorded as a minute
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final Kind[] KINDS = Kind.values();
+
+    // Every thread's recorders, one per kind, so that they can be merged
+    private final Queue<SingleWriterRecorder[]> threadRecorders = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<SingleWriterRecorder[]> recorders = ThreadLocal.withInitial(this::newThreadRecorders);
+
+    // Guarded by this
+    private final Histogram[] totals = new Histogram[KINDS.length];
+
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    public LatencyRecorder() {
+        for (Kind kind : KINDS) {
+            totals[kind.ordinal()] = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /*
+    The kind of a statement, for statements executed directly rather than through the mapper.
+     */
+    public static Kind kindOf(Statement pStatement) {
+
+        if (pStatement instanceof BatchStatement) {
+            return Kind.BATCH;
+        }
+        if (pStatement instanceof BoundStatement) {
+            return Kind.PREPARED;
+        }
+        return Kind.SIMPLE;
+    }
+
+    public void record(Kind pKind, long pLatencyNanos) {
+        recorders.get()[pKind.ordinal()].recordValue(Math.max(0, Math.min(pLatencyNanos, HIGHEST_TRACKABLE_NANOS)));
+    }
+
+    /*
+    Session.execute, timed.
+     */
+    public ResultSet execute(Session pSession, Statement pStatement) {
+
+        long startTime = System.nanoTime();
+        try {
+            return pSession.execute(pStatement);
+        }
+        finally {
+            record(kindOf(pStatement), System.nanoTime() - startTime);
+        }
+    }
+
+    /*
+    Session.executeAsync, timed until the future completes.
+     */
+    public ResultSetFuture executeAsync(Session pSession, Statement pStatement) {
+
+        final Kind kind = kindOf(pStatement);
+        final long startTime = System.nanoTime();
+
+        ResultSetFuture future = pSession.executeAsync(pStatement);
+
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(ResultSet pResult) {
+                record(kind, System.nanoTime() - startTime);
+            }
+
+            @Override
+            public void onFailure(Throwable pError) {
+                record(kind, System.nanoTime() - startTime);
+            }
+        }, MoreExecutors.directExecutor());
+
+        return future;
+    }
+
+    /*
+    Time a call that executes its own statements, such as a Mapper or Accessor method.
+     */
+    public <T> T time(Kind pKind, Supplier<T> pCall) {
+
+        long startTime = System.nanoTime();
+        try {
+            return pCall.get();
+        }
+        finally {
+            record(pKind, System.nanoTime() - startTime);
+        }
+    }
+
+    public void time(Kind pKind, Runnable pCall) {
+
+        long startTime = System.nanoTime();
+        try {
+            pCall.run();
+        }
+        finally {
+            record(pKind, System.nanoTime() - startTime);
+        }
+    }
+
+    /*
+    Everything recorded so far for pKind, by all threads.  The returned histogram is a copy.
+     */
+    public synchronized Histogram getHistogram(Kind pKind) {
+        merge();
+        return totals[pKind.ordinal()].copy();
+    }
+
+    public synchronized void printReport() {
+
+        merge();
+
+        System.out.println("");
+        System.out.println("Latency (microseconds)");
+        System.out.println(String.format("  %-9s %10s %8s %8s %8s %8s %8s %8s",
+                "kind", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+
+        for (Kind kind : KINDS) {
+            Histogram histogram = totals[kind.ordinal()];
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.println(String.format("  %-9s %10d %8d %8d %8d %8d %8d %8d",
+                    kind,
+                    histogram.getTotalCount(),
+                    (long) histogram.getMean() / 1000,
+                    histogram.getValueAtPercentile(50) / 1000,
+                    histogram.getValueAtPercentile(90) / 1000,
+                    histogram.getValueAtPercentile(99) / 1000,
+                    histogram.getValueAtPercentile(99.9) / 1000,
+                    histogram.getMaxValue() / 1000));
+        }
+    }
+
+    /*
+    Print the percentile table, then write the HDR log to pLogFile.  A log that cannot be written is reported, not thrown.
+     */
+    public void printReport(String pLogFile) {
+
+        printReport();
+        try {
+            writeLog(pLogFile);
+            System.out.println("Latency histograms written to " + pLogFile);
+        }
+        catch (IOException e) {
+            System.out.println("Could not write " + pLogFile + ": " + e);
+        }
+    }
+
+    /*
+    Write one histogram per statement kind (values in nanoseconds) to pFile in HDR log format.
+     */
+    public synchronized void writeLog(String pFile) throws IOException {
+
+        merge();
+
+        long endTimeMillis = System.currentTimeMillis();
+        HistogramLogWriter writer = new HistogramLogWriter(pFile);
+        try {
+            writer.outputLogFormatVersion();
+            writer.outputStartTime(startTimeMillis);
+            writer.setBaseTime(startTimeMillis);
+            writer.outputLegend();
+
+            for (Kind kind : KINDS) {
+                Histogram histogram = totals[kind.ordinal()].copy();
+                if (histogram.getTotalCount() == 0) {
+                    continue;
+                }
+                histogram.setTag(kind.name());
+                histogram.setStartTimeStamp(startTimeMillis);
+                histogram.setEndTimeStamp(endTimeMillis);
+                writer.outputIntervalHistogram(histogram);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private SingleWriterRecorder[] newThreadRecorders() {
+
+        SingleWriterRecorder[] threadRecorder = new SingleWriterRecorder[KINDS.length];
+        for (int i = 0; i < threadRecorder.length; i++) {
+            threadRecorder[i] = new SingleWriterRecorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+        }
+        threadRecorders.add(threadRecorder);
+        return threadRecorder;
+    }
+
+    // Move whatever each thread has recorded since the last merge into the totals
+    private void merge() {
+
+        for (SingleWriterRecorder[] threadRecorder : threadRecorders) {
+            for (Kind kind : KINDS) {
+                totals[kind.ordinal()].add(threadRecorder[kind.ordinal()].getIntervalHistogram());
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.datastax.kellett;
+
+/*
+MappedCsvReader is a low-allocation replacement for the BufferedReader + String.split() loop used by the labs.
+
+The file is memory-mapped with NIO and scanned byte by byte for delimiters.  For each record we only remember
+where each field starts and ends, so numeric columns can be parsed straight out of the mapped buffer with getInt(),
+and a String is only created when a text column is asked for with getString().
+
+A reader can also be limited to a byte range of the file, which is how ParallelCsvLoader hands out splits.
+A range reader owns every record that STARTS inside its range, so adjacent ranges never share or lose a record.
+
+Like the split(",") loops it replaces, this reader does not handle quoted fields or embedded delimiters.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class MappedCsvReader implements Closeable {
+
+    /*
+    A single MappedByteBuffer can address at most Integer.MAX_VALUE bytes, so larger files are mapped
+    one region at a time.  Each new region starts at the beginning of the record that did not fit in the last one.
+     */
+    private static final long MAX_REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final byte delimiter;
+    private final long endOffset;
+
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    // Position (relative to the region) of the next byte to scan
+    private int position;
+
+    // Field boundaries of the current record, relative to the region.  Grown on demand, never shrunk.
+    private int[] fieldStarts = new int[8];
+    private int[] fieldEnds = new int[8];
+    private int fieldCount;
+
+    // Scratch space for decoding text columns
+    private byte[] scratch = new byte[64];
+
+    private long recordCount;
+    private long recordOffset;
+
+    public MappedCsvReader(String pCsvFile) throws IOException {
+        this(Paths.get(pCsvFile), ',');
+    }
+
+    public MappedCsvReader(Path pCsvFile, char pDelimiter) throws IOException {
+        this(pCsvFile, pDelimiter, 0, Long.MAX_VALUE);
+    }
+
+    /*
+    Read only the records that start at a byte offset in [pStartOffset, pEndOffset).
+     */
+    public MappedCsvReader(Path pCsvFile, char pDelimiter, long pStartOffset, long pEndOffset) throws IOException {
+        this.channel = FileChannel.open(pCsvFile, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.delimiter = (byte) pDelimiter;
+        this.endOffset = Math.min(pEndOffset, fileSize);
+
+        if (pStartOffset <= 0) {
+            mapRegion(0);
+        }
+        else if (pStartOffset < fileSize) {
+            /*
+            Back up one byte and skip through the first newline.  If the range starts exactly at the
+            beginning of a record this skips only the previous record's newline; otherwise it skips the
+            tail of a record that belongs to the previous range.
+             */
+            mapRegion(pStartOffset - 1);
+            int lineEnd = indexOfNewline(0, region.limit());
+            position = (lineEnd < 0) ? region.limit() : lineEnd + 1;
+        }
+        else {
+            mapRegion(fileSize);
+        }
+    }
+
+    /*
+    Split a file into pSplits byte ranges of roughly equal size.  The boundaries are NOT newline-aligned;
+    range readers take care of that, so any set of contiguous ranges covers every record exactly once.
+     */
+    public static long[] splitOffsets(long pFileSize, int pSplits) {
+
+        long[] offsets = new long[pSplits + 1];
+        for (int i = 0; i <= pSplits; i++) {
+            offsets[i] = pFileSize * i / pSplits;
+        }
+        return offsets;
+    }
+
+    /*
+    Advance to the next record.  Returns false when the end of the file has been reached.
+    Blank lines are skipped.
+     */
+    public boolean next() throws IOException {
+
+        while (true) {
+
+            int limit = region.limit();
+
+            // A range reader stops at the first record that starts outside its range
+            if (regionStart + position >= endOffset) {
+                fieldCount = 0;
+                return false;
+            }
+
+            // Make sure the whole record is inside the current region, remapping if necessary
+            int lineEnd = indexOfNewline(position, limit);
+            if (lineEnd < 0 && regionStart + limit < fileSize) {
+                if (position == 0) {
+                    throw new IOException("Record at offset " + regionStart + " is longer than " + MAX_REGION_SIZE + " bytes");
+                }
+                mapRegion(regionStart + position);
+                continue;
+            }
+
+            if (position >= limit) {
+                fieldCount = 0;
+                return false;
+            }
+
+            int recordEnd = (lineEnd < 0) ? limit : lineEnd;
+            int nextPosition = (lineEnd < 0) ? limit : lineEnd + 1;
+
+            // Tolerate Windows line endings
+            if (recordEnd > position && region.get(recordEnd - 1) == '\r') {
+                recordEnd--;
+            }
+
+            if (recordEnd == position) {
+                position = nextPosition;
+                continue;
+            }
+
+            splitFields(position, recordEnd);
+            recordOffset = regionStart + position;
+            position = nextPosition;
+            recordCount++;
+            return true;
+        }
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    // The number of records read so far, counted from the start of this reader's range
+    public long recordCount() {
+        return recordCount;
+    }
+
+    // Byte offset in the file of the current record, which locates it whatever range the reader was given
+    public long recordOffset() {
+        return recordOffset;
+    }
+
+    /*
+    Parse an int directly from the mapped bytes, with no intermediate String.
+     */
+    public int getInt(int pField) {
+
+        int start = fieldStarts[checkField(pField)];
+        int end = fieldEnds[pField];
+
+        if (start == end) {
+            throw new NumberFormatException("Empty field " + pField + " in record " + recordCount);
+        }
+
+        boolean negative = false;
+        byte first = region.get(start);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            start++;
+            if (start == end) {
+                throw new NumberFormatException("Malformed int in field " + pField + " of record " + recordCount);
+            }
+        }
+
+        // Accumulate as a negative number so that Integer.MIN_VALUE can be represented
+        int result = 0;
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int multiplyLimit = limit / 10;
+
+        for (int i = start; i < end; i++) {
+            int digit = region.get(i) - '0';
+            if (digit < 0 || digit > 9 || result < multiplyLimit) {
+                throw new NumberFormatException("Malformed int in field " + pField + " of record " + recordCount);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Int overflow in field " + pField + " of record " + recordCount);
+            }
+            result -= digit;
+        }
+
+        return negative ? result : -result;
+    }
+
+    /*
+    Materialize a text column.  This is the only place the reader allocates per field.
+     */
+    public String getString(int pField) {
+
+        int start = fieldStarts[checkField(pField)];
+        int length = fieldEnds[pField] - start;
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+
+        for (int i = 0; i < length; i++) {
+            scratch[i] = region.get(start + i);
+        }
+
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void mapRegion(long pStart) throws IOException {
+        regionStart = pStart;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, pStart, Math.min(MAX_REGION_SIZE, fileSize - pStart));
+        position = 0;
+    }
+
+    private int indexOfNewline(int pFrom, int pLimit) {
+        for (int i = pFrom; i < pLimit; i++) {
+            if (region.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void splitFields(int pStart, int pEnd) {
+
+        fieldCount = 0;
+        int fieldStart = pStart;
+
+        for (int i = pStart; i < pEnd; i++) {
+            if (region.get(i) == delimiter) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, pEnd);
+    }
+
+    private void addField(int pStart, int pEnd) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = pStart;
+        fieldEnds[fieldCount] = pEnd;
+        fieldCount++;
+    }
+
+    private int checkField(int pField) {
+        if (pField < 0 || pField >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + pField + " requested but record " + recordCount
+                    + " has " + fieldCount + " fields");
+        }
+        return pField;
+    }
+}
@@ -0,0 +1,65 @@
+package com.datastax.kellett;
+
+/*
+MergingIterator merges several iterators, each already in order, into one iterator in the same order.
+
+It is a k-way merge: a priority queue holds the next element of every source, so each element taken costs
+O(log k) for k sources, and only one element per source is held beyond what the sources themselves buffer.
+Elements that compare equal come out in the order of their sources.
+*/
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+public class MergingIterator<T> implements Iterator<T> {
+
+    private static class Head<T> {
+        final T element;
+        final int source;
+
+        Head(T pElement, int pSource) {
+            element = pElement;
+            source = pSource;
+        }
+    }
+
+    private final List<? extends Iterator<? extends T>> sources;
+    private final PriorityQueue<Head<T>> heads;
+
+    public MergingIterator(List<? extends Iterator<? extends T>> pSources, Comparator<? super T> pOrder) {
+
+        sources = pSources;
+        Comparator<Head<T>> byElement = (a, b) -> pOrder.compare(a.element, b.element);
+        heads = new PriorityQueue<>(Math.max(1, pSources.size()), byElement.thenComparingInt(head -> head.source));
+
+        for (int i = 0; i < pSources.size(); i++) {
+            advance(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+
+        Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        advance(head.source);
+        return head.element;
+    }
+
+    private void advance(int pSource) {
+        Iterator<? extends T> source = sources.get(pSource);
+        if (source.hasNext()) {
+            heads.add(new Head<>(source.next(), pSource));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.datastax.kellett;
+
+/*
+MultiGetReader looks up many keys of a table whose partition key is a single column, such as lab9.customers by
+acct_no, and returns the rows found in a map keyed by that column, along with the keys that were not found.
+
+There are two ways to read a set of keys:
+- a single-key prepared read per key, all sent at once: each goes straight to a replica (the driver's
+  TokenAwarePolicy routes it by its key), but every key is a request of its own;
+- one query with "key IN ?": a single request, but its coordinator must then ask the replicas of every key, and
+  waits for the slowest.
+An IN query is only cheap when all its keys live on the same replicas.  So keys are first grouped by replica set
+(from the cluster Metadata), and each group is cut into chunks of at most maxInKeys.  For each chunk the reader
+estimates both: a fan-out takes about as long as one single-key read, and an IN query about its measured time per
+key times the chunk's key count.  Both are smoothed averages of the reads done so far, and a chunk is read the
+cheaper way.  Latencies only arrive as reads complete, so until both ways have been measured, each call sends
+one chunk as an IN query (if that way has no measurement yet) and the rest as fan-outs, which measure the other
+way.  A chunk of one key is always a single-key read.  IN queries are sent as ReplicaStatements, so that a ReplicaRoutingPolicy can send them
+to one of the keys' replicas.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultiGetReader<K> {
+
+    public static final int DEFAULT_MAX_IN_KEYS = 20;
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /*
+    The rows found, keyed by partition key in the order the keys were asked for, and the keys with no row.
+     */
+    public static class Result<K> {
+
+        private final Map<K, Row> rows;
+        private final List<K> missing;
+        private final int inQueries;
+        private final int singleReads;
+
+        Result(Map<K, Row> pRows, List<K> pMissing, int pInQueries, int pSingleReads) {
+            rows = Collections.unmodifiableMap(pRows);
+            missing = Collections.unmodifiableList(pMissing);
+            inQueries = pInQueries;
+            singleReads = pSingleReads;
+        }
+
+        public Map<K, Row> getRows() {
+            return rows;
+        }
+
+        public List<K> getMissing() {
+            return missing;
+        }
+
+        public int getInQueries() {
+            return inQueries;
+        }
+
+        public int getSingleReads() {
+            return singleReads;
+        }
+
+        @Override
+        public String toString() {
+            return rows.size() + " found, " + missing.size() + " missing, read with "
+                    + inQueries + " IN queries and " + singleReads + " single-key reads";
+        }
+    }
+
+    private final Session session;
+    private final String keyspace;
+    private final String keyColumn;
+    private final Class<K> keyClass;
+    private final PreparedStatement singleQuery;
+    private final PreparedStatement inQuery;
+
+    private int maxInKeys = DEFAULT_MAX_IN_KEYS;
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.LOCAL_ONE;
+
+    // Smoothed latencies, guarded by this; 0 until measured
+    private double singleNanos;
+    private double inNanosPerKey;
+
+    /*
+    A reader for pKeyspace.pTable, whose partition key is pKeyColumn, of the CQL type that maps to pKeyClass.
+     */
+    public MultiGetReader(Session pSession, String pKeyspace, String pTable, String pKeyColumn, Class<K> pKeyClass) {
+
+        session = pSession;
+        keyspace = pKeyspace;
+        keyColumn = pKeyColumn;
+        keyClass = pKeyClass;
+
+        String select = "SELECT * FROM " + pKeyspace + "." + pTable + " WHERE " + pKeyColumn;
+        singleQuery = pSession.prepare(select + " = ?");
+        inQuery = pSession.prepare(select + " IN ?");
+    }
+
+    public MultiGetReader<K> setMaxInKeys(int pMaxInKeys) {
+        maxInKeys = pMaxInKeys;
+        return this;
+    }
+
+    public MultiGetReader<K> setConsistencyLevel(ConsistencyLevel pConsistencyLevel) {
+        consistencyLevel = pConsistencyLevel;
+        return this;
+    }
+
+    public Result<K> get(Collection<K> pKeys) {
+        try {
+            return Uninterruptibles.getUninterruptibly(getAsync(pKeys));
+        }
+        catch (ExecutionException e) {
+            throw DriverErrors.propagate(e.getCause());
+        }
+    }
+
+    public ListenableFuture<Result<K>> getAsync(Collection<K> pKeys) {
+
+        Set<K> keys = new LinkedHashSet<>(pKeys);
+        AtomicInteger inQueries = new AtomicInteger();
+        AtomicInteger singleReads = new AtomicInteger();
+
+        // Whether this call has sent a chunk each way yet, to measure a way that has no latency so far
+        boolean sentIn = false;
+
+        List<ListenableFuture<List<Row>>> reads = new ArrayList<>();
+        for (Map.Entry<Set<Host>, List<K>> group : groupByReplicas(keys).entrySet()) {
+            List<K> groupKeys = group.getValue();
+            for (int start = 0; start < groupKeys.size(); start += maxInKeys) {
+                List<K> chunk = groupKeys.subList(start, Math.min(groupKeys.size(), start + maxInKeys));
+                if (preferIn(chunk.size(), sentIn)) {
+                    sentIn = true;
+                    reads.add(readIn(chunk, group.getKey()));
+                    inQueries.incrementAndGet();
+                }
+                else {
+                    for (K key : chunk) {
+                        reads.add(readOne(key));
+                        singleReads.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        return Futures.transform(Futures.allAsList(reads), (Function<List<List<Row>>, Result<K>>) pages -> {
+            Map<K, Row> found = new LinkedHashMap<>();
+            for (List<Row> page : pages) {
+                for (Row row : page) {
+                    found.put(row.get(keyColumn, keyClass), row);
+                }
+            }
+
+            // In the order the keys were asked for
+            Map<K, Row> rows = new LinkedHashMap<>();
+            List<K> missing = new ArrayList<>();
+            for (K key : keys) {
+                Row row = found.get(key);
+                if (row == null) {
+                    missing.add(key);
+                }
+                else {
+                    rows.put(key, row);
+                }
+            }
+            return new Result<>(rows, missing, inQueries.get(), singleReads.get());
+        }, MoreExecutors.directExecutor());
+    }
+
+    // Keys that share a replica set, in the order given
+    private Map<Set<Host>, List<K>> groupByReplicas(Set<K> pKeys) {
+
+        Metadata metadata = session.getCluster().getMetadata();
+        Map<Set<Host>, List<K>> groups = new LinkedHashMap<>();
+        for (K key : pKeys) {
+            ByteBuffer routingKey = singleQuery.bind(key).getRoutingKey(
+                    session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion(),
+                    session.getCluster().getConfiguration().getCodecRegistry());
+            Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+            groups.computeIfAbsent(replicas, r -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    private synchronized boolean preferIn(int pKeys, boolean pSentIn) {
+
+        if (pKeys < 2) {
+            return false;
+        }
+        if (inNanosPerKey > 0 && singleNanos > 0) {
+            return inNanosPerKey * pKeys <= singleNanos;
+        }
+        // Not measured both ways yet: one IN query to measure it if need be, and fan-outs for everything else
+        return inNanosPerKey == 0 && !pSentIn;
+    }
+
+    private ListenableFuture<List<Row>> readOne(K pKey) {
+
+        BoundStatement read = singleQuery.bind(pKey);
+        read.setConsistencyLevel(consistencyLevel);
+        return read(read, 1);
+    }
+
+    private ListenableFuture<List<Row>> readIn(List<K> pKeys, Set<Host> pReplicas) {
+
+        BoundStatement read = inQuery.bind(new ArrayList<>(pKeys));
+        read.setConsistencyLevel(consistencyLevel);
+        // One row per key, so a single page holds them all
+        read.setFetchSize(Math.max(pKeys.size(), 1));
+        return read(new ReplicaStatement(read, pReplicas), pKeys.size());
+    }
+
+    private ListenableFuture<List<Row>> read(Statement pStatement, int pKeys) {
+
+        long startNanos = System.nanoTime();
+        return Futures.transform(session.executeAsync(pStatement), (Function<ResultSet, List<Row>>) rs -> {
+            record(pKeys, System.nanoTime() - startNanos);
+            return rows(rs);
+        }, MoreExecutors.directExecutor());
+    }
+
+    private synchronized void record(int pKeys, long pNanos) {
+
+        if (pKeys == 1) {
+            singleNanos = (singleNanos == 0) ? pNanos : singleNanos + LATENCY_SMOOTHING * (pNanos - singleNanos);
+        }
+        else {
+            double perKey = (double) pNanos / pKeys;
+            inNanosPerKey = (inNanosPerKey == 0) ? perKey : inNanosPerKey + LATENCY_SMOOTHING * (perKey - inNanosPerKey);
+        }
+    }
+
+    // Only the rows already received, so that a driver I/O thread never waits for another page
+    private static List<Row> rows(ResultSet pResultSet) {
+
+        List<Row> rows = new ArrayList<>(pResultSet.getAvailableWithoutFetching());
+        for (int remaining = pResultSet.getAvailableWithoutFetching(); remaining > 0; remaining--) {
+            rows.add(pResultSet.one());
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,204 @@
+package com.datastax.kellett;
+
+/*
+PageCursor iterates over every row of a paged query, asking for the next page before the current one runs out.
+
+Reading a page with a PageReader and only asking for the next one once the last row has been used leaves a whole
+round trip between pages with nothing to do.  The cursor instead calls fetchMoreResults() on the driver's ResultSet
+once a fraction of the current page has been consumed: by the time the consumer gets to the end of the page the
+next one is usually there already.  With a fraction of 0 the next page is asked for as soon as a page is handed
+over; with 1 it is only asked for when the page is used up, which is what plain iteration does.  Only one page is
+fetched ahead, so client memory stays bounded by two pages.
+
+getPagingState() keeps the contract of the page readers: it is the serialized PagingState of the page after the
+current one, which any PageReader can resume from, for example after a web request that shows one page.
+
+With an AdaptiveFetchSize set, the cursor reports each page's rows, bytes and latency to it, and asks for every
+following page with the fetch size it gives.  Since the next page is asked for before the current one is finished,
+each decision is made from the pages before the current one.
+*/
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+public class PageCursor implements Iterator<Row> {
+
+    public static final double DEFAULT_PREFETCH_FRACTION = 0.5;
+
+    private final Session session;
+    private final PageReader reader;
+    private final String startPagingState;
+
+    private double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+    private AdaptiveFetchSize fetchSize;
+
+    private ResultSet rs;
+
+    // The index of the current page among the pages read into rs, and its size and unread rows
+    private int page;
+    private int pageSize;
+    private int pageRemaining;
+    private boolean prefetched;
+
+    // For the fetch size controller: the bytes of the current page so far, and when the next page was asked for
+    // and arrived (set from the thread that completes the fetch)
+    private long pageBytes;
+    private long pageLatencyNanos;
+    private long requestedNanos;
+    private volatile long arrivedNanos;
+
+    private long pagesRead;
+    private long pagesPrefetched;
+
+    /*
+    A cursor from pPagingStateSerialized on, or from the start if it is empty.
+     */
+    public PageCursor(Session pSession, PageReader pReader, String pPagingStateSerialized) {
+        session = pSession;
+        reader = pReader;
+        startPagingState = pPagingStateSerialized;
+    }
+
+    /*
+    Ask for the next page once this fraction of the current page (from 0 to 1) has been consumed.
+     */
+    public PageCursor setPrefetchFraction(double pPrefetchFraction) {
+        prefetchFraction = pPrefetchFraction;
+        return this;
+    }
+
+    /*
+    Report every page to pFetchSize, and take the fetch size of each following page from it.  The first page is
+    read with whatever fetch size the PageReader uses, which may come from the same controller.
+     */
+    public PageCursor setFetchSize(AdaptiveFetchSize pFetchSize) {
+        fetchSize = pFetchSize;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        if (rs == null) {
+            long startNanos = System.nanoTime();
+            rs = reader.readPage(session, startPagingState);
+            pageLatencyNanos = System.nanoTime() - startNanos;
+            startPage();
+        }
+
+        while (pageRemaining == 0) {
+            if (rs.isFullyFetched() && rs.getAvailableWithoutFetching() == 0) {
+                return false;
+            }
+            // Waits only if the prefetch has not come back yet, or none was started
+            waitFor(rs);
+            // The listener may not have run yet when the wait ends
+            long arrived = arrivedNanos;
+            pageLatencyNanos = ((arrived >= requestedNanos) ? arrived : System.nanoTime()) - requestedNanos;
+            page++;
+            startPage();
+        }
+        return true;
+    }
+
+    @Override
+    public Row next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Row row = rs.one();
+        pageRemaining--;
+        if (fetchSize != null) {
+            pageBytes += AdaptiveFetchSize.sizeOf(row);
+            if (pageRemaining == 0) {
+                fetchSize.onPage(pageSize, pageBytes, pageLatencyNanos);
+            }
+        }
+        prefetchIfDue();
+        return row;
+    }
+
+    /*
+    The serialized PagingState of the page after the current one, or an empty string if there is none.
+     */
+    public String getPagingState() {
+
+        if (rs == null) {
+            return startPagingState;
+        }
+        PagingState pagingState = rs.getAllExecutionInfo().get(page).getPagingState();
+        return (pagingState == null) ? "" : pagingState.toString();
+    }
+
+    /*
+    The number of pages read so far, and how many of them were asked for before they were needed.
+     */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    public long getPagesPrefetched() {
+        return pagesPrefetched;
+    }
+
+    private void startPage() {
+
+        pageSize = rs.getAvailableWithoutFetching();
+        pageRemaining = pageSize;
+        pageBytes = 0;
+        prefetched = false;
+        pagesRead++;
+        prefetchIfDue();
+    }
+
+    private void prefetchIfDue() {
+
+        if (prefetched || rs.isFullyFetched()) {
+            return;
+        }
+        if (pageSize - pageRemaining >= prefetchFraction * pageSize && pageRemaining > 0) {
+            fetchNext(rs);
+            prefetched = true;
+            pagesPrefetched++;
+        }
+    }
+
+    private ListenableFuture<ResultSet> fetchNext(ResultSet pResultSet) {
+
+        if (fetchSize != null) {
+            // The driver asks for the next page with the fetch size of the statement the pages came from
+            pResultSet.getExecutionInfo().getStatement().setFetchSize(fetchSize.getFetchSize());
+        }
+        requestedNanos = System.nanoTime();
+        ListenableFuture<ResultSet> fetching = pResultSet.fetchMoreResults();
+        fetching.addListener(() -> arrivedNanos = System.nanoTime(), MoreExecutors.directExecutor());
+        return fetching;
+    }
+
+    // Until the page after the current one has been added to pResultSet
+    private void waitFor(ResultSet pResultSet) {
+
+        ExecutionInfo current = pResultSet.getAllExecutionInfo().get(page);
+        if (pResultSet.getAllExecutionInfo().size() > page + 1 || current.getPagingStateUnsafe() == null) {
+            return;
+        }
+        try {
+            Uninterruptibles.getUninterruptibly(prefetched ? pResultSet.fetchMoreResults() : fetchNext(pResultSet));
+        }
+        catch (ExecutionException e) {
+            throw DriverErrors.propagate(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.datastax.kellett;
+
+/*
+PageReader reads one page of a query, starting from a serialized PagingState, so that a page can be read by a
+different reader (or a different process) from the one that read the page before it.
+*/
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+
+public interface PageReader {
+
+    /*
+    The page starting at pPagingStateSerialized, or the first page if it is empty.
+     */
+    ResultSet readPage(Session pSession, String pPagingStateSerialized);
+}
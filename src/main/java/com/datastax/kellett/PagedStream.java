@@ -0,0 +1,109 @@
+package com.datastax.kellett;
+
+/*
+PagedStream exposes the rows of a paged query (a ResultSet, or a mapper Result) as a lazily evaluated Stream.
+
+Collecting results (with all(), or by holding on to every ResultSet) keeps the whole result in the heap at once.
+A PagedStream instead pulls rows from the driver only as the stream consumes them.  The driver drops each row once
+it has been handed out, so a page is released as soon as it has been used.  The next page is asked for while the
+current one is still being consumed, but only if it fits under a hard cap on buffered rows: the rows not yet
+consumed, plus the page in flight, never exceed maxBufferedRows.  A full-table export through a PagedStream
+therefore runs in constant heap, however large the table.
+
+Short-circuiting operations such as limit() and findFirst() stop pulling rows, and so stop fetching pages; at most
+the one page already in flight is still read.
+
+To keep pages within the cap, the fetch size of the following pages is lowered to half the cap if it is larger
+(or left to the cluster's default).  The first page has already been read by the time a result is handed over, so
+it must fit under the cap already; query() sets the fetch size before executing.
+*/
+
+import com.datastax.driver.core.PagingIterable;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class PagedStream<T> implements Spliterator<T> {
+
+    private final PagingIterable<?, T> results;
+    private final int maxBufferedRows;
+    private final int fetchSize;
+
+    private PagedStream(PagingIterable<?, T> pResults, int pMaxBufferedRows) {
+
+        if (pResults.getAvailableWithoutFetching() > pMaxBufferedRows) {
+            throw new IllegalArgumentException("The first page holds " + pResults.getAvailableWithoutFetching()
+                    + " rows, more than the cap of " + pMaxBufferedRows + " buffered rows");
+        }
+        results = pResults;
+        maxBufferedRows = pMaxBufferedRows;
+
+        Statement statement = pResults.getExecutionInfo().getStatement();
+        if (statement.getFetchSize() <= 0 || statement.getFetchSize() > pMaxBufferedRows / 2) {
+            statement.setFetchSize(Math.max(1, pMaxBufferedRows / 2));
+        }
+        fetchSize = statement.getFetchSize();
+    }
+
+    /*
+    Execute pStatement with a fetch size that suits pMaxBufferedRows, and stream its rows.
+     */
+    public static Stream<Row> query(Session pSession, Statement pStatement, int pMaxBufferedRows) {
+        pStatement.setFetchSize(Math.max(1, pMaxBufferedRows / 2));
+        return of(pSession.execute(pStatement), pMaxBufferedRows);
+    }
+
+    /*
+    Stream the rows of pResults, with no more than pMaxBufferedRows of them in memory at any time.
+     */
+    public static <T> Stream<T> of(PagingIterable<?, T> pResults, int pMaxBufferedRows) {
+        return StreamSupport.stream(new PagedStream<>(pResults, pMaxBufferedRows), false);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> pAction) {
+
+        if (results.getAvailableWithoutFetching() == 0 && results.isFullyFetched()) {
+            return false;
+        }
+        prefetchIfRoom();
+
+        // Blocks only when the current page is used up and the next one has not arrived yet
+        T row = results.one();
+        if (row == null) {
+            return false;
+        }
+        pAction.accept(row);
+        return true;
+    }
+
+    // The driver has at most one page in flight, and adds it to the rows available once it arrives
+    private void prefetchIfRoom() {
+
+        int available = results.getAvailableWithoutFetching();
+        if (!results.isFullyFetched() && available <= fetchSize / 2 && available + fetchSize <= maxBufferedRows) {
+            results.fetchMoreResults();
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // Pages can only be read in order
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,260 @@
+package com.datastax.kellett;
+
+/*
+ParallelCsvLoader is a multi-threaded version of the labs' "read a line, bind, execute" ingest loop.
+
+The input file is cut into byte ranges and handed to a ForkJoinPool.  Each task keeps halving its range until it is
+no larger than the configured split size, then parses that split with its own MappedCsvReader and executes the
+bound statements on the shared Session.  The driver's Session is thread-safe, so all workers share one.
+
+Every split reports its own row count, failure count and elapsed time, so a slow or failing part of the file
+is easy to spot.  An optional WriteThrottle caps the combined write rate of all workers, an optional
+TracingSampler decides which statements are traced, and an optional LatencyRecorder times every write.
+*/
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class ParallelCsvLoader {
+
+    /*
+    Turns the current record of a MappedCsvReader into a statement, typically by binding a PreparedStatement.
+    It is called concurrently from several workers, each with its own reader.
+     */
+    public interface RowBinder {
+        Statement bind(MappedCsvReader pRecord);
+    }
+
+    /*
+    Outcome of loading one split of the file.
+     */
+    public static class SplitResult {
+
+        private final long startOffset;
+        private final long endOffset;
+        private final long rows;
+        private final long failures;
+        private final long elapsedNanos;
+        private final String firstError;
+
+        SplitResult(long pStartOffset, long pEndOffset, long pRows, long pFailures, long pElapsedNanos, String pFirstError) {
+            startOffset = pStartOffset;
+            endOffset = pEndOffset;
+            rows = pRows;
+            failures = pFailures;
+            elapsedNanos = pElapsedNanos;
+            firstError = pFirstError;
+        }
+
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public String getFirstError() {
+            return firstError;
+        }
+
+        @Override
+        public String toString() {
+            return "bytes " + startOffset + "-" + endOffset
+                    + ": " + rows + " rows, "
+                    + failures + " failures, "
+                    + elapsedNanos / 1000000 + " milliseconds"
+                    + (firstError == null ? "" : ", first error: " + firstError);
+        }
+    }
+
+    private final Session session;
+    private final RowBinder binder;
+    private final int workers;
+    private final long splitSize;
+
+    private WriteThrottle throttle;
+    private TracingSampler tracingSampler;
+    private int traceKeyField = -1;
+    private LatencyRecorder latencyRecorder;
+
+    public ParallelCsvLoader(Session pSession, RowBinder pBinder, int pWorkers, long pSplitSize) {
+        session = pSession;
+        binder = pBinder;
+        workers = pWorkers;
+        splitSize = pSplitSize;
+    }
+
+    public ParallelCsvLoader setThrottle(WriteThrottle pThrottle) {
+        throttle = pThrottle;
+        return this;
+    }
+
+    public ParallelCsvLoader setTracingSampler(TracingSampler pTracingSampler) {
+        tracingSampler = pTracingSampler;
+        return this;
+    }
+
+    /*
+    As setTracingSampler(TracingSampler), with field pKeyField of each record as the key the sampler samples by and
+    notes slow keys under.
+     */
+    public ParallelCsvLoader setTracingSampler(TracingSampler pTracingSampler, int pKeyField) {
+        tracingSampler = pTracingSampler;
+        traceKeyField = pKeyField;
+        return this;
+    }
+
+    public ParallelCsvLoader setLatencyRecorder(LatencyRecorder pLatencyRecorder) {
+        latencyRecorder = pLatencyRecorder;
+        return this;
+    }
+
+    /*
+    Load the whole file and return one result per split, in file order.
+     */
+    public List<SplitResult> load(String pCsvFile) throws IOException {
+
+        Path path = Paths.get(pCsvFile);
+        long fileSize = Files.size(path);
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            return pool.invoke(new SplitTask(path, 0, fileSize));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+    Convenience for callers that want a sensible split size: enough splits for every worker to get several,
+    so that a slow split near the end of the file does not leave the other workers idle.
+     */
+    public static long defaultSplitSize(String pCsvFile, int pWorkers) throws IOException {
+        long fileSize = Files.size(Paths.get(pCsvFile));
+        return Math.max(64 * 1024, fileSize / (pWorkers * 4L));
+    }
+
+    public static void printReport(List<SplitResult> pResults, long pElapsedNanos) {
+
+        long rows = 0;
+        long failures = 0;
+
+        for (SplitResult result : pResults) {
+            System.out.println("Split " + result);
+            rows += result.getRows();
+            failures += result.getFailures();
+        }
+
+        System.out.println(pResults.size() + " splits, " + rows + " rows, " + failures + " failures, "
+                + (rows * 1000000000L / Math.max(1, pElapsedNanos)) + " rows/second");
+    }
+
+    private class SplitTask extends RecursiveTask<List<SplitResult>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        private final long startOffset;
+        private final long endOffset;
+
+        SplitTask(Path pPath, long pStartOffset, long pEndOffset) {
+            path = pPath;
+            startOffset = pStartOffset;
+            endOffset = pEndOffset;
+        }
+
+        @Override
+        protected List<SplitResult> compute() {
+
+            if (endOffset - startOffset > splitSize) {
+                long middle = startOffset + (endOffset - startOffset) / 2;
+                SplitTask left = new SplitTask(path, startOffset, middle);
+                SplitTask right = new SplitTask(path, middle, endOffset);
+
+                left.fork();
+                List<SplitResult> results = new ArrayList<>(right.compute());
+                results.addAll(0, left.join());
+                return results;
+            }
+
+            List<SplitResult> results = new ArrayList<>(1);
+            results.add(loadSplit());
+            return results;
+        }
+
+        private SplitResult loadSplit() {
+
+            long rows = 0;
+            long failures = 0;
+            String firstError = null;
+            long startTime = System.nanoTime();
+
+            try (MappedCsvReader record = new MappedCsvReader(path, ',', startOffset, endOffset)) {
+
+                while (record.next()) {
+                    try {
+                        Statement statement = binder.bind(record);
+                        if (throttle != null) {
+                            throttle.acquire(statement);
+                        }
+                        String traceKey = (tracingSampler != null && traceKeyField >= 0)
+                                ? record.getString(traceKeyField) : null;
+                        if (tracingSampler != null) {
+                            tracingSampler.sample(statement, traceKey);
+                        }
+
+                        long executeStart = System.nanoTime();
+                        ResultSet result = (latencyRecorder != null)
+                                ? latencyRecorder.execute(session, statement)
+                                : session.execute(statement);
+
+                        if (tracingSampler != null) {
+                            tracingSampler.collect(result, traceKey, System.nanoTime() - executeStart);
+                        }
+                        rows++;
+                    }
+                    catch (DriverException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                        // One bad row or one failed write should not abandon the rest of the split
+                        failures++;
+                        if (firstError == null) {
+                            firstError = "record at byte offset " + record.recordOffset() + ": " + e;
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                failures++;
+                if (firstError == null) {
+                    firstError = e.toString();
+                }
+            }
+
+            return new SplitResult(startOffset, endOffset, rows, failures, System.nanoTime() - startTime, firstError);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.datastax.kellett;
+
+/*
+PartitionBatchWriter groups bound statements by partition and sends them as small UNLOGGED batches.
+
+Putting a whole file into one logged BatchStatement makes a single coordinator write the batchlog and then fan the
+mutations out to every partition in the file.  A batch is only cheap when all of its statements go to the same
+partition: then it is applied as one mutation on one replica set, with no batchlog needed.
+
+So each bound statement is filed under its routing key (the serialized partition key, for example
+(country, membership_tier) for lab8.customers or tier for lab6.customers_tiered).  A partition's batch is sent
+as soon as it reaches the statement or byte limit, and whatever is left is sent by flush().
+A BatchStatement takes its routing key from its first statement, so with the driver's default TokenAwarePolicy
+every batch goes straight to a replica of its partition.
+
+Batches can be timed by attaching a LatencyRecorder; a partition that only had one statement is recorded as a
+prepared statement rather than a batch, since that is what is sent.
+*/
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PartitionBatchWriter {
+
+    /*
+    Defaults keep each batch under Cassandra's batch_size_warn_threshold_in_kb (5 KB out of the box).
+     */
+    public static final int DEFAULT_MAX_STATEMENTS = 100;
+    public static final int DEFAULT_MAX_BYTES = 5 * 1024;
+
+    // Rough per-statement framing cost in a BATCH message: kind, prepared id and value count
+    private static final int STATEMENT_OVERHEAD_BYTES = 24;
+
+    // Once this many partitions have a batch open, all of them are flushed to bound client memory
+    private static final int MAX_OPEN_PARTITIONS = 10000;
+
+    private static final ByteBuffer NO_ROUTING_KEY = ByteBuffer.allocate(0);
+
+    private final Session session;
+    private final int maxStatements;
+    private final int maxBytes;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+
+    private final Map<ByteBuffer, PendingBatch> pending = new HashMap<>();
+
+    private long batchesSent;
+    private long statementsSent;
+    private long bytesSent;
+    private long startTime;
+
+    private LatencyRecorder latencyRecorder;
+
+    private static class PendingBatch {
+        final BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        int bytes;
+    }
+
+    public PartitionBatchWriter(Session pSession) {
+        this(pSession, DEFAULT_MAX_STATEMENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public PartitionBatchWriter(Session pSession, int pMaxStatements, int pMaxBytes) {
+        session = pSession;
+        maxStatements = pMaxStatements;
+        maxBytes = pMaxBytes;
+        protocolVersion = pSession.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        codecRegistry = pSession.getCluster().getConfiguration().getCodecRegistry();
+    }
+
+    public PartitionBatchWriter setLatencyRecorder(LatencyRecorder pLatencyRecorder) {
+        latencyRecorder = pLatencyRecorder;
+        return this;
+    }
+
+    /*
+    Add a statement to its partition's batch, sending that batch first if the statement would not fit.
+     */
+    public void add(BoundStatement pStatement) {
+
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+        }
+
+        ByteBuffer routingKey = pStatement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            routingKey = NO_ROUTING_KEY;
+        }
+
+        int statementBytes = estimateSize(pStatement);
+
+        PendingBatch partitionBatch = pending.get(routingKey);
+        if (partitionBatch != null && partitionBatch.bytes + statementBytes > maxBytes) {
+            send(routingKey, partitionBatch);
+            partitionBatch = null;
+        }
+
+        if (partitionBatch == null) {
+            if (pending.size() >= MAX_OPEN_PARTITIONS) {
+                flush();
+            }
+            partitionBatch = new PendingBatch();
+            partitionBatch.batch.setConsistencyLevel(pStatement.getConsistencyLevel());
+            pending.put(routingKey, partitionBatch);
+        }
+
+        partitionBatch.batch.add(pStatement);
+        partitionBatch.bytes += statementBytes;
+
+        if (partitionBatch.batch.size() >= maxStatements || partitionBatch.bytes >= maxBytes) {
+            send(routingKey, partitionBatch);
+        }
+    }
+
+    /*
+    Send every partially filled batch.  Call this once the input is exhausted.
+     */
+    public void flush() {
+
+        for (PendingBatch partitionBatch : pending.values()) {
+            execute(partitionBatch);
+        }
+        pending.clear();
+    }
+
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    public long getStatementsSent() {
+        return statementsSent;
+    }
+
+    public void printReport() {
+
+        long elapsedTime = System.nanoTime() - startTime;
+        long batches = Math.max(1, batchesSent);
+
+        System.out.println("Batches sent: " + batchesSent
+                + " (" + (batchesSent * 1000000000L / Math.max(1, elapsedTime)) + " batches/second)");
+        System.out.println("Average batch size: " + (statementsSent / batches) + " statements, "
+                + (bytesSent / batches) + " bytes");
+    }
+
+    private void send(ByteBuffer pRoutingKey, PendingBatch pPartitionBatch) {
+        pending.remove(pRoutingKey);
+        execute(pPartitionBatch);
+    }
+
+    private void execute(PendingBatch pPartitionBatch) {
+
+        // A single statement does not need to be wrapped in a batch at all
+        Statement statement = (pPartitionBatch.batch.size() == 1)
+                ? pPartitionBatch.batch.getStatements().iterator().next()
+                : pPartitionBatch.batch;
+
+        if (latencyRecorder != null) {
+            latencyRecorder.execute(session, statement);
+        }
+        else {
+            session.execute(statement);
+        }
+
+        batchesSent++;
+        statementsSent += pPartitionBatch.batch.size();
+        bytesSent += pPartitionBatch.bytes;
+    }
+
+    private int estimateSize(BoundStatement pStatement) {
+
+        int bytes = STATEMENT_OVERHEAD_BYTES;
+        int variables = pStatement.preparedStatement().getVariables().size();
+
+        for (int i = 0; i < variables; i++) {
+            ByteBuffer value = pStatement.getBytesUnsafe(i);
+            bytes += 4 + (value == null ? 0 : value.remaining());
+        }
+
+        return bytes;
+    }
+}
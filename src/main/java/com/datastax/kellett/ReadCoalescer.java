@@ -0,0 +1,235 @@
+package com.datastax.kellett;
+
+/*
+ReadCoalescer lets concurrent identical reads share one request to the cluster.
+
+When many threads ask for the same hot row at once, each would send its own SELECT, and the replicas would answer
+the same question many times over.  readAsync() instead looks for a read of the same statement already in flight:
+the same prepared query (the server derives the prepared statement id from the query text and keyspace, so those
+stand in for it), the same bound values, consistency level and fetch size.  If there is one, the caller shares its
+result, and no request is sent.
+
+The driver keeps a statement's paging state to itself, so a statement with one set cannot be told apart from the
+read of the first page.  A read of a later page is given its PagingState through readAsync(statement, pagingState)
+instead, and goes straight to the Session without being shared.  Statements passed to readAsync(statement) must not
+have a paging state set.
+
+With a linger window, a completed read stays shared for that long after it completes, so that callers arriving
+just after the answer came back get it too.  That trades up to the linger window of staleness for fewer reads;
+with a linger of 0 only reads actually in flight are shared.  A failed read is never shared after it fails, so a
+caller that retries sends a new request.
+
+A ResultSet is an iterator, and could not be shared between callers, so the shared result is the list of rows of
+the first page, which callers may all read.  That suits point reads, such as one row by primary key; a read that
+returns more than one page should go to the Session directly.
+
+Requests, reads sent and requests collapsed into another's read are counted, and published as gauges by
+registerMetrics().
+
+Each caller gets its own view of the shared read, so a caller that cancels its future (when it gives up waiting,
+say) does not cancel the read for the others.  After close(), reads are no longer shared once complete.
+*/
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReadCoalescer implements AutoCloseable {
+
+    private static class Read {
+        final SettableFuture<List<Row>> rows = SettableFuture.create();
+        // Set once the read has come back, which may be just before rows completes
+        volatile boolean done;
+        volatile boolean expired;
+    }
+
+    private final Session session;
+    private final long lingerMillis;
+    private final Map<List<Object>, Read> reads = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor expiry;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    private volatile boolean closed;
+
+    /*
+    Share reads on pSession while they are in flight, and for pLingerMillis after they complete.
+     */
+    public ReadCoalescer(Session pSession, long pLingerMillis) {
+
+        session = pSession;
+        lingerMillis = pLingerMillis;
+
+        expiry = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "read-coalescer-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiry.setRemoveOnCancelPolicy(true);
+    }
+
+    /*
+    The rows of pStatement's first page, from a read shared with every identical concurrent request.
+     */
+    public ListenableFuture<List<Row>> readAsync(BoundStatement pStatement) {
+        return readAsync(pStatement, null);
+    }
+
+    /*
+    The rows of the page of pStatement that pPagingState leads to, read without sharing; or, with no paging state,
+    the first page as readAsync(pStatement) reads it.
+     */
+    public ListenableFuture<List<Row>> readAsync(BoundStatement pStatement, PagingState pPagingState) {
+
+        requests.increment();
+        if (pPagingState != null) {
+            sent.increment();
+            pStatement.setPagingState(pPagingState);
+            return Futures.transform(session.executeAsync(pStatement), ReadCoalescer::firstPage,
+                    MoreExecutors.directExecutor());
+        }
+        List<Object> key = key(pStatement);
+
+        while (true) {
+            Read existing = reads.get(key);
+            if (existing != null && !existing.expired) {
+                collapsed.increment();
+                return Futures.nonCancellationPropagating(existing.rows);
+            }
+            if (existing != null) {
+                // Expired, but its removal has not run yet
+                reads.remove(key, existing);
+                continue;
+            }
+
+            Read read = new Read();
+            if (reads.putIfAbsent(key, read) != null) {
+                // Another thread started the same read first; share it
+                continue;
+            }
+
+            sent.increment();
+            ListenableFuture<List<Row>> page = Futures.transform(session.executeAsync(pStatement),
+                    ReadCoalescer::firstPage, MoreExecutors.directExecutor());
+            // Registered before the shared future is tied to the page, so that a failed read is no longer shared
+            // by the time its callers hear of it
+            page.addListener(() -> completed(key, read, page), MoreExecutors.directExecutor());
+            read.rows.setFuture(page);
+            return Futures.nonCancellationPropagating(read.rows);
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getCollapsed() {
+        return collapsed.sum();
+    }
+
+    public void registerMetrics(MetricRegistry pRegistry, String pName) {
+        pRegistry.register(MetricRegistry.name(pName, "requests"), (Gauge<Long>) this::getRequests);
+        pRegistry.register(MetricRegistry.name(pName, "sent"), (Gauge<Long>) this::getSent);
+        pRegistry.register(MetricRegistry.name(pName, "collapsed"), (Gauge<Long>) this::getCollapsed);
+    }
+
+    @Override
+    public String toString() {
+        return getRequests() + " requests, " + getSent() + " reads sent, " + getCollapsed() + " collapsed";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        expiry.shutdownNow();
+        // Lingering reads would never be expired by the timer now
+        reads.forEach(this::expireIfDone);
+    }
+
+    private void completed(List<Object> pKey, Read pRead, ListenableFuture<List<Row>> pPage) {
+
+        pRead.done = true;
+        boolean failed;
+        try {
+            pPage.get();
+            failed = false;
+        }
+        catch (Exception e) {
+            failed = true;
+        }
+
+        if (failed || lingerMillis <= 0 || closed) {
+            expire(pKey, pRead);
+            return;
+        }
+        try {
+            expiry.schedule(() -> expire(pKey, pRead), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // Closed meanwhile
+            expire(pKey, pRead);
+        }
+    }
+
+    private void expireIfDone(List<Object> pKey, Read pRead) {
+        if (pRead.done) {
+            expire(pKey, pRead);
+        }
+    }
+
+    private void expire(List<Object> pKey, Read pRead) {
+        pRead.expired = true;
+        reads.remove(pKey, pRead);
+    }
+
+    // Everything that makes two reads return the same rows
+    private static List<Object> key(BoundStatement pStatement) {
+
+        int variables = pStatement.preparedStatement().getVariables().size();
+        List<Object> key = new ArrayList<>(variables + 4);
+        key.add(pStatement.preparedStatement().getQueryKeyspace());
+        key.add(pStatement.preparedStatement().getQueryString());
+        key.add(pStatement.getConsistencyLevel());
+        key.add(pStatement.getFetchSize());
+        for (int i = 0; i < variables; i++) {
+            // ByteBuffers are equal when their remaining bytes are
+            ByteBuffer value = pStatement.getBytesUnsafe(i);
+            key.add(value);
+        }
+        return key;
+    }
+
+    private static List<Row> firstPage(ResultSet pResultSet) {
+
+        List<Row> rows = new ArrayList<>(pResultSet.getAvailableWithoutFetching());
+        for (int remaining = pResultSet.getAvailableWithoutFetching(); remaining > 0; remaining--) {
+            rows.add(pResultSet.one());
+        }
+        return Collections.unmodifiableList(rows);
+    }
+}
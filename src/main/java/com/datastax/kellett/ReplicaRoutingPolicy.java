@@ -0,0 +1,102 @@
+package com.datastax.kellett;
+
+/*
+ReplicaRoutingPolicy sends each ReplicaStatement to one of the replicas it names, and every other statement the way
+its child policy would.
+
+It wraps a child policy in the same way as TokenAwarePolicy, and is typically put around one:
+    new ReplicaRoutingPolicy(new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build()))
+For a ReplicaStatement the query plan starts with the replicas that are up and that the child policy counts as
+local, in turn so that successive statements for the same replicas are spread over them, and carries on with the
+rest of the child's plan.  Hosts the child policy ignores are never tried.
+*/
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Iterators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReplicaRoutingPolicy implements ChainableLoadBalancingPolicy {
+
+    private final LoadBalancingPolicy childPolicy;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    public ReplicaRoutingPolicy(LoadBalancingPolicy pChildPolicy) {
+        childPolicy = pChildPolicy;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String pLoggedKeyspace, Statement pStatement) {
+
+        Iterator<Host> childPlan = childPolicy.newQueryPlan(pLoggedKeyspace, pStatement);
+        if (!(pStatement instanceof ReplicaStatement)) {
+            return childPlan;
+        }
+
+        List<Host> replicas = new ArrayList<>();
+        for (Host host : ((ReplicaStatement) pStatement).getReplicas()) {
+            if (host.isUp() && childPolicy.distance(host) == HostDistance.LOCAL) {
+                replicas.add(host);
+            }
+        }
+        if (replicas.isEmpty()) {
+            return childPlan;
+        }
+
+        int first = Math.floorMod(rotation.getAndIncrement(), replicas.size());
+        List<Host> plan = new ArrayList<>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            plan.add(replicas.get((first + i) % replicas.size()));
+        }
+        return Iterators.concat(plan.iterator(), Iterators.filter(childPlan, host -> !plan.contains(host)));
+    }
+
+    @Override
+    public void init(Cluster pCluster, Collection<Host> pHosts) {
+        childPolicy.init(pCluster, pHosts);
+    }
+
+    @Override
+    public HostDistance distance(Host pHost) {
+        return childPolicy.distance(pHost);
+    }
+
+    @Override
+    public void onAdd(Host pHost) {
+        childPolicy.onAdd(pHost);
+    }
+
+    @Override
+    public void onUp(Host pHost) {
+        childPolicy.onUp(pHost);
+    }
+
+    @Override
+    public void onDown(Host pHost) {
+        childPolicy.onDown(pHost);
+    }
+
+    @Override
+    public void onRemove(Host pHost) {
+        childPolicy.onRemove(pHost);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+}
@@ -0,0 +1,33 @@
+package com.datastax.kellett;
+
+/*
+ReplicaStatement wraps a statement together with the hosts that should coordinate it.
+
+The driver's TokenAwarePolicy finds replicas from a statement's routing key, and so cannot help a statement that
+has none, such as a scan of a token range.  When the caller already knows the replicas (from Metadata.getReplicas(),
+for example), wrapping the statement in a ReplicaStatement passes them to a ReplicaRoutingPolicy, which tries them
+first.  The driver executes the wrapped statement as it is, and asks for later pages through the wrapper too.
+*/
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.StatementWrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class ReplicaStatement extends StatementWrapper {
+
+    private final List<Host> replicas;
+
+    public ReplicaStatement(Statement pStatement, Collection<Host> pReplicas) {
+        super(pStatement);
+        replicas = Collections.unmodifiableList(new ArrayList<>(pReplicas));
+    }
+
+    public List<Host> getReplicas() {
+        return replicas;
+    }
+}
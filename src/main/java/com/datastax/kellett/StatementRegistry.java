@@ -0,0 +1,209 @@
+package com.datastax.kellett;
+
+/*
+StatementRegistry prepares each distinct CQL statement once per session and hands out the same PreparedStatement
+to every caller.
+
+Sending CQL as a string makes the server parse it on every request, and building the string from values (such as
+"... WHERE acct_no = " + acctNo) also makes every request a different statement, so nothing can be reused.
+Preparing the statement once with bind markers, then binding values, sends only the statement id and the values.
+
+Statements are looked up by their normalized text (surrounding whitespace and a trailing semicolon removed, runs of
+whitespace outside string literals collapsed), so trivially different spellings share one PreparedStatement.
+prepareAll() prepares a set of statements concurrently, typically at startup; a statement that was not prepared
+up front is prepared on first use.  Once a statement is prepared, looking it up takes no locks.
+
+For each statement the registry counts hits (lookups that found it), misses (lookups that had to prepare it) and
+executions (statements bound from it), and printReport() shows them.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+public class StatementRegistry {
+
+    private final Session session;
+    private final Map<String, Entry> statements = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final ListenableFuture<PreparedStatement> prepared;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder executions = new LongAdder();
+
+        Entry(ListenableFuture<PreparedStatement> pPrepared) {
+            prepared = pPrepared;
+        }
+    }
+
+    public StatementRegistry(Session pSession) {
+        session = pSession;
+    }
+
+    /*
+    Prepare all of pQueries at once, and wait until every one is prepared.
+     */
+    public StatementRegistry prepareAll(String... pQueries) {
+
+        List<ListenableFuture<PreparedStatement>> preparing = new ArrayList<>();
+        for (String query : pQueries) {
+            preparing.add(entry(query).prepared);
+        }
+
+        try {
+            Uninterruptibles.getUninterruptibly(Futures.allAsList(preparing));
+        }
+        catch (ExecutionException e) {
+            throw DriverErrors.propagate(e.getCause());
+        }
+        return this;
+    }
+
+    /*
+    The PreparedStatement for pQuery, prepared now if this is the first time it is asked for.
+     */
+    public PreparedStatement get(String pQuery) {
+        return prepared(lookup(pQuery));
+    }
+
+    public BoundStatement bind(String pQuery, Object... pValues) {
+
+        Entry entry = lookup(pQuery);
+        BoundStatement bound = prepared(entry).bind(pValues);
+        entry.executions.increment();
+        return bound;
+    }
+
+    public ResultSet execute(String pQuery, Object... pValues) {
+        return session.execute(bind(pQuery, pValues));
+    }
+
+    public ResultSetFuture executeAsync(String pQuery, Object... pValues) {
+        return session.executeAsync(bind(pQuery, pValues));
+    }
+
+    public long getHits(String pQuery) {
+        Entry entry = statements.get(normalize(pQuery));
+        return (entry == null) ? 0 : entry.hits.sum();
+    }
+
+    public long getMisses(String pQuery) {
+        Entry entry = statements.get(normalize(pQuery));
+        return (entry == null) ? 0 : entry.misses.sum();
+    }
+
+    public long getExecutions(String pQuery) {
+        Entry entry = statements.get(normalize(pQuery));
+        return (entry == null) ? 0 : entry.executions.sum();
+    }
+
+    public void printReport() {
+
+        System.out.println("");
+        System.out.println("Prepared statements");
+        System.out.println(String.format("  %8s %8s %10s  %s", "hits", "misses", "executions", "statement"));
+
+        for (Map.Entry<String, Entry> statement : new TreeMap<>(statements).entrySet()) {
+            Entry entry = statement.getValue();
+            System.out.println(String.format("  %8d %8d %10d  %s",
+                    entry.hits.sum(), entry.misses.sum(), entry.executions.sum(), statement.getKey()));
+        }
+    }
+
+    /*
+    pQuery trimmed, without a trailing semicolon, and with each run of whitespace outside quotes made one space.
+     */
+    static String normalize(String pQuery) {
+
+        String query = pQuery.trim();
+        if (query.endsWith(";")) {
+            query = query.substring(0, query.length() - 1).trim();
+        }
+
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"') {
+                quote = c;
+            }
+            else if (Character.isWhitespace(c)) {
+                if (normalized.charAt(normalized.length() - 1) != ' ') {
+                    normalized.append(' ');
+                }
+                continue;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    // The entry for pQuery, counting the lookup as a hit, or as a miss if the statement had to be prepared
+    private Entry lookup(String pQuery) {
+
+        Entry entry = statements.get(normalize(pQuery));
+        if (entry != null) {
+            entry.hits.increment();
+            return entry;
+        }
+
+        entry = entry(pQuery);
+        entry.misses.increment();
+        return entry;
+    }
+
+    private Entry entry(String pQuery) {
+
+        String key = normalize(pQuery);
+        boolean[] created = new boolean[1];
+        Entry entry = statements.computeIfAbsent(key, k -> {
+            created[0] = true;
+            return new Entry(session.prepareAsync(k));
+        });
+
+        if (created[0]) {
+            // A failed preparation is forgotten, so that the next lookup tries again
+            Futures.addCallback(entry.prepared, new FutureCallback<PreparedStatement>() {
+                @Override
+                public void onSuccess(PreparedStatement pStatement) {
+                }
+
+                @Override
+                public void onFailure(Throwable pError) {
+                    statements.remove(key, entry);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return entry;
+    }
+
+    private static PreparedStatement prepared(Entry pEntry) {
+        try {
+            return Uninterruptibles.getUninterruptibly(pEntry.prepared);
+        }
+        catch (ExecutionException e) {
+            throw DriverErrors.propagate(e.getCause());
+        }
+    }
+}
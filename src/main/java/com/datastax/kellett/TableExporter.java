@@ -0,0 +1,418 @@
+package com.datastax.kellett;
+
+/*
+TableExporter dumps a table to local files, one file per token range, and can pick up where an interrupted export
+stopped.
+
+The table is read through a TokenRangeScanner, several ranges at once.  Each range is written to its own file in
+the output directory, through a FileChannel and a large buffer, first under a ".part" name, then renamed once the
+range is complete.  Only then is the range added to the checkpoint file in the same directory, and flushed to disk.
+An export started again over the same directory reads the checkpoint and skips every range already listed, so a
+crash costs only the ranges that were in progress.  (Ranges come from the ring, so resuming assumes the cluster's
+tokens have not changed in between.)
+
+Two formats are written:
+- CSV: one line per row, values in the order SELECT * returns the columns, without a header.  For lab8.customers
+  that is the shape of data/lab8.csv.  Values holding a comma, a quote or a line break are quoted.
+- BINARY: a header ("KEXP", a format version, then each column's name and CQL type), then for each row every value
+  as it was serialized by the server, preceded by its length (-1 for null).  Nothing is converted, so it is the
+  fastest to write and the most compact; the types in the header say how to decode the values.
+
+Every range reports its rows and bytes, and rows/second and bytes/second while it was being written.
+*/
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TableExporter {
+
+    public static final String CHECKPOINT_FILE = "checkpoint";
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BINARY_MAGIC = 0x4b455850;   // "KEXP"
+    private static final byte BINARY_VERSION = 1;
+
+    public enum Format {
+        CSV(".csv"),
+        BINARY(".bin");
+
+        private final String extension;
+
+        Format(String pExtension) {
+            extension = pExtension;
+        }
+    }
+
+    /*
+    Outcome of exporting one token range.
+     */
+    public static class RangeResult {
+
+        private final String start;
+        private final String end;
+        private final long rows;
+        private final long bytes;
+        private final long elapsedNanos;
+        private final boolean skipped;
+
+        RangeResult(String pStart, String pEnd, long pRows, long pBytes, long pElapsedNanos, boolean pSkipped) {
+            start = pStart;
+            end = pEnd;
+            rows = pRows;
+            bytes = pBytes;
+            elapsedNanos = pElapsedNanos;
+            skipped = pSkipped;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // True if the range was found in the checkpoint, and so not exported again
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + start + ", " + end + "]: "
+                    + (skipped ? "already exported, " : "")
+                    + rows + " rows, "
+                    + bytes + " bytes"
+                    + (skipped ? "" : ", " + elapsedNanos / 1000000 + " milliseconds, "
+                            + rows * 1000000000L / Math.max(1, elapsedNanos) + " rows/second, "
+                            + bytes * 1000000000L / Math.max(1, elapsedNanos) + " bytes/second");
+        }
+    }
+
+    private final TokenRangeScanner scanner;
+    private final Path directory;
+    private final Format format;
+
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    private FileChannel checkpoint;
+
+    public TableExporter(TokenRangeScanner pScanner, String pDirectory, Format pFormat) {
+        scanner = pScanner;
+        directory = Paths.get(pDirectory);
+        format = pFormat;
+    }
+
+    // The number of ranges exported at once
+    public TableExporter setParallelism(int pParallelism) {
+        parallelism = pParallelism;
+        return this;
+    }
+
+    /*
+    Export every range not already in the checkpoint, and return one result per range, those skipped first.
+     */
+    public List<RangeResult> export() throws IOException {
+
+        Files.createDirectories(directory);
+        Set<String> done = new HashSet<>();
+        List<RangeResult> results = readCheckpoint(done);
+
+        List<TokenRangeScanner.Split> work = new ArrayList<>();
+        for (TokenRangeScanner.Split split : scanner.getSplits()) {
+            if (!done.contains(key(split))) {
+                work.add(split);
+            }
+        }
+        if (work.isEmpty()) {
+            return results;
+        }
+
+        checkpoint = FileChannel.open(directory.resolve(CHECKPOINT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, work.size()));
+        try {
+            List<Future<RangeResult>> exporting = new ArrayList<>();
+            for (TokenRangeScanner.Split split : work) {
+                exporting.add(workers.submit(() -> exportRange(split)));
+            }
+
+            for (Future<RangeResult> range : exporting) {
+                try {
+                    results.add(range.get());
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw DriverErrors.propagate(e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while exporting to " + directory, e);
+                }
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            checkpoint.close();
+        }
+        return results;
+    }
+
+    public static void printReport(List<RangeResult> pResults, long pElapsedNanos) {
+
+        long rows = 0;
+        long bytes = 0;
+        int skipped = 0;
+
+        for (RangeResult result : pResults) {
+            System.out.println("Range " + result);
+            if (result.isSkipped()) {
+                skipped++;
+            }
+            else {
+                rows += result.getRows();
+                bytes += result.getBytes();
+            }
+        }
+
+        System.out.println(pResults.size() + " ranges, " + skipped + " already exported, "
+                + rows + " rows and " + bytes + " bytes written, "
+                + (rows * 1000000000L / Math.max(1, pElapsedNanos)) + " rows/second, "
+                + (bytes * 1000000000L / Math.max(1, pElapsedNanos)) + " bytes/second");
+    }
+
+    private RangeResult exportRange(TokenRangeScanner.Split pSplit) {
+
+        String start = pSplit.getRange().getStart().toString();
+        String end = pSplit.getRange().getEnd().toString();
+        Path file = directory.resolve("range_" + start + "_" + end + format.extension);
+        Path partFile = directory.resolve(file.getFileName() + ".part");
+
+        long startNanos = System.nanoTime();
+        long rows = 0;
+        long bytes;
+        try (ChannelWriter out = new ChannelWriter(partFile)) {
+
+            ResultSet rs = scanner.scan(pSplit);
+            if (format == Format.BINARY) {
+                writeHeader(out, rs.getColumnDefinitions());
+            }
+            for (Row row : rs) {
+                if (format == Format.CSV) {
+                    writeCsv(out, row);
+                }
+                else {
+                    writeBinary(out, row);
+                }
+                rows++;
+            }
+            out.flush();
+            bytes = out.getBytes();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        try {
+            Files.move(partFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            appendCheckpoint(start + " " + end + " " + rows + " " + bytes + "\n");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new RangeResult(start, end, rows, bytes, elapsedNanos, false);
+    }
+
+    private static void writeCsv(ChannelWriter pOut, Row pRow) throws IOException {
+
+        StringBuilder line = new StringBuilder(128);
+        int columns = pRow.getColumnDefinitions().size();
+        for (int i = 0; i < columns; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            Object value = pRow.getObject(i);
+            if (value == null) {
+                continue;
+            }
+            String text = value.toString();
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                line.append('"').append(text.replace("\"", "\"\"")).append('"');
+            }
+            else {
+                line.append(text);
+            }
+        }
+        line.append('\n');
+        pOut.put(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeHeader(ChannelWriter pOut, ColumnDefinitions pColumns) throws IOException {
+
+        pOut.putInt(BINARY_MAGIC);
+        pOut.put(new byte[] {BINARY_VERSION});
+        pOut.putInt(pColumns.size());
+        for (ColumnDefinitions.Definition column : pColumns) {
+            putString(pOut, column.getName());
+            putString(pOut, column.getType().toString());
+        }
+    }
+
+    private static void writeBinary(ChannelWriter pOut, Row pRow) throws IOException {
+
+        int columns = pRow.getColumnDefinitions().size();
+        for (int i = 0; i < columns; i++) {
+            ByteBuffer value = pRow.getBytesUnsafe(i);
+            if (value == null) {
+                pOut.putInt(-1);
+            }
+            else {
+                pOut.putInt(value.remaining());
+                pOut.put(value);
+            }
+        }
+    }
+
+    private static void putString(ChannelWriter pOut, String pValue) throws IOException {
+        byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+        pOut.putInt(bytes.length);
+        pOut.put(bytes);
+    }
+
+    // Ranges completed by an earlier export, added to pDone, and reported as skipped
+    private List<RangeResult> readCheckpoint(Set<String> pDone) throws IOException {
+
+        List<RangeResult> results = new ArrayList<>();
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return results;
+        }
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ");
+            // A line cut short by a crash while it was being written is ignored, and its range exported again
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                long rows = Long.parseLong(fields[2]);
+                long bytes = Long.parseLong(fields[3]);
+                if (pDone.add(fields[0] + " " + fields[1])) {
+                    results.add(new RangeResult(fields[0], fields[1], rows, bytes, 0, true));
+                }
+            }
+            catch (NumberFormatException e) {
+                // As above
+            }
+        }
+        return results;
+    }
+
+    private synchronized void appendCheckpoint(String pLine) throws IOException {
+
+        ByteBuffer line = ByteBuffer.wrap(pLine.getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            checkpoint.write(line);
+        }
+        checkpoint.force(false);
+    }
+
+    private static String key(TokenRangeScanner.Split pSplit) {
+        return pSplit.getRange().getStart() + " " + pSplit.getRange().getEnd();
+    }
+
+    /*
+    Writes to a file through one large direct buffer, so that the channel sees few, large writes.
+     */
+    private static class ChannelWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long bytes;
+
+        ChannelWriter(Path pPath) throws IOException {
+            channel = FileChannel.open(pPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void putInt(int pValue) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(pValue);
+            bytes += 4;
+        }
+
+        void put(byte[] pBytes) throws IOException {
+            put(ByteBuffer.wrap(pBytes));
+        }
+
+        void put(ByteBuffer pBytes) throws IOException {
+
+            ByteBuffer source = pBytes.duplicate();
+            bytes += source.remaining();
+            while (source.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(source.remaining(), buffer.remaining());
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + length);
+                buffer.put(chunk);
+                source.position(source.position() + length);
+            }
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                channel.force(false);
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.datastax.kellett;
+
+/*
+TablePercentileTracker keeps a latency histogram per table, for the driver's PercentileSpeculativeExecutionPolicy.
+
+With that policy, a read that has not been answered within a chosen percentile of its usual latency (say p95) is
+sent again to the next host in its query plan.  Whichever host answers first wins, and the driver cancels the
+other execution.  The slow replica behind a tail read is usually slow for a reason unrelated to the read, such as
+a GC pause or compaction, so the second host tends to answer well within the tail.  The driver only does this for
+statements marked idempotent, since a write could be applied twice.
+
+The driver's own trackers are per cluster or per host; reads of different tables can have very different
+latencies, so this one keys the histograms by keyspace and table instead.  The table of a bound statement comes
+from its prepared metadata; other statements are tracked by their query text, or together.  A percentile is only
+given once a table has MIN_RECORDED_VALUES latencies in the last interval, so that a few early reads cannot set a
+threshold that hedges every read.
+
+Install it with
+    clusterBuilder.withSpeculativeExecutionPolicy(
+            new PercentileSpeculativeExecutionPolicy(new TablePercentileTracker(), 95.0, 2))
+The driver counts the hedges it sends (Metrics.getErrorMetrics().getSpeculativeExecutions()).
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PercentileTracker;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Statement;
+
+public class TablePercentileTracker extends PercentileTracker {
+
+    // Reads slower than this are tracked as this slow
+    public static final long HIGHEST_TRACKABLE_LATENCY_MILLIS = 15000;
+    public static final int SIGNIFICANT_DIGITS = 3;
+    public static final int MIN_RECORDED_VALUES = 100;
+    public static final long INTERVAL_MILLIS = 5000;
+
+    public TablePercentileTracker() {
+        super(HIGHEST_TRACKABLE_LATENCY_MILLIS, SIGNIFICANT_DIGITS, MIN_RECORDED_VALUES, INTERVAL_MILLIS);
+    }
+
+    @Override
+    protected Object computeKey(Host pHost, Statement pStatement, Exception pException) {
+        return tableOf(pStatement);
+    }
+
+    /*
+    "keyspace.table" for a bound statement, otherwise the query text, or "" for other kinds of statement.
+     */
+    static String tableOf(Statement pStatement) {
+
+        if (pStatement instanceof BoundStatement) {
+            ColumnDefinitions variables = ((BoundStatement) pStatement).preparedStatement().getVariables();
+            if (variables.size() > 0) {
+                return variables.getKeyspace(0) + "." + variables.getTable(0);
+            }
+            return ((BoundStatement) pStatement).preparedStatement().getQueryString();
+        }
+        if (pStatement instanceof RegularStatement) {
+            return ((RegularStatement) pStatement).getQueryString();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,93 @@
+package com.datastax.kellett;
+
+/*
+TokenBucket hands out permits at a steady rate, allowing short bursts up to a configurable size.
+
+Rather than a counter of tokens that a background thread refills, the bucket keeps a single "next free slot"
+timestamp (the GCRA formulation of a token bucket).  Each caller reserves its slot with one compare-and-set and
+then sleeps until that slot arrives.  A bucket that has been idle lets callers reserve up to burstNanos in the past,
+which is what gives the smooth burst allowance.
+
+When the bucket is not the bottleneck acquire() costs one System.nanoTime() and one CAS, and never sleeps.
+A rate of zero or less means unlimited.
+*/
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+
+    private volatile double permitsPerSecond;
+    private volatile long nanosPerPermit;
+    private volatile long burstNanos;
+
+    public TokenBucket(double pPermitsPerSecond, double pBurstSeconds) {
+        setRate(pPermitsPerSecond, pBurstSeconds);
+    }
+
+    /*
+    Change the rate at runtime.  Callers already sleeping keep the slot they reserved at the old rate.
+     */
+    public void setRate(double pPermitsPerSecond, double pBurstSeconds) {
+        permitsPerSecond = pPermitsPerSecond;
+        nanosPerPermit = (pPermitsPerSecond > 0) ? (long) (NANOS_PER_SECOND / pPermitsPerSecond) : 0;
+        burstNanos = (long) (pBurstSeconds * NANOS_PER_SECOND);
+    }
+
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /*
+    Take pPermits permits, sleeping until they are available.  Returns the number of nanoseconds spent waiting.
+     */
+    public long acquire(int pPermits) {
+
+        long cost = nanosPerPermit * pPermits;
+        if (cost == 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long slot;
+
+        while (true) {
+            long next = nextFreeNanos.get();
+            slot = Math.max(next, now - burstNanos);
+            if (nextFreeNanos.compareAndSet(next, slot + cost)) {
+                break;
+            }
+        }
+
+        long wait = slot - now;
+        if (wait <= 0) {
+            return 0;
+        }
+
+        throttledRequests.incrementAndGet();
+        throttledNanos.addAndGet(wait);
+
+        // Give up the rest of the wait if interrupted, leaving the interrupt flag set for the caller
+        long deadline = now + wait;
+        while ((wait = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(wait);
+        }
+
+        return System.nanoTime() - now;
+    }
+
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+}
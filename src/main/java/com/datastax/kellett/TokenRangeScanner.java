@@ -0,0 +1,197 @@
+package com.datastax.kellett;
+
+/*
+TokenRangeScanner reads a whole table as many token-range queries run in parallel, each coordinated by a replica
+of its range.
+
+A plain SELECT * FROM a table is a single query: one coordinator walks the whole ring, asking each replica set in
+turn, one page at a time.  It is as slow as one stream of pages, and it loads the coordinator it lands on.
+The scanner instead reads the ring from the cluster Metadata.  Every range between two consecutive tokens has a
+single set of replicas; each range is cut into sub-ranges (splits), and each split is read with
+    SELECT ... WHERE token(<partition key>) > ? AND token(<partition key>) <= ?
+wrapped in a ReplicaStatement, so that a ReplicaRoutingPolicy installed on the cluster sends it to one of the
+range's replicas, which can answer from its own data.  Up to parallelism splits are read at once, so the scan
+speeds up with the number of splits until the nodes are busy.
+
+Rows from all splits go to a single consumer, one at a time, so the consumer need not be thread-safe.  They come
+in no particular order.  If any split fails, the splits not yet started are abandoned and scan() throws its error.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TokenRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class TokenRangeScanner {
+
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /*
+    One sub-range of the ring, and the replicas that own it.
+     */
+    public static class Split {
+
+        private final TokenRange range;
+        private final Set<Host> replicas;
+
+        Split(TokenRange pRange, Set<Host> pReplicas) {
+            range = pRange;
+            replicas = pReplicas;
+        }
+
+        public TokenRange getRange() {
+            return range;
+        }
+
+        public Set<Host> getReplicas() {
+            return replicas;
+        }
+    }
+
+    private final Session session;
+    private final String keyspace;
+    private final PreparedStatement rangeQuery;
+
+    private int splits;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private ConsistencyLevel consistencyLevel = ConsistencyLevel.LOCAL_ONE;
+
+    /*
+    A scanner for pKeyspace.pTable, whose partition key is made of pPartitionKeyColumns in order.
+     */
+    public TokenRangeScanner(Session pSession, String pKeyspace, String pTable, String... pPartitionKeyColumns) {
+
+        session = pSession;
+        keyspace = pKeyspace;
+
+        String token = "token(" + String.join(", ", pPartitionKeyColumns) + ")";
+        rangeQuery = pSession.prepare(
+                "SELECT * FROM " + pKeyspace + "." + pTable + " WHERE " + token + " > ? AND " + token + " <= ?");
+
+        // By default, four splits for each node
+        splits = 4 * pSession.getCluster().getMetadata().getAllHosts().size();
+    }
+
+    /*
+    Cut the ring into at least pSplits sub-ranges.  Each range between two tokens is split evenly, so with vnodes
+    there may be more splits than asked for.
+     */
+    public TokenRangeScanner setSplits(int pSplits) {
+        splits = pSplits;
+        return this;
+    }
+
+    // The number of splits read at once
+    public TokenRangeScanner setParallelism(int pParallelism) {
+        parallelism = pParallelism;
+        return this;
+    }
+
+    public TokenRangeScanner setFetchSize(int pFetchSize) {
+        fetchSize = pFetchSize;
+        return this;
+    }
+
+    public TokenRangeScanner setConsistencyLevel(ConsistencyLevel pConsistencyLevel) {
+        consistencyLevel = pConsistencyLevel;
+        return this;
+    }
+
+    /*
+    The splits of the ring as it is now, each no wider than a range between two tokens.
+     */
+    public List<Split> getSplits() {
+
+        Metadata metadata = session.getCluster().getMetadata();
+        Set<TokenRange> ring = metadata.getTokenRanges();
+        int splitsPerRange = Math.max(1, (splits + ring.size() - 1) / ring.size());
+
+        List<Split> result = new ArrayList<>();
+        for (TokenRange range : ring) {
+            Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), range);
+            for (TokenRange split : range.splitEvenly(splitsPerRange)) {
+                // A range that wraps around the end of the ring cannot be expressed as "> start AND <= end"
+                for (TokenRange unwrapped : split.unwrap()) {
+                    result.add(new Split(unwrapped, replicas));
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+    Read every row of the table, handing each to pConsumer, and return the number of rows read.
+     */
+    public long scan(Consumer<Row> pConsumer) {
+
+        List<Split> work = getSplits();
+        LongAdder rows = new LongAdder();
+        Object consumerLock = new Object();
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, work.size()));
+        try {
+            List<Future<?>> scanning = new ArrayList<>();
+            for (Split split : work) {
+                scanning.add(workers.submit(() -> {
+                    for (Row row : scan(split)) {
+                        synchronized (consumerLock) {
+                            pConsumer.accept(row);
+                        }
+                        rows.increment();
+                    }
+                }));
+            }
+
+            for (Future<?> split : scanning) {
+                try {
+                    split.get();
+                }
+                catch (ExecutionException e) {
+                    throw DriverErrors.propagate(e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while scanning " + keyspace, e);
+                }
+            }
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        return rows.sum();
+    }
+
+    /*
+    Read the rows of pSplit alone, from one of its replicas.  The driver fetches further pages as they are iterated.
+     */
+    public ResultSet scan(Split pSplit) {
+        return session.execute(statement(pSplit));
+    }
+
+    private ReplicaStatement statement(Split pSplit) {
+
+        BoundStatement bound = rangeQuery.bind()
+                .setToken(0, pSplit.getRange().getStart())
+                .setToken(1, pSplit.getRange().getEnd());
+        bound.setFetchSize(fetchSize);
+        bound.setConsistencyLevel(consistencyLevel);
+        return new ReplicaStatement(bound, pSplit.getReplicas());
+    }
+}
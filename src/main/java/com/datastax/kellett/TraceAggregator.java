@@ -0,0 +1,172 @@
+package com.datastax.kellett;
+
+/*
+TraceAggregator turns the query traces of sampled requests into latency percentiles.
+
+An average over system_traces hides the tail, and querying system_traces.events with ALLOW FILTERING after a fixed
+sleep is both slow and unreliable.  Instead, for each traced request we ask the driver for its QueryTrace with
+getQueryTraceAsync(); the driver polls system_traces until the trace is complete, by partition key.
+
+Each trace contributes:
+- its server-side duration, grouped by request type (prepared query, simple query, batch...),
+- the client-observed latency for the same request, so that (client - server) shows the time spent on the network
+  and queued in the driver,
+- the time taken by each phase, per request type.  A trace event is logged when a step starts, so the time between
+  one event and the next on the same node is charged to the earlier event's activity.  Activities are normalized
+  (addresses and numbers removed) so that e.g. "Sending MUTATION message to /10.0.0.2" and "... to /10.0.0.3" are
+  one phase.
+*/
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.QueryTrace;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+public class TraceAggregator {
+
+    private static final Pattern ADDRESS = Pattern.compile("/?\\d{1,3}(\\.\\d{1,3}){3}(:\\d+)?");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    // All guarded by this
+    private final Map<String, List<Long>> phaseMicros = new TreeMap<>();
+    private final Map<String, List<Long>> serverMicros = new TreeMap<>();
+    private final Map<String, List<Long>> clientMicros = new TreeMap<>();
+    private final Map<String, List<Long>> gapMicros = new TreeMap<>();
+    private final List<ListenableFuture<QueryTrace>> fetches = new ArrayList<>();
+    private int failedFetches;
+
+    /*
+    Fetch the trace of a request in the background.  Requests that were not traced are ignored.
+     */
+    public void add(ExecutionInfo pExecutionInfo, final long pClientLatencyNanos) {
+
+        if (pExecutionInfo.getQueryTrace() == null) {
+            return;
+        }
+
+        ListenableFuture<QueryTrace> fetch = pExecutionInfo.getQueryTraceAsync();
+        synchronized (this) {
+            fetches.add(fetch);
+        }
+
+        Futures.addCallback(fetch, new FutureCallback<QueryTrace>() {
+
+            @Override
+            public void onSuccess(QueryTrace pTrace) {
+                record(pTrace, pClientLatencyNanos);
+            }
+
+            @Override
+            public void onFailure(Throwable pError) {
+                synchronized (TraceAggregator.this) {
+                    failedFetches++;
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /*
+    Wait for all the trace fetches started so far.  Fetches that fail are counted, not thrown.
+     */
+    public void awaitFetches() throws InterruptedException {
+
+        List<ListenableFuture<QueryTrace>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(fetches);
+        }
+
+        try {
+            Futures.successfulAsList(pending).get();
+        }
+        catch (ExecutionException e) {
+            // successfulAsList never fails; individual failures are counted in the callbacks
+        }
+    }
+
+    public void printReport() {
+
+        synchronized (this) {
+            System.out.println("Traces analyzed: " + (fetches.size() - failedFetches)
+                    + " (" + failedFetches + " could not be retrieved)");
+
+            printTable("Server-side duration by request type", serverMicros);
+            printTable("Client-observed latency by request type", clientMicros);
+            printTable("Network and client queueing time (client - server) by request type", gapMicros);
+            printTable("Time per phase", phaseMicros);
+        }
+    }
+
+    private synchronized void record(QueryTrace pTrace, long pClientLatencyNanos) {
+
+        String requestType = pTrace.getRequestType();
+        long serverLatency = pTrace.getDurationMicros();
+        long clientLatency = pClientLatencyNanos / 1000;
+
+        add(serverMicros, requestType, serverLatency);
+        add(clientMicros, requestType, clientLatency);
+        add(gapMicros, requestType, Math.max(0, clientLatency - serverLatency));
+
+        // Walk each node's events in order; a phase lasts until the next event on the same node
+        Map<InetAddress, QueryTrace.Event> previousBySource = new HashMap<>();
+
+        for (QueryTrace.Event event : pTrace.getEvents()) {
+            QueryTrace.Event previous = previousBySource.put(event.getSource(), event);
+            if (previous != null) {
+                add(phaseMicros, requestType + ": " + normalize(previous.getDescription()),
+                        event.getSourceElapsedMicros() - previous.getSourceElapsedMicros());
+            }
+        }
+    }
+
+    private static void add(Map<String, List<Long>> pSamples, String pKey, long pValue) {
+
+        List<Long> values = pSamples.get(pKey);
+        if (values == null) {
+            values = new ArrayList<>();
+            pSamples.put(pKey, values);
+        }
+        values.add(pValue);
+    }
+
+    static String normalize(String pActivity) {
+        String activity = ADDRESS.matcher(pActivity).replaceAll("<host>");
+        return NUMBER.matcher(activity).replaceAll("N");
+    }
+
+    private static void printTable(String pTitle, Map<String, List<Long>> pSamples) {
+
+        System.out.println("");
+        System.out.println(pTitle + " (microseconds)");
+        System.out.println(String.format("  %8s %8s %8s %8s %8s  %s", "count", "p50", "p95", "p99", "max", "name"));
+
+        for (Map.Entry<String, List<Long>> entry : pSamples.entrySet()) {
+            List<Long> values = new ArrayList<>(entry.getValue());
+            Collections.sort(values);
+            System.out.println(String.format("  %8d %8d %8d %8d %8d  %s",
+                    values.size(),
+                    percentile(values, 0.50),
+                    percentile(values, 0.95),
+                    percentile(values, 0.99),
+                    values.get(values.size() - 1),
+                    entry.getKey()));
+        }
+    }
+
+    // Nearest-rank percentile of a sorted, non-empty list
+    private static long percentile(List<Long> pSorted, double pFraction) {
+        int rank = (int) Math.ceil(pFraction * pSorted.size());
+        return pSorted.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,208 @@
+package com.datastax.kellett;
+
+/*
+TracingSampler decides which statements get server-side tracing.
+
+Tracing every statement doubles the write load (each traced request also writes to system_traces.sessions and
+system_traces.events) and so distorts exactly the numbers we are trying to measure.  A sampler traces only:
+- one statement in every N, or
+- each statement with a given probability, or
+- statements whose key was slower than a threshold on a previous run.
+
+After execution, pass the ResultSet to collect() so the sampler can remember the trace session id.  Given the
+statement's key and latency too, collect() also notes the keys slower than the slow-key threshold, whatever the
+sampling mode (see recordSlowKeysOver).  saveSlowKeys() writes them out at the end of a run, and the next run
+loads them with loadSlowKeys() and traces just those keys with slowKeys().
+Trace analysis can then look at getTracedSessionIds() instead of the whole of system_traces, or the sampler can
+hand each traced request straight to a TraceAggregator (see sendTracesTo).
+
+All methods are safe to call from several threads.
+*/
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.QueryTrace;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TracingSampler {
+
+    private enum Mode { ONE_IN_N, PROBABILITY, SLOW_KEYS }
+
+    private final Mode mode;
+    private final long everyN;
+    private final double probability;
+    private final Set<String> keysToTrace;
+    private volatile long slowThresholdNanos;
+
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final ConcurrentLinkedQueue<UUID> tracedSessionIds = new ConcurrentLinkedQueue<>();
+    private final Set<String> slowKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile TraceAggregator traceAggregator;
+
+    private TracingSampler(Mode pMode, long pEveryN, double pProbability, Set<String> pKeysToTrace, long pSlowThresholdNanos) {
+        mode = pMode;
+        everyN = pEveryN;
+        probability = pProbability;
+        keysToTrace = pKeysToTrace;
+        slowThresholdNanos = pSlowThresholdNanos;
+    }
+
+    /*
+    Trace the 1st, (N+1)th, (2N+1)th ... statement.  oneIn(1) traces everything.
+     */
+    public static TracingSampler oneIn(long pN) {
+        return new TracingSampler(Mode.ONE_IN_N, Math.max(1, pN), 0, null, Long.MAX_VALUE);
+    }
+
+    public static TracingSampler withProbability(double pProbability) {
+        return new TracingSampler(Mode.PROBABILITY, 0, pProbability, null, Long.MAX_VALUE);
+    }
+
+    /*
+    Trace only statements whose key is in pSlowKeys, typically loaded with loadSlowKeys() from a previous run.
+    Latencies recorded during this run above pThresholdMillis are collected for the next run.
+     */
+    public static TracingSampler slowKeys(Set<String> pSlowKeys, long pThresholdMillis) {
+        return new TracingSampler(Mode.SLOW_KEYS, 0, 0, pSlowKeys, TimeUnit.MILLISECONDS.toNanos(pThresholdMillis));
+    }
+
+    /*
+    Note the keys of statements slower than pThresholdMillis from now on, for saveSlowKeys().  slowKeys() sets this
+    already; in the other modes no keys are noted until it is called.
+     */
+    public TracingSampler recordSlowKeysOver(long pThresholdMillis) {
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(pThresholdMillis);
+        return this;
+    }
+
+    /*
+    Pass every traced request collected from now on to pTraceAggregator.
+     */
+    public TracingSampler sendTracesTo(TraceAggregator pTraceAggregator) {
+        traceAggregator = pTraceAggregator;
+        return this;
+    }
+
+    /*
+    Enable or disable tracing on pStatement according to the sampling policy.  Returns true if it will be traced.
+    pKey identifies the statement across runs (for example the acct_no); it is only used by slowKeys().
+     */
+    public boolean sample(Statement pStatement, Object pKey) {
+
+        long count = seen.getAndIncrement();
+        boolean trace;
+
+        switch (mode) {
+            case ONE_IN_N:
+                trace = (count % everyN == 0);
+                break;
+            case PROBABILITY:
+                trace = ThreadLocalRandom.current().nextDouble() < probability;
+                break;
+            default:
+                trace = pKey != null && keysToTrace.contains(pKey.toString());
+                break;
+        }
+
+        if (trace) {
+            sampled.incrementAndGet();
+            pStatement.enableTracing();
+        }
+        else {
+            pStatement.disableTracing();
+        }
+
+        return trace;
+    }
+
+    public boolean sample(Statement pStatement) {
+        return sample(pStatement, null);
+    }
+
+    /*
+    Remember the trace session id of a traced request.  Untraced results are ignored.
+     */
+    public void collect(ResultSet pResult) {
+        collect(pResult.getExecutionInfo(), 0);
+    }
+
+    /*
+    As collect(ResultSet), also passing the client-observed latency on to the TraceAggregator, if there is one.
+     */
+    public void collect(ResultSet pResult, long pLatencyNanos) {
+        collect(pResult.getExecutionInfo(), pLatencyNanos);
+    }
+
+    /*
+    As collect(ResultSet, long), also noting pKey if the statement was slower than the slow-key threshold.
+     */
+    public void collect(ResultSet pResult, Object pKey, long pLatencyNanos) {
+        recordLatency(pKey, pLatencyNanos);
+        collect(pResult.getExecutionInfo(), pLatencyNanos);
+    }
+
+    public void collect(ExecutionInfo pExecutionInfo, long pLatencyNanos) {
+
+        // The trace id comes back with the response; the trace itself is only fetched if its details are read
+        QueryTrace trace = pExecutionInfo.getQueryTrace();
+        if (trace != null) {
+            tracedSessionIds.add(trace.getTraceId());
+
+            TraceAggregator aggregator = traceAggregator;
+            if (aggregator != null) {
+                aggregator.add(pExecutionInfo, pLatencyNanos);
+            }
+        }
+    }
+
+    /*
+    Record a client-observed latency, so that slow keys can be traced on the next run.
+     */
+    public void recordLatency(Object pKey, long pLatencyNanos) {
+        if (pKey != null && pLatencyNanos > slowThresholdNanos) {
+            slowKeys.add(pKey.toString());
+        }
+    }
+
+    public List<UUID> getTracedSessionIds() {
+        return new ArrayList<>(tracedSessionIds);
+    }
+
+    public long getStatementsSeen() {
+        return seen.get();
+    }
+
+    public long getStatementsSampled() {
+        return sampled.get();
+    }
+
+    public int getSlowKeyCount() {
+        return slowKeys.size();
+    }
+
+    public void saveSlowKeys(String pFile) throws IOException {
+        Files.write(Paths.get(pFile), slowKeys, StandardCharsets.UTF_8);
+    }
+
+    public static Set<String> loadSlowKeys(String pFile) throws IOException {
+        return new HashSet<>(Files.readAllLines(Paths.get(pFile), StandardCharsets.UTF_8));
+    }
+}
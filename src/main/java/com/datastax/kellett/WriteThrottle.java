@@ -0,0 +1,137 @@
+package com.datastax.kellett;
+
+/*
+WriteThrottle caps how fast a bulk loader writes, so a replay against a shared cluster leaves room for online traffic.
+
+There is one global rows/second budget, and optionally a budget per table ("keyspace.table").  A statement must get
+a permit from its table's bucket and from the global bucket before it is executed.  Both are TokenBuckets, so a
+budget that is not binding costs one CAS per statement.  Each budget allows a burst of BURST_SECONDS worth of rows.
+
+Rates can be changed while a load is running, either directly or over JMX once register() has been called
+(the MBean is com.datastax.kellett:type=WriteThrottle,name=<name>).
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Statement;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriteThrottle implements WriteThrottleMBean {
+
+    private static final double BURST_SECONDS = 0.5;
+
+    private final TokenBucket globalBucket;
+    private final ConcurrentMap<String, TokenBucket> tableBuckets = new ConcurrentHashMap<>();
+
+    // Counted here rather than summed over the buckets, so that a request held up by both counts once
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+
+    public WriteThrottle(double pGlobalRowsPerSecond) {
+        globalBucket = new TokenBucket(pGlobalRowsPerSecond, BURST_SECONDS);
+    }
+
+    /*
+    Make the throttle visible (and adjustable) over JMX.
+     */
+    public void register(String pName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.datastax.kellett:type=WriteThrottle,name=" + ObjectName.quote(pName)));
+        }
+        catch (JMException e) {
+            System.out.println("Unable to register WriteThrottle " + pName + " with JMX: " + e);
+        }
+    }
+
+    /*
+    Wait until pStatement may be executed.  Returns the nanoseconds spent waiting.
+     */
+    public long acquire(Statement pStatement) {
+
+        long waited = 0;
+
+        if (!tableBuckets.isEmpty()) {
+            String table = tableOf(pStatement);
+            TokenBucket tableBucket = (table == null) ? null : tableBuckets.get(table);
+            if (tableBucket != null) {
+                waited += tableBucket.acquire(1);
+            }
+        }
+
+        waited += globalBucket.acquire(1);
+        if (waited > 0) {
+            throttledRequests.incrementAndGet();
+            throttledNanos.addAndGet(waited);
+        }
+        return waited;
+    }
+
+    @Override
+    public double getGlobalRate() {
+        return globalBucket.getRate();
+    }
+
+    @Override
+    public void setGlobalRate(double pRowsPerSecond) {
+        globalBucket.setRate(pRowsPerSecond, BURST_SECONDS);
+    }
+
+    @Override
+    public double getTableRate(String pTable) {
+        TokenBucket tableBucket = tableBuckets.get(pTable.toLowerCase());
+        return (tableBucket == null) ? 0 : tableBucket.getRate();
+    }
+
+    @Override
+    public void setTableRate(String pTable, double pRowsPerSecond) {
+
+        String table = pTable.toLowerCase();
+
+        if (pRowsPerSecond <= 0) {
+            tableBuckets.remove(table);
+            return;
+        }
+
+        TokenBucket tableBucket = tableBuckets.putIfAbsent(table, new TokenBucket(pRowsPerSecond, BURST_SECONDS));
+        if (tableBucket != null) {
+            tableBucket.setRate(pRowsPerSecond, BURST_SECONDS);
+        }
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return throttledNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    public void printReport() {
+        System.out.println("Write throttle: " + getThrottledRequests() + " requests throttled for a total of "
+                + getThrottledMillis() + " milliseconds");
+    }
+
+    /*
+    The table a statement writes to, as "keyspace.table".  Only prepared statements carry this information,
+    so other statements are subject to the global budget only.
+     */
+    private static String tableOf(Statement pStatement) {
+
+        if (pStatement instanceof BoundStatement) {
+            ColumnDefinitions variables = ((BoundStatement) pStatement).preparedStatement().getVariables();
+            if (variables.size() > 0) {
+                return (variables.getKeyspace(0) + "." + variables.getTable(0)).toLowerCase();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.datastax.kellett;
+
+/*
+JMX view of a WriteThrottle.  Rates are in rows per second; zero means unlimited.
+*/
+
+public interface WriteThrottleMBean {
+
+    double getGlobalRate();
+
+    void setGlobalRate(double pRowsPerSecond);
+
+    double getTableRate(String pTable);
+
+    void setTableRate(String pTable, double pRowsPerSecond);
+
+    long getThrottledMillis();
+
+    long getThrottledRequests();
+}
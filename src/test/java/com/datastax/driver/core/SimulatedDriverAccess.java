@@ -0,0 +1,104 @@
+package com.datastax.driver.core;
+
+/*
+SimulatedDriverAccess builds the driver value objects that SimulatedSession has to hand back to callers.
+
+PreparedStatement.bind(), BoundStatement.getRoutingKey(), ResultSet.getExecutionInfo() and Session.closeAsync() all
+rely on driver classes (ColumnDefinitions, PreparedId, ExecutionInfo, CloseFuture) whose constructors are
+package-private, because normally only the driver creates them from server responses.  The same goes for the rows
+of a result and for hashing a partition key to its token.  This class lives in the
+driver's package so that the simulator can create them too.  It relies on driver internals as they are in the 3.x
+line that dse-java-driver-core 1.6 is built on, and is the only place in the project that does.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+public final class SimulatedDriverAccess {
+
+    private static final Token.Factory MURMUR3 = Token.getFactory("org.apache.cassandra.dht.Murmur3Partitioner");
+
+    private SimulatedDriverAccess() {
+    }
+
+    /*
+    Column metadata for pNames and pTypes, all belonging to pKeyspace.pTable.
+     */
+    public static ColumnDefinitions columnDefinitions(String pKeyspace, String pTable,
+                                                      List<String> pNames, List<DataType> pTypes,
+                                                      CodecRegistry pCodecRegistry) {
+
+        ColumnDefinitions.Definition[] definitions = new ColumnDefinitions.Definition[pNames.size()];
+        for (int i = 0; i < definitions.length; i++) {
+            definitions[i] = new ColumnDefinitions.Definition(pKeyspace, pTable, pNames.get(i), pTypes.get(i));
+        }
+        return new ColumnDefinitions(definitions, pCodecRegistry);
+    }
+
+    /*
+    The id of a prepared statement.  pRoutingKeyIndexes are the positions of the partition key columns among the
+    bound variables, or null if the statement does not bind the whole partition key.
+     */
+    public static PreparedId preparedId(String pQuery, ColumnDefinitions pVariables, ColumnDefinitions pResultColumns,
+                                        int[] pRoutingKeyIndexes, ProtocolVersion pProtocolVersion) {
+
+        MD5Digest id = MD5Digest.wrap(md5(pQuery));
+        return new PreparedId(
+                new PreparedId.PreparedMetadata(id, pVariables),
+                new PreparedId.PreparedMetadata(id, pResultColumns),
+                pRoutingKeyIndexes,
+                pProtocolVersion);
+    }
+
+    /*
+    Execution info for a request answered on the first attempt.  pPagingState is the raw paging state of the
+    next page, or null on the last page.
+     */
+    public static ExecutionInfo executionInfo(Statement pStatement, ByteBuffer pPagingState,
+                                              ProtocolVersion pProtocolVersion, CodecRegistry pCodecRegistry) {
+
+        return new ExecutionInfo(0, 0, Collections.<Host>emptyList(), pStatement.getConsistencyLevel(), null)
+                .with(null, Collections.<String>emptyList(), pPagingState, pStatement, pProtocolVersion, pCodecRegistry);
+    }
+
+    /*
+    A result row holding pValues, serialized, in the order of pColumns.
+     */
+    public static Row row(ColumnDefinitions pColumns, List<ByteBuffer> pValues, ProtocolVersion pProtocolVersion) {
+        return ArrayBackedRow.fromData(pColumns, MURMUR3, pProtocolVersion, pValues);
+    }
+
+    /*
+    The token of a partition key under the Murmur3 partitioner, as Token.getValue() would give it.
+     */
+    public static long murmur3Token(ByteBuffer pRoutingKey) {
+        return (Long) MURMUR3.hash(pRoutingKey).getValue();
+    }
+
+    /*
+    The raw paging state set on pStatement with setPagingState(), or null to start from the first page.
+     */
+    public static ByteBuffer pagingState(Statement pStatement) {
+        return pStatement.getPagingState();
+    }
+
+    /*
+    An already completed CloseFuture; CloseFuture cannot be subclassed outside the driver.
+     */
+    public static CloseFuture closedFuture() {
+        return CloseFuture.immediateFuture();
+    }
+
+    private static byte[] md5(String pQuery) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(pQuery.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
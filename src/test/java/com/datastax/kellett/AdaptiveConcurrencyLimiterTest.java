@@ -0,0 +1,50 @@
+package com.datastax.kellett;
+
+/*
+Tests of AdaptiveConcurrencyLimiter: drops cut the limit once per round trip, and minRtt is re-measured as the lowest
+response time of each probe window.
+*/
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public void testDropsInOneRoundTripCutTheLimitOnce() {
+
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 1, 1000);
+
+        // Ten requests sent a second ago all time out together: one cut
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(ONE_SECOND, true);
+        }
+        assertEquals(90, limiter.getLimit());
+        assertEquals(10, limiter.getDropped());
+
+        // A request sent after that cut still timing out is worth another
+        limiter.onSample(0, true);
+        assertEquals(81, limiter.getLimit());
+    }
+
+    public void testProbeTakesTheLowestResponseTimeOfTheWindow() {
+
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 1, 1000);
+        for (int i = 0; i < 5000; i++) {
+            limiter.onSample(TimeUnit.MICROSECONDS.toNanos(1000), false);
+        }
+        assertEquals(1000, limiter.getMinRttMicros());
+
+        // Latency moves up for good; the old baseline holds until the window ends, and then the best of the window
+        // rather than its last sample becomes the new one
+        for (int i = 0; i < 5000; i++) {
+            limiter.onSample(TimeUnit.MICROSECONDS.toNanos((i == 2500) ? 2000 : 3000), false);
+            if (i < 4999) {
+                assertEquals(1000, limiter.getMinRttMicros());
+            }
+        }
+        assertEquals(2000, limiter.getMinRttMicros());
+    }
+}
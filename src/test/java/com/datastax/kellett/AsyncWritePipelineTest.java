@@ -0,0 +1,128 @@
+package com.datastax.kellett;
+
+/*
+Tests of AsyncWritePipeline against a SimulatedSession: every write ends up succeeded or dead-lettered, and a write
+that executeAsync refuses outright gives its in-flight slot back.
+*/
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncWritePipelineTest extends TestCase {
+
+    // Refuses statements, as a closed session would, once refuseAfter()'s number of them have been sent
+    private static class RefusingSession extends SimulatedSession {
+
+        private final AtomicInteger sendsLeft = new AtomicInteger(Integer.MAX_VALUE);
+
+        RefusingSession() {
+            super(0);
+        }
+
+        RefusingSession refuseAfter(int pSends) {
+            sendsLeft.set(pSends);
+            return this;
+        }
+
+        @Override
+        public ResultSetFuture executeAsync(Statement pStatement) {
+            if (sendsLeft.getAndDecrement() <= 0) {
+                throw new IllegalStateException("Could not send request, session is closed");
+            }
+            return super.executeAsync(pStatement);
+        }
+    }
+
+    private RefusingSession session;
+    private PreparedStatement insert;
+    private final List<Throwable> deadLetters = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    protected void setUp() {
+
+        session = new RefusingSession();
+        session.execute("CREATE KEYSPACE test "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE test.accounts ( acct_no int, balance int, PRIMARY KEY (acct_no));");
+        insert = session.prepare("INSERT INTO test.accounts (acct_no, balance) VALUES (?, ?)");
+    }
+
+    @Override
+    protected void tearDown() {
+        session.close();
+    }
+
+    public void testWritesSucceed() throws Exception {
+
+        AsyncWritePipeline pipeline = new AsyncWritePipeline(session, 4, 2, (statement, error) -> deadLetters.add(error));
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(insert.bind(i, i));
+        }
+        pipeline.drain().get(5, TimeUnit.SECONDS);
+
+        assertEquals(100, pipeline.getSucceeded());
+        assertEquals(0, pipeline.getFailed());
+        assertEquals(100, session.getTable("test", "accounts").getRowCount());
+    }
+
+    public void testRefusedWritesGiveTheirSlotBack() throws Exception {
+
+        session.refuseAfter(0);
+        AsyncWritePipeline fixed = new AsyncWritePipeline(session, 1, 2, (statement, error) -> deadLetters.add(error));
+        AsyncWritePipeline adaptive = new AsyncWritePipeline(session, new AdaptiveConcurrencyLimiter(1, 1, 1), 2,
+                (statement, error) -> deadLetters.add(error));
+
+        // With a slot lost to each refused write, the second submit would block for good
+        submitInBackground(fixed, 3);
+        submitInBackground(adaptive, 3);
+
+        assertEquals(3, fixed.getFailed());
+        assertEquals(3, adaptive.getFailed());
+        assertEquals(6, deadLetters.size());
+        for (Throwable error : deadLetters) {
+            assertTrue(error instanceof IllegalStateException);
+        }
+    }
+
+    public void testRefusedRetryGivesItsSlotBack() throws Exception {
+
+        // The first attempt times out on the server, and the retry is refused
+        session.refuseAfter(1).setServerTimeoutMillis(10).setTimeoutFilter(statement -> true);
+        AsyncWritePipeline pipeline = new AsyncWritePipeline(session, 1, 2, (statement, error) -> deadLetters.add(error))
+                .setRetryBackoffMillis(1);
+
+        submitInBackground(pipeline, 1);
+
+        assertEquals(1, pipeline.getRetried());
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0) instanceof IllegalStateException);
+    }
+
+    // Submits pWrites writes and drains the pipeline, failing rather than hanging if either blocks
+    private void submitInBackground(AsyncWritePipeline pPipeline, int pWrites) throws Exception {
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                for (int i = 0; i < pWrites; i++) {
+                    pPipeline.submit(insert.bind(i, i));
+                }
+                return pPipeline.drain().get();
+            }).get(5, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.datastax.kellett;
+
+/*
+Tests of CachedMapper through the real driver and object mapper, connected to a SimulatedCqlServer on the loopback
+address: loads, write-through, a save racing a load, and a failed write on its own or racing a load.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.dse.DseCluster;
+import com.datastax.driver.mapping.MappingManager;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CachedMapperTest extends TestCase {
+
+    private SimulatedSession backend;
+    private SimulatedCqlServer server;
+    private DseCluster cluster;
+    private Session session;
+    private CachedMapper<Lab8Customer> customers;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        backend = new SimulatedSession(0);
+        server = new SimulatedCqlServer(backend, 0).start();
+        cluster = DseCluster.builder()
+                .addContactPoint("127.0.0.1")
+                .withPort(server.getAddress().getPort())
+                .withoutJMXReporting()
+                .build();
+        session = cluster.connect();
+
+        session.execute("CREATE KEYSPACE lab8 "
+                + "WITH REPLICATION = { 'class' : 'NetworkTopologyStrategy', 'DC1' : 1 };");
+        session.execute("CREATE TABLE lab8.customers ( country text, membership_tier int, income_tier int, "
+                + "acct_no int, first_name text, last_name text, "
+                + "PRIMARY KEY ((country, membership_tier), income_tier, acct_no));");
+
+        customers = new CachedMapper<>(new MappingManager(session).mapper(Lab8Customer.class),
+                customer -> Arrays.asList(customer.getCountry(), customer.getMembership_tier(),
+                        customer.getIncome_tier(), customer.getAcct_no()),
+                1000, 60000);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        session.close();
+        cluster.close();
+        server.close();
+        backend.close();
+    }
+
+    public void testAbsentKeyIsLoadedOnce() {
+
+        assertNull(customers.get("US", 1, 2, 1));
+        assertNull(customers.get("US", 1, 2, 1));
+        assertEquals(1, customers.getStats().loadCount());
+        assertEquals(1, customers.getStats().hitCount());
+    }
+
+    public void testSaveAndDeleteWriteThrough() {
+
+        Lab8Customer customer = new Lab8Customer("US", 1, 2, 1, "Ada", "Lovelace");
+        customers.save(customer);
+        assertSame(customer, customers.get("US", 1, 2, 1));
+        assertEquals(1, backend.getTable("lab8", "customers").getRowCount());
+
+        customers.delete(customer);
+        assertNull(customers.get("US", 1, 2, 1));
+        assertEquals(0, backend.getTable("lab8", "customers").getRowCount());
+
+        assertEquals(0, customers.getStats().loadCount());
+    }
+
+    public void testSaveDuringLoadWins() throws Exception {
+
+        session.execute("INSERT INTO lab8.customers "
+                + "(country, membership_tier, income_tier, acct_no, first_name, last_name) "
+                + "VALUES ('US', 1, 2, 3, 'Old', 'Name');");
+
+        // The load takes 300 milliseconds, and the save lands in the middle of it: the stale row must not win
+        backend.setReadLatency(SimulatedLatency.fixed(300000));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Lab8Customer> load = executor.submit(() -> customers.get("US", 1, 2, 3));
+            Thread.sleep(100);
+            Lab8Customer saved = new Lab8Customer("US", 1, 2, 3, "New", "Name");
+            customers.save(saved);
+
+            load.get();
+            assertSame(saved, customers.get("US", 1, 2, 3));
+            assertEquals(1, customers.getStats().loadCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailedWriteDuringLoadIsNotMaskedByTheLoad() throws Exception {
+
+        session.execute("INSERT INTO lab8.customers "
+                + "(country, membership_tier, income_tier, acct_no, first_name, last_name) "
+                + "VALUES ('US', 1, 2, 3, 'Old', 'Name');");
+
+        // The load reads the old row, then the write fails (having been applied) before the load completes
+        backend.setReadLatency(SimulatedLatency.fixed(300000));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Lab8Customer> load = executor.submit(() -> customers.get("US", 1, 2, 3));
+            Thread.sleep(100);
+            backend.setServerTimeoutMillis(10).setTimeoutFilter(this::isInsert);
+            try {
+                customers.save(new Lab8Customer("US", 1, 2, 3, "New", "Name"));
+                fail("the write should time out");
+            }
+            catch (DriverException e) {
+                // expected
+            }
+            backend.setTimeoutFilter(statement -> false);
+
+            load.get();
+            assertEquals("New", customers.get("US", 1, 2, 3).getFirst_name());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailedWriteDropsTheCachedEntity() {
+
+        customers.save(new Lab8Customer("US", 1, 2, 1, "Before", "Name"));
+
+        backend.setServerTimeoutMillis(10).setTimeoutFilter(this::isInsert);
+        try {
+            customers.save(new Lab8Customer("US", 1, 2, 1, "After", "Name"));
+            fail("the write should time out");
+        }
+        catch (DriverException e) {
+            // expected
+        }
+        backend.setTimeoutFilter(statement -> false);
+
+        // Whether or not the write was applied, the next read goes to the table rather than trusting the cache
+        Lab8Customer reloaded = customers.get("US", 1, 2, 1);
+        assertEquals(1, customers.getStats().loadCount());
+        assertEquals("After", reloaded.getFirst_name());
+    }
+
+    private boolean isInsert(Statement pStatement) {
+        return pStatement instanceof BoundStatement && ((BoundStatement) pStatement).preparedStatement()
+                .getQueryString().trim().toUpperCase().startsWith("INSERT");
+    }
+}
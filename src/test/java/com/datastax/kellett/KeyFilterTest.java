@@ -0,0 +1,80 @@
+package com.datastax.kellett;
+
+/*
+Tests of KeyFilter: no false negatives, a false positive rate close to the one it was sized for, and keys told
+apart by type.
+*/
+
+import junit.framework.TestCase;
+
+public class KeyFilterTest extends TestCase {
+
+    public void testEmptyFilterContainsNothing() {
+        assertFalse(new KeyFilter(100, 0.01).mightContain(1));
+    }
+
+    public void testNoFalseNegatives() {
+
+        KeyFilter filter = new KeyFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("country" + (i % 20), i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue("key " + i, filter.mightContain("country" + (i % 20), i));
+        }
+        assertEquals(10000, filter.getKeyCount());
+    }
+
+    public void testFalsePositiveRateIsNearTheTarget() {
+
+        KeyFilter filter = new KeyFilter(100000, 0.01);
+        for (int i = 0; i < 100000; i++) {
+            filter.put(i);
+        }
+
+        int falsePositives = 0;
+        int absent = 100000;
+        for (int i = 0; i < absent; i++) {
+            if (filter.mightContain(-1 - i)) {
+                falsePositives++;
+            }
+        }
+
+        double rate = (double) falsePositives / absent;
+        assertTrue("false positive rate " + rate, rate < 0.015);
+        assertEquals(0.01, filter.getExpectedFalsePositiveRate(), 0.002);
+    }
+
+    public void testValuesAreHashedByType() {
+
+        KeyFilter filter = new KeyFilter(100, 0.0001);
+        filter.put(42);
+
+        assertTrue(filter.mightContain(42));
+        assertFalse(filter.mightContain("42"));
+        assertFalse(filter.mightContain(42L));
+    }
+
+    public void testSizing() {
+
+        // About 9.6 bits per key and 7 hashes at 1%
+        KeyFilter filter = new KeyFilter(1000, 0.01);
+        assertTrue(filter.getBitCount() >= 9586 && filter.getBitCount() < 9586 + 64);
+        assertEquals(7, filter.getHashCount());
+    }
+
+    public void testInvalidSizingIsRejected() {
+        try {
+            new KeyFilter(0, 0.01);
+            fail("Expected keys must be positive");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        try {
+            new KeyFilter(100, 1);
+            fail("The false positive rate must be below 1");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.datastax.kellett;
+
+/*
+Tests of MappedCsvReader: field parsing, int overflow, and byte-range splits covering every record exactly once.
+*/
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedCsvReaderTest extends TestCase {
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = Files.createTempFile("mapped-csv-reader", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public void testReadsFieldsSkippingBlankLinesAndCarriageReturns() throws IOException {
+
+        write("1,Ann,Lee\r\n\n-42,Bob,\n2147483647,Cy,Po");
+
+        try (MappedCsvReader reader = new MappedCsvReader(file.toString())) {
+            assertTrue(reader.next());
+            assertEquals(1, reader.getInt(0));
+            assertEquals("Ann", reader.getString(1));
+            assertEquals("Lee", reader.getString(2));
+            assertEquals(0, reader.recordOffset());
+
+            assertTrue(reader.next());
+            assertEquals(-42, reader.getInt(0));
+            assertEquals("", reader.getString(2));
+            assertEquals(3, reader.fieldCount());
+            assertEquals(12, reader.recordOffset());
+
+            assertTrue(reader.next());
+            assertEquals(Integer.MAX_VALUE, reader.getInt(0));
+            assertEquals("Po", reader.getString(2));
+
+            assertFalse(reader.next());
+            assertEquals(3, reader.recordCount());
+        }
+    }
+
+    public void testIntOverflowAndMalformedIntsAreRejected() throws IOException {
+
+        write("2147483648\n-2147483648\n12x\n-\n");
+
+        try (MappedCsvReader reader = new MappedCsvReader(file.toString())) {
+            assertTrue(reader.next());
+            assertInvalidInt(reader, "overflow");
+
+            assertTrue(reader.next());
+            assertEquals(Integer.MIN_VALUE, reader.getInt(0));
+
+            assertTrue(reader.next());
+            assertInvalidInt(reader, "Malformed");
+
+            assertTrue(reader.next());
+            assertInvalidInt(reader, "Malformed");
+        }
+    }
+
+    public void testMissingFieldIsRejected() throws IOException {
+
+        write("1,Ann\n");
+
+        try (MappedCsvReader reader = new MappedCsvReader(file.toString())) {
+            assertTrue(reader.next());
+            try {
+                reader.getString(2);
+                fail("Field 2 does not exist");
+            }
+            catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+
+    public void testSplitsCoverEveryRecordExactlyOnce() throws IOException {
+
+        StringBuilder csv = new StringBuilder();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            // Records of varying length, so that split offsets land everywhere in a record
+            csv.append(i).append(",name").append(i % 7 == 0 ? "-with-a-longer-tail" : "").append('\n');
+            expected.add(i);
+        }
+        write(csv.toString());
+        long fileSize = Files.size(file);
+
+        for (int splits : new int[] {1, 2, 3, 7, 64, (int) fileSize}) {
+            long[] offsets = MappedCsvReader.splitOffsets(fileSize, splits);
+            List<Integer> read = new ArrayList<>();
+            for (int i = 0; i < splits; i++) {
+                try (MappedCsvReader reader = new MappedCsvReader(file, ',', offsets[i], offsets[i + 1])) {
+                    while (reader.next()) {
+                        read.add(reader.getInt(0));
+                    }
+                }
+            }
+            assertEquals(splits + " splits", expected, read);
+        }
+    }
+
+    public void testSplitStartingAtARecordOwnsIt() throws IOException {
+
+        write("1,a\n2,b\n3,c\n");
+
+        // Offset 4 is the first byte of record 2
+        try (MappedCsvReader reader = new MappedCsvReader(file, ',', 4, 8)) {
+            assertTrue(reader.next());
+            assertEquals(2, reader.getInt(0));
+            assertEquals(4, reader.recordOffset());
+            assertEquals(1, reader.recordCount());
+            assertFalse(reader.next());
+        }
+    }
+
+    private void write(String pContents) throws IOException {
+        Files.write(file, pContents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalidInt(MappedCsvReader pReader, String pMessage) {
+        try {
+            pReader.getInt(0);
+            fail("Expected a NumberFormatException");
+        }
+        catch (NumberFormatException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(pMessage));
+        }
+    }
+}
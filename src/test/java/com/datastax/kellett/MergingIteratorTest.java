@@ -0,0 +1,92 @@
+package com.datastax.kellett;
+
+/*
+Tests of MergingIterator's k-way merge.
+*/
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+public class MergingIteratorTest extends TestCase {
+
+    public void testMergesSortedSources() {
+
+        List<Iterator<Integer>> sources = Arrays.asList(
+                Arrays.asList(1, 4, 7).iterator(),
+                Collections.<Integer>emptyIterator(),
+                Arrays.asList(2, 5, 8, 9).iterator(),
+                Arrays.asList(3, 6).iterator());
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9),
+                drain(new MergingIterator<>(sources, Comparator.<Integer>naturalOrder())));
+    }
+
+    public void testEqualElementsComeOutInSourceOrder() {
+
+        // Ordered by the number only; the letter shows which source each came from
+        List<Iterator<String>> sources = Arrays.asList(
+                Arrays.asList("1a", "2a").iterator(),
+                Arrays.asList("1b", "2b").iterator(),
+                Arrays.asList("1c").iterator());
+
+        assertEquals(Arrays.asList("1a", "1b", "1c", "2a", "2b"),
+                drain(new MergingIterator<>(sources, Comparator.comparing((String s) -> s.charAt(0)))));
+    }
+
+    public void testHonoursTheGivenOrder() {
+
+        List<Iterator<Integer>> sources = Arrays.asList(
+                Arrays.asList(9, 5, 1).iterator(),
+                Arrays.asList(8, 2).iterator());
+
+        assertEquals(Arrays.asList(9, 8, 5, 2, 1),
+                drain(new MergingIterator<>(sources, Comparator.<Integer>reverseOrder())));
+    }
+
+    public void testRandomSourcesMatchASort() {
+
+        Random random = new Random(42);
+        List<Integer> all = new ArrayList<>();
+        List<Iterator<Integer>> sources = new ArrayList<>();
+        for (int s = 0; s < 20; s++) {
+            List<Integer> source = new ArrayList<>();
+            for (int i = random.nextInt(50); i > 0; i--) {
+                source.add(random.nextInt(100));
+            }
+            Collections.sort(source);
+            all.addAll(source);
+            sources.add(source.iterator());
+        }
+        Collections.sort(all);
+
+        assertEquals(all, drain(new MergingIterator<>(sources, Comparator.<Integer>naturalOrder())));
+    }
+
+    public void testExhaustedIteratorThrows() {
+
+        Iterator<Integer> merged = new MergingIterator<>(
+                Collections.<Iterator<Integer>>emptyList(), Comparator.<Integer>naturalOrder());
+
+        assertFalse(merged.hasNext());
+        try {
+            merged.next();
+            fail("Expected NoSuchElementException");
+        }
+        catch (NoSuchElementException expected) {
+        }
+    }
+
+    private static <T> List<T> drain(Iterator<T> pIterator) {
+        List<T> elements = new ArrayList<>();
+        pIterator.forEachRemaining(elements::add);
+        return elements;
+    }
+}
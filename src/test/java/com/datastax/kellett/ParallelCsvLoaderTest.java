@@ -0,0 +1,105 @@
+package com.datastax.kellett;
+
+/*
+Tests of ParallelCsvLoader against a SimulatedSession: every record is written once whatever the split size, and a
+bad record is reported by its byte offset in the file.
+*/
+
+import com.datastax.driver.core.PreparedStatement;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class ParallelCsvLoaderTest extends TestCase {
+
+    private SimulatedSession session;
+    private PreparedStatement insert;
+    private Path csv;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        session = new SimulatedSession(0);
+        session.execute("CREATE KEYSPACE test "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE test.customers "
+                + "( acct_no int, first_name text, last_name text, PRIMARY KEY (acct_no));");
+        insert = session.prepare("INSERT INTO test.customers (acct_no, first_name, last_name) VALUES (?, ?, ?)");
+        csv = Files.createTempFile("customers", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        session.close();
+        Files.deleteIfExists(csv);
+    }
+
+    public void testEveryRecordIsWrittenOnce() throws IOException {
+
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append(i).append(",First").append(i).append(",Last").append(i).append('\n');
+        }
+        Files.write(csv, lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<ParallelCsvLoader.SplitResult> results = loader(1024).load(csv.toString());
+
+        assertTrue(results.size() > 1);
+        long rows = 0;
+        long expectedStart = 0;
+        for (ParallelCsvLoader.SplitResult result : results) {
+            assertEquals(expectedStart, result.getStartOffset());
+            assertEquals(0, result.getFailures());
+            rows += result.getRows();
+            expectedStart = result.getEndOffset();
+        }
+        assertEquals(Files.size(csv), expectedStart);
+        assertEquals(1000, rows);
+        assertEquals(1000, session.getTable("test", "customers").getRowCount());
+    }
+
+    public void testBadRecordIsReportedByByteOffset() throws IOException {
+
+        StringBuilder lines = new StringBuilder();
+        long badOffset = -1;
+        for (int i = 0; i < 500; i++) {
+            if (i == 400) {
+                badOffset = lines.length();
+                lines.append("oops,First,Last\n");
+            }
+            else {
+                lines.append(i).append(",First").append(i).append(",Last").append(i).append('\n');
+            }
+        }
+        Files.write(csv, lines.toString().getBytes(StandardCharsets.US_ASCII));
+
+        List<ParallelCsvLoader.SplitResult> results = loader(1024).load(csv.toString());
+
+        long rows = 0;
+        long failures = 0;
+        String firstError = null;
+        for (ParallelCsvLoader.SplitResult result : results) {
+            rows += result.getRows();
+            failures += result.getFailures();
+            if (result.getFirstError() != null) {
+                assertNull("only one split fails", firstError);
+                firstError = result.getFirstError();
+                // The offset is into the file, not into the split
+                assertTrue(result.getStartOffset() > 0);
+            }
+        }
+        assertEquals(499, rows);
+        assertEquals(1, failures);
+        assertTrue(firstError, firstError.startsWith("record at byte offset " + badOffset + ": "));
+    }
+
+    private ParallelCsvLoader loader(long pSplitSize) {
+        return new ParallelCsvLoader(session,
+                record -> insert.bind(record.getInt(0), record.getString(1), record.getString(2)),
+                4, pSplitSize);
+    }
+}
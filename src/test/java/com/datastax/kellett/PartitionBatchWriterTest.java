@@ -0,0 +1,113 @@
+package com.datastax.kellett;
+
+/*
+Tests of PartitionBatchWriter against a SimulatedSession: batches hold one partition each, and respect both the
+statement and the byte caps.
+*/
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Statement;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PartitionBatchWriterTest extends TestCase {
+
+    private static final String NAME_40 = "0123456789012345678901234567890123456789";
+
+    private SimulatedSession session;
+    private PreparedStatement insert;
+    private final List<Statement> sent = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    protected void setUp() {
+
+        session = new SimulatedSession(0);
+        session.execute("CREATE KEYSPACE test "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE test.customers "
+                + "( country text, acct_no int, name text, PRIMARY KEY (country, acct_no));");
+        insert = session.prepare("INSERT INTO test.customers (country, acct_no, name) VALUES (?, ?, ?)");
+
+        // Never times a statement out; only notes what was sent
+        session.setTimeoutFilter(statement -> {
+            sent.add(statement);
+            return false;
+        });
+    }
+
+    @Override
+    protected void tearDown() {
+        session.close();
+    }
+
+    public void testBatchesHoldOnePartitionUpToMaxStatements() {
+
+        PartitionBatchWriter writer = new PartitionBatchWriter(session, 4, PartitionBatchWriter.DEFAULT_MAX_BYTES);
+        String[] countries = {"US", "FR", "JP"};
+        for (int i = 0; i < 10; i++) {
+            for (String country : countries) {
+                writer.add(insert.bind(country, i, "name"));
+            }
+        }
+        writer.flush();
+
+        // 4 + 4 + 2 for each country
+        assertEquals(9, writer.getBatchesSent());
+        assertEquals(30, writer.getStatementsSent());
+        assertEquals(9, sent.size());
+        for (Statement statement : sent) {
+            assertTrue(statement instanceof BatchStatement);
+            BatchStatement batch = (BatchStatement) statement;
+            assertTrue(batch.size() <= 4);
+            assertSinglePartition(batch);
+        }
+        assertEquals(30, session.getTable("test", "customers").getRowCount());
+    }
+
+    public void testBatchesRespectMaxBytes() {
+
+        // Each statement is estimated at about 80 bytes, so two fit under 200 and a third does not
+        PartitionBatchWriter writer = new PartitionBatchWriter(session, 100, 200);
+        for (int i = 0; i < 10; i++) {
+            writer.add(insert.bind("US", i, NAME_40));
+        }
+        writer.flush();
+
+        assertEquals(5, writer.getBatchesSent());
+        for (Statement statement : sent) {
+            assertEquals(2, ((BatchStatement) statement).size());
+        }
+        assertEquals(10, session.getTable("test", "customers").getRowCount());
+    }
+
+    public void testSingleStatementIsNotBatched() {
+
+        PartitionBatchWriter writer = new PartitionBatchWriter(session);
+        writer.add(insert.bind("US", 1, "name"));
+        writer.flush();
+
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0) instanceof BoundStatement);
+        assertEquals(1, session.getTable("test", "customers").getRowCount());
+    }
+
+    private void assertSinglePartition(BatchStatement pBatch) {
+
+        ByteBuffer routingKey = null;
+        for (Statement statement : pBatch.getStatements()) {
+            ByteBuffer key = ((BoundStatement) statement).getRoutingKey(
+                    session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion(),
+                    session.getCluster().getConfiguration().getCodecRegistry());
+            if (routingKey == null) {
+                routingKey = key;
+            }
+            assertEquals(routingKey, key);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.datastax.kellett;
+
+/*
+Tests of ReadCoalescer against a SimulatedSession whose reads take 200 milliseconds, so that reads issued together
+are all in flight at once.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+public class ReadCoalescerTest extends TestCase {
+
+    private SimulatedSession session;
+    private PreparedStatement select;
+
+    @Override
+    protected void setUp() {
+
+        session = new SimulatedSession(0);
+        session.execute("CREATE KEYSPACE test "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE test.accounts ( acct_no int, balance int, PRIMARY KEY (acct_no));");
+        session.execute("INSERT INTO test.accounts (acct_no, balance) VALUES (1, 100);");
+        session.execute("INSERT INTO test.accounts (acct_no, balance) VALUES (2, 200);");
+        select = session.prepare("SELECT * FROM test.accounts WHERE acct_no = ?");
+
+        session.setReadLatency(SimulatedLatency.fixed(200000));
+    }
+
+    @Override
+    protected void tearDown() {
+        session.close();
+    }
+
+    public void testConcurrentIdenticalReadsAreSentOnce() throws Exception {
+
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 0)) {
+
+            List<ListenableFuture<List<Row>>> reads = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                reads.add(coalescer.readAsync(select.bind(1)));
+            }
+            ListenableFuture<List<Row>> other = coalescer.readAsync(select.bind(2));
+
+            for (ListenableFuture<List<Row>> read : reads) {
+                assertEquals(100, read.get().get(0).getInt("balance"));
+            }
+            assertEquals(200, other.get().get(0).getInt("balance"));
+
+            assertEquals(51, coalescer.getRequests());
+            assertEquals(2, coalescer.getSent());
+            assertEquals(49, coalescer.getCollapsed());
+        }
+    }
+
+    public void testCancellingOneCallerLeavesTheReadForTheOthers() throws Exception {
+
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 0)) {
+
+            ListenableFuture<List<Row>> first = coalescer.readAsync(select.bind(1));
+            ListenableFuture<List<Row>> second = coalescer.readAsync(select.bind(1));
+            assertTrue(first.cancel(true));
+
+            assertTrue(first.isCancelled());
+            assertEquals(100, second.get().get(0).getInt("balance"));
+            assertEquals(1, coalescer.getSent());
+        }
+    }
+
+    public void testReadsOfLaterPagesAreNotShared() throws Exception {
+
+        session.setReadLatency(SimulatedLatency.fixed(0));
+        PreparedStatement scan = session.prepare("SELECT * FROM test.accounts");
+        PagingState second = session.execute(scan.bind().setFetchSize(1)).getExecutionInfo().getPagingState();
+        session.setReadLatency(SimulatedLatency.fixed(200000));
+
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 60000)) {
+
+            ListenableFuture<List<Row>> first = coalescer.readAsync((BoundStatement) scan.bind().setFetchSize(1));
+            ListenableFuture<List<Row>> later = coalescer.readAsync((BoundStatement) scan.bind().setFetchSize(1), second);
+            ListenableFuture<List<Row>> again = coalescer.readAsync((BoundStatement) scan.bind().setFetchSize(1), second);
+
+            assertEquals(1, first.get().size());
+            assertEquals(1, later.get().size());
+            assertFalse(first.get().get(0).getInt("acct_no") == later.get().get(0).getInt("acct_no"));
+            assertEquals(later.get().get(0).getInt("acct_no"), again.get().get(0).getInt("acct_no"));
+            assertEquals(3, coalescer.getSent());
+            assertEquals(0, coalescer.getCollapsed());
+        }
+    }
+
+    public void testCompletedReadsAreSharedOnlyWhileLingering() throws Exception {
+
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 0)) {
+            coalescer.readAsync(select.bind(1)).get();
+            coalescer.readAsync(select.bind(1)).get();
+            assertEquals(2, coalescer.getSent());
+        }
+
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 60000)) {
+            coalescer.readAsync(select.bind(1)).get();
+            coalescer.readAsync(select.bind(1)).get();
+            assertEquals(1, coalescer.getSent());
+            assertEquals(1, coalescer.getCollapsed());
+        }
+    }
+
+    public void testReadsAreNotSharedOnceCompleteAfterClose() throws Exception {
+
+        ReadCoalescer coalescer = new ReadCoalescer(session, 60000);
+
+        // One read lingering when closed, and one still in flight
+        coalescer.readAsync(select.bind(1)).get();
+        ListenableFuture<List<Row>> inFlight = coalescer.readAsync(select.bind(2));
+        coalescer.close();
+
+        assertEquals(200, inFlight.get().get(0).getInt("balance"));
+        coalescer.readAsync(select.bind(1)).get();
+        coalescer.readAsync(select.bind(2)).get();
+        assertEquals(4, coalescer.getSent());
+        assertEquals(0, coalescer.getCollapsed());
+    }
+
+    public void testFailedReadIsNotShared() throws InterruptedException {
+
+        session.setTimeoutFilter(statement -> true).setServerTimeoutMillis(10);
+        try (ReadCoalescer coalescer = new ReadCoalescer(session, 60000)) {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    coalescer.readAsync(select.bind(1)).get();
+                    fail("the read should time out");
+                }
+                catch (ExecutionException e) {
+                    // expected
+                }
+            }
+            assertEquals(2, coalescer.getSent());
+        }
+    }
+}
@@ -0,0 +1,1125 @@
+package com.datastax.kellett;
+
+/*
+SimulatedCqlServer is a stand-in for a DSE node that the real driver connects to over a loopback socket.
+
+SimulatedSession skips the driver entirely, so it hides what the driver costs: encoding requests, framing, the
+connection pool and its stream ids, and decoding responses.  This server speaks enough of CQL native protocol v4
+(STARTUP, OPTIONS, REGISTER, QUERY, PREPARE, EXECUTE and BATCH, with paging and tracing) that an unmodified
+DseCluster.builder().addContactPoint("127.0.0.1") connects to it, so driver settings such as pooling options,
+fetch size or load balancing can be benchmarked end to end without a cluster.
+
+Behind the socket, statements run on a SimulatedSession: its in-memory tables hold the keyspaces the labs create,
+and its latency models, host queues and timeouts decide how long each response takes and whether it fails.  The
+queries the driver makes about the cluster itself (system.local, system_schema, system_traces) are answered by
+SimulatedSystemTables.  To the driver it is a single DSE node in data center DC1.
+
+Not simulated: protocol versions other than v4 (the driver's DSE_V2 and DSE_V1 are refused, and it falls back to
+v4 by itself), compression, authentication, named values, and pushed events.  Schema changes are reported in the
+response to the statement that made them, which is enough for the client that made them.
+
+Run it from the command line, then run the labs against 127.0.0.1:
+    java ... SimulatedCqlServer [port] [median latency in micros] [99th percentile latency in micros]
+*/
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SimulatedCqlServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 9042;
+
+    private static final int PROTOCOL_VERSION = 4;
+    private static final int RESPONSE = 0x80;
+    private static final int HEADER_LENGTH = 9;
+    private static final int MAX_BODY_LENGTH = 256 * 1024 * 1024;
+
+    // Frame flags
+    private static final int FLAG_COMPRESSED = 0x01;
+    private static final int FLAG_TRACING = 0x02;
+    private static final int FLAG_CUSTOM_PAYLOAD = 0x04;
+
+    // Opcodes
+    private static final int ERROR = 0x00;
+    private static final int STARTUP = 0x01;
+    private static final int READY = 0x02;
+    private static final int OPTIONS = 0x05;
+    private static final int SUPPORTED = 0x06;
+    private static final int QUERY = 0x07;
+    private static final int RESULT = 0x08;
+    private static final int PREPARE = 0x09;
+    private static final int EXECUTE = 0x0A;
+    private static final int REGISTER = 0x0B;
+    private static final int BATCH = 0x0D;
+
+    // Result kinds
+    private static final int VOID = 0x0001;
+    private static final int ROWS = 0x0002;
+    private static final int SET_KEYSPACE = 0x0003;
+    private static final int PREPARED = 0x0004;
+    private static final int SCHEMA_CHANGE = 0x0005;
+
+    // Result metadata flags
+    private static final int GLOBAL_TABLES_SPEC = 0x0001;
+    private static final int HAS_MORE_PAGES = 0x0002;
+    private static final int NO_METADATA = 0x0004;
+
+    // Query parameter flags
+    private static final int VALUES = 0x01;
+    private static final int SKIP_METADATA = 0x02;
+    private static final int PAGE_SIZE = 0x04;
+    private static final int WITH_PAGING_STATE = 0x08;
+    private static final int WITH_SERIAL_CONSISTENCY = 0x10;
+    private static final int WITH_DEFAULT_TIMESTAMP = 0x20;
+    private static final int WITH_NAMES_FOR_VALUES = 0x40;
+
+    // Error codes
+    private static final int SERVER_ERROR = 0x0000;
+    private static final int PROTOCOL_ERROR = 0x000A;
+    private static final int OVERLOADED = 0x1001;
+    private static final int WRITE_TIMEOUT = 0x1100;
+    private static final int READ_TIMEOUT = 0x1200;
+    private static final int INVALID = 0x2200;
+    private static final int UNPREPARED = 0x2500;
+
+    // In the order of their protocol codes
+    private static final List<ConsistencyLevel> CONSISTENCY_LEVELS = Arrays.asList(
+            ConsistencyLevel.ANY, ConsistencyLevel.ONE, ConsistencyLevel.TWO, ConsistencyLevel.THREE,
+            ConsistencyLevel.QUORUM, ConsistencyLevel.ALL, ConsistencyLevel.LOCAL_QUORUM, ConsistencyLevel.EACH_QUORUM,
+            ConsistencyLevel.SERIAL, ConsistencyLevel.LOCAL_SERIAL, ConsistencyLevel.LOCAL_ONE);
+
+    private static final Pattern USE = Pattern.compile("\\s*USE\\s+(?:\"((?:[^\"]|\"\")+)\"|(\\w+))\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SELECT = Pattern.compile("\\s*SELECT\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern CONDITIONAL = Pattern.compile(".*\\sIF\\s+(?:NOT\\s+)?EXISTS\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern KEYSPACE_CHANGE = Pattern.compile(
+            "\\s*(CREATE|ALTER|DROP)\\s+KEYSPACE\\s+(IF\\s+(?:NOT\\s+)?EXISTS\\s+)?(\\w+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern TABLE_CHANGE = Pattern.compile(
+            "\\s*(CREATE|ALTER|DROP)\\s+(?:TABLE|COLUMNFAMILY)\\s+(IF\\s+(?:NOT\\s+)?EXISTS\\s+)?(\\w+)\\.(\\w+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern INDEX_CHANGE = Pattern.compile(
+            "\\s*(CREATE|DROP)\\s+(?:CUSTOM\\s+|SEARCH\\s+)?INDEX\\s.*?\\sON\\s+(\\w+)\\.(\\w+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final SimulatedSession session;
+    private final SimulatedSystemTables systemTables;
+    private final ServerSocket serverSocket;
+    private final CodecRegistry codecRegistry;
+    private final ProtocolVersion protocolVersion = ProtocolVersion.V4;
+
+    private final Map<ByteBuffer, SimulatedPreparedStatement> prepared = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    /*
+    Listens on 127.0.0.1:pPort; statements run on pSession.
+     */
+    public SimulatedCqlServer(SimulatedSession pSession, int pPort) throws IOException {
+
+        session = pSession;
+        codecRegistry = pSession.getCluster().getConfiguration().getCodecRegistry();
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), pPort));
+
+        systemTables = new SimulatedSystemTables(
+                pSession, serverSocket.getInetAddress(), codecRegistry, protocolVersion);
+    }
+
+    /*
+    Starts accepting connections, on a thread of its own.
+     */
+    public SimulatedCqlServer start() {
+
+        Thread acceptor = new Thread(this::accept, "simulated-cql-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        closed = true;
+        serverSocket.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+
+                Thread reader = new Thread(connection, "simulated-cql-connection-" + connectionCount.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Simulated CQL server could not accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+    One client connection.  Its thread reads and dispatches requests; responses are written by whichever thread
+    completes them, so requests on different stream ids are answered out of order, as a real node does.
+     */
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        Connection(Socket pSocket) throws IOException {
+            socket = pSocket;
+            in = new DataInputStream(pSocket.getInputStream());
+            out = new BufferedOutputStream(pSocket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+
+            byte[] header = new byte[HEADER_LENGTH];
+            try {
+                while (!closed) {
+                    in.readFully(header);
+                    ByteBuffer frame = ByteBuffer.wrap(header);
+                    int version = frame.get() & 0x7F;
+                    int flags = frame.get();
+                    short stream = frame.getShort();
+                    int opcode = frame.get();
+                    int length = frame.getInt();
+
+                    if (length < 0 || length > MAX_BODY_LENGTH) {
+                        error(version, stream, PROTOCOL_ERROR, "Invalid frame body length " + length, null);
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+
+                    // Answered in the client's version, so that it can read the error and try a lower one
+                    if (version != PROTOCOL_VERSION) {
+                        error(version, stream, PROTOCOL_ERROR, "Invalid or unsupported protocol version ("
+                                + version + "); the lowest supported version is 4 and the greatest is 4", null);
+                        break;
+                    }
+                    if ((flags & FLAG_COMPRESSED) != 0) {
+                        error(version, stream, PROTOCOL_ERROR, "Compression is not simulated", null);
+                        break;
+                    }
+
+                    ByteBuffer request = ByteBuffer.wrap(body);
+                    if ((flags & FLAG_CUSTOM_PAYLOAD) != 0) {
+                        skipBytesMap(request);
+                    }
+
+                    try {
+                        dispatch(stream, opcode, (flags & FLAG_TRACING) != 0, request);
+                    }
+                    catch (RuntimeException e) {
+                        fail(stream, e);
+                    }
+                }
+            }
+            catch (EOFException | SocketException e) {
+                // The client closed the connection
+            }
+            catch (IOException e) {
+                System.out.println("Simulated CQL connection failed: " + e.getMessage());
+            }
+            finally {
+                close();
+            }
+        }
+
+        void close() {
+
+            connections.remove(this);
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private void dispatch(short pStream, int pOpcode, boolean pTracing, ByteBuffer pBody) throws IOException {
+
+            switch (pOpcode) {
+                case STARTUP:
+                    Map<String, String> options = readStringMap(pBody);
+                    if (options.containsKey("COMPRESSION")) {
+                        error(PROTOCOL_VERSION, pStream, PROTOCOL_ERROR, "Compression is not simulated", null);
+                    }
+                    else {
+                        respond(pStream, READY, null, new ByteArrayOutputStream());
+                    }
+                    break;
+
+                case OPTIONS:
+                    respond(pStream, SUPPORTED, null, supported());
+                    break;
+
+                case REGISTER:
+                    // Events are never pushed, so there is nothing to remember
+                    respond(pStream, READY, null, new ByteArrayOutputStream());
+                    break;
+
+                case QUERY:
+                    query(pStream, pTracing, pBody);
+                    break;
+
+                case PREPARE:
+                    prepare(pStream, readLongString(pBody));
+                    break;
+
+                case EXECUTE:
+                    execute(pStream, pTracing, pBody);
+                    break;
+
+                case BATCH:
+                    batch(pStream, pTracing, pBody);
+                    break;
+
+                default:
+                    error(PROTOCOL_VERSION, pStream, PROTOCOL_ERROR, "Unsupported opcode " + pOpcode, null);
+            }
+        }
+
+        private void query(short pStream, boolean pTracing, ByteBuffer pBody) throws IOException {
+
+            String query = readLongString(pBody);
+            QueryParameters parameters = new QueryParameters(pBody);
+
+            Matcher use = USE.matcher(query);
+            if (use.matches()) {
+                String name = (use.group(1) != null) ? use.group(1).replace("\"\"", "\"") : use.group(2);
+                if (!session.getKeyspaces().containsKey(name.toLowerCase(Locale.ROOT))
+                        && !SimulatedSystemTables.isSystemKeyspace(name) && !name.startsWith("dse")) {
+                    throw new InvalidQueryException("Keyspace '" + name + "' does not exist");
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(body);
+                data.writeInt(SET_KEYSPACE);
+                writeString(data, name);
+                respond(pStream, RESULT, null, body);
+                return;
+            }
+
+            SimulatedSystemTables.Result system = systemTables.execute(query, parameters.values);
+            if (system != null) {
+                respond(pStream, RESULT, null, rows(system.keyspace, system.table, system.columnNames,
+                        system.columnTypes, system.rows, null, parameters.skipMetadata));
+                return;
+            }
+
+            SimpleStatement statement = simpleStatement(query, parameters.values);
+            parameters.applyTo(statement);
+
+            run(pStream, pTracing, statement, query, "Execute CQL3 query", parameters);
+        }
+
+        private void prepare(short pStream, String pQuery) throws IOException {
+
+            SimulatedPreparedStatement statement = (SimulatedPreparedStatement) session.prepare(pQuery);
+            byte[] id = md5(pQuery);
+            prepared.put(ByteBuffer.wrap(id), statement);
+
+            ColumnDefinitions variables = statement.getVariables();
+            SimulatedTable table = statement.getTable();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeInt(PREPARED);
+            writeShortBytes(data, id);
+
+            // The positions of the partition key among the variables let the driver route bound statements
+            List<Integer> partitionKeyIndexes = new ArrayList<>();
+            for (String column : table.getPartitionKey()) {
+                int index = variables.contains(column) ? variables.getIndexOf(column) : -1;
+                if (index < 0) {
+                    partitionKeyIndexes.clear();
+                    break;
+                }
+                partitionKeyIndexes.add(index);
+            }
+
+            data.writeInt((variables.size() > 0) ? GLOBAL_TABLES_SPEC : 0);
+            data.writeInt(variables.size());
+            data.writeInt(partitionKeyIndexes.size());
+            for (int index : partitionKeyIndexes) {
+                data.writeShort(index);
+            }
+            writeColumnSpecs(data, table.getKeyspace(), table.getName(), variables);
+
+            ColumnDefinitions resultColumns = statement.getResultColumns();
+            if (resultColumns.size() > 0) {
+                data.writeInt(GLOBAL_TABLES_SPEC);
+                data.writeInt(resultColumns.size());
+                writeColumnSpecs(data, table.getKeyspace(), table.getName(), resultColumns);
+            }
+            else {
+                data.writeInt(NO_METADATA);
+                data.writeInt(0);
+            }
+
+            respond(pStream, RESULT, null, body);
+        }
+
+        private void execute(short pStream, boolean pTracing, ByteBuffer pBody) throws IOException {
+
+            byte[] id = readShortBytes(pBody);
+            SimulatedPreparedStatement statement = prepared.get(ByteBuffer.wrap(id));
+            if (statement == null) {
+                unprepared(pStream, id);
+                return;
+            }
+
+            QueryParameters parameters = new QueryParameters(pBody);
+            BoundStatement bound = bind(statement, parameters.values);
+            parameters.applyTo(bound);
+
+            run(pStream, pTracing, bound, statement.getQueryString(), "Execute CQL3 prepared query", parameters);
+        }
+
+        private void batch(short pStream, boolean pTracing, ByteBuffer pBody) throws IOException {
+
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.values()[pBody.get()]);
+            StringBuilder queries = new StringBuilder();
+
+            int count = pBody.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int kind = pBody.get();
+                String query = null;
+                byte[] id = null;
+                if (kind == 0) {
+                    query = readLongString(pBody);
+                }
+                else {
+                    id = readShortBytes(pBody);
+                }
+
+                List<ByteBuffer> values = readValues(pBody);
+
+                if (id != null) {
+                    SimulatedPreparedStatement statement = prepared.get(ByteBuffer.wrap(id));
+                    if (statement == null) {
+                        unprepared(pStream, id);
+                        return;
+                    }
+                    batch.add(bind(statement, values));
+                    query = statement.getQueryString();
+                }
+                else {
+                    batch.add(simpleStatement(query, values));
+                }
+                if (queries.length() == 0) {
+                    queries.append(query);
+                }
+            }
+
+            batch.setConsistencyLevel(readConsistency(pBody));
+            int flags = pBody.get();
+            if ((flags & WITH_NAMES_FOR_VALUES) != 0) {
+                throw new InvalidQueryException("Named values are not simulated");
+            }
+            if ((flags & WITH_SERIAL_CONSISTENCY) != 0) {
+                batch.setSerialConsistencyLevel(readConsistency(pBody));
+            }
+            if ((flags & WITH_DEFAULT_TIMESTAMP) != 0) {
+                batch.setDefaultTimestamp(pBody.getLong());
+            }
+            batch.setReadTimeoutMillis(0);
+
+            run(pStream, pTracing, batch, queries.toString(), "Execute batch of CQL3 queries", null);
+        }
+
+        // Runs pStatement on the session and answers when it completes
+        private void run(short pStream, boolean pTracing, Statement pStatement, String pQuery, String pRequest,
+                         QueryParameters pParameters) throws IOException {
+
+            SchemaChange schemaChange = SchemaChange.of(pQuery, session);
+            boolean skipMetadata = (pParameters != null) && pParameters.skipMetadata;
+            UUID traceId = pTracing ? UUIDs.timeBased() : null;
+            long startedAtMillis = System.currentTimeMillis();
+            long startedAtNanos = System.nanoTime();
+
+            Futures.addCallback(session.executeAsync(pStatement), new FutureCallback<ResultSet>() {
+
+                @Override
+                public void onSuccess(ResultSet pResult) {
+                    try {
+                        int rowCount = pResult.getAvailableWithoutFetching();
+                        respond(pStream, RESULT, traceId, result(pStatement, pQuery, pResult, schemaChange,
+                                skipMetadata));
+                        if (traceId != null) {
+                            trace(rowCount);
+                        }
+                    }
+                    catch (IOException | RuntimeException e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable pError) {
+                    fail(pStream, pError);
+                }
+
+                private void trace(int pRows) {
+
+                    Map<String, String> parameters = new LinkedHashMap<>();
+                    parameters.put("consistency_level", String.valueOf(pStatement.getConsistencyLevel()));
+                    if (pParameters != null && pParameters.pageSize > 0) {
+                        parameters.put("page_size", String.valueOf(pParameters.pageSize));
+                    }
+                    parameters.put("query", pQuery);
+
+                    SimulatedTable table = tableOf(pStatement);
+                    systemTables.addTrace(traceId, socket.getInetAddress(), pRequest, parameters, startedAtMillis,
+                            (int) TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAtNanos),
+                            (table != null) ? table.getName() : "", SELECT.matcher(pQuery).matches(), pRows);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private ByteArrayOutputStream result(Statement pStatement, String pQuery, ResultSet pResult,
+                                             SchemaChange pSchemaChange, boolean pSkipMetadata) throws IOException {
+
+            if (pSchemaChange != null) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(body);
+                data.writeInt(SCHEMA_CHANGE);
+                writeString(data, pSchemaChange.change);
+                writeString(data, pSchemaChange.target);
+                writeString(data, pSchemaChange.keyspace);
+                if (pSchemaChange.table != null) {
+                    writeString(data, pSchemaChange.table);
+                }
+                return body;
+            }
+
+            if (SELECT.matcher(pQuery).matches()) {
+                ColumnDefinitions columns = pResult.getColumnDefinitions();
+                String keyspace = (columns.size() > 0) ? columns.getKeyspace(0) : null;
+                String tableName = (columns.size() > 0) ? columns.getTable(0) : null;
+                List<String> names = new ArrayList<>();
+                List<DataType> types = new ArrayList<>();
+                for (ColumnDefinitions.Definition column : columns) {
+                    names.add(column.getName());
+                    types.add(column.getType());
+                }
+
+                // Only this page: its rows are all there, and the driver asks for the next one itself
+                int available = pResult.getAvailableWithoutFetching();
+                List<List<ByteBuffer>> rows = new ArrayList<>(available);
+                for (int i = 0; i < available; i++) {
+                    Row row = pResult.one();
+                    List<ByteBuffer> values = new ArrayList<>(columns.size());
+                    for (int column = 0; column < columns.size(); column++) {
+                        values.add(row.getBytesUnsafe(column));
+                    }
+                    rows.add(values);
+                }
+
+                byte[] pagingState = pResult.getExecutionInfo().getPagingStateUnsafe();
+                return rows(keyspace, tableName, names, types, rows, pagingState, pSkipMetadata);
+            }
+
+            if (!(pStatement instanceof BatchStatement) && CONDITIONAL.matcher(pQuery).matches()) {
+                SimulatedTable table = tableOf(pStatement);
+                ByteBuffer applied = codecRegistry.codecFor(DataType.cboolean())
+                        .serialize(pResult.wasApplied(), protocolVersion);
+                return rows(table.getKeyspace(), table.getName(), Collections.singletonList("[applied]"),
+                        Collections.singletonList(DataType.cboolean()),
+                        Collections.singletonList(Collections.singletonList(applied)), null, false);
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new DataOutputStream(body).writeInt(VOID);
+            return body;
+        }
+
+        private ByteArrayOutputStream rows(String pKeyspace, String pTable, List<String> pNames,
+                                           List<DataType> pTypes, List<List<ByteBuffer>> pRows,
+                                           byte[] pPagingState, boolean pSkipMetadata) throws IOException {
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeInt(ROWS);
+
+            int flags = 0;
+            if (pPagingState != null) {
+                flags |= HAS_MORE_PAGES;
+            }
+            if (pSkipMetadata) {
+                flags |= NO_METADATA;
+            }
+            else if (!pNames.isEmpty()) {
+                flags |= GLOBAL_TABLES_SPEC;
+            }
+
+            data.writeInt(flags);
+            data.writeInt(pNames.size());
+            if (pPagingState != null) {
+                writeBytes(data, ByteBuffer.wrap(pPagingState));
+            }
+            if ((flags & GLOBAL_TABLES_SPEC) != 0) {
+                writeString(data, pKeyspace);
+                writeString(data, pTable);
+                for (int i = 0; i < pNames.size(); i++) {
+                    writeString(data, pNames.get(i));
+                    writeType(data, pTypes.get(i));
+                }
+            }
+
+            data.writeInt(pRows.size());
+            for (List<ByteBuffer> row : pRows) {
+                for (ByteBuffer value : row) {
+                    writeBytes(data, value);
+                }
+            }
+            return body;
+        }
+
+        private ByteArrayOutputStream supported() throws IOException {
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeShort(3);
+            writeString(data, "CQL_VERSION");
+            writeStringList(data, Collections.singletonList("3.4.4"));
+            writeString(data, "COMPRESSION");
+            writeStringList(data, Collections.<String>emptyList());
+            writeString(data, "PROTOCOL_VERSIONS");
+            writeStringList(data, Collections.singletonList("4/v4"));
+            return body;
+        }
+
+        private void unprepared(short pStream, byte[] pId) {
+            error(PROTOCOL_VERSION, pStream, UNPREPARED, "Prepared query with ID " + hex(pId)
+                    + " not found (either the query was not prepared on this host (maybe the host has been "
+                    + "restarted?) or you have prepared too many queries and it has been evicted from the internal "
+                    + "cache)", data -> writeShortBytes(data, pId));
+        }
+
+        // Answers with the error a node would have sent for pError
+        private void fail(short pStream, Throwable pError) {
+
+            if (pError instanceof WriteTimeoutException) {
+                WriteTimeoutException timeout = (WriteTimeoutException) pError;
+                error(PROTOCOL_VERSION, pStream, WRITE_TIMEOUT, timeout.getMessage(), data -> {
+                    data.writeShort(CONSISTENCY_LEVELS.indexOf(timeout.getConsistencyLevel()));
+                    data.writeInt(timeout.getReceivedAcknowledgements());
+                    data.writeInt(timeout.getRequiredAcknowledgements());
+                    writeString(data, timeout.getWriteType().name());
+                });
+            }
+            else if (pError instanceof ReadTimeoutException) {
+                ReadTimeoutException timeout = (ReadTimeoutException) pError;
+                error(PROTOCOL_VERSION, pStream, READ_TIMEOUT, timeout.getMessage(), data -> {
+                    data.writeShort(CONSISTENCY_LEVELS.indexOf(timeout.getConsistencyLevel()));
+                    data.writeInt(timeout.getReceivedAcknowledgements());
+                    data.writeInt(timeout.getRequiredAcknowledgements());
+                    data.writeByte(timeout.wasDataRetrieved() ? 1 : 0);
+                });
+            }
+            else if (pError instanceof NoHostAvailableException) {
+                // Every simulated host had its queue full
+                error(PROTOCOL_VERSION, pStream, OVERLOADED, "Server is overloaded: too many queued requests", null);
+            }
+            else if (pError instanceof InvalidQueryException || pError instanceof IllegalArgumentException
+                    || pError instanceof UnsupportedOperationException) {
+                error(PROTOCOL_VERSION, pStream, INVALID, pError.getMessage(), null);
+            }
+            else {
+                error(PROTOCOL_VERSION, pStream, SERVER_ERROR, String.valueOf(pError), null);
+            }
+        }
+
+        private void error(int pVersion, short pStream, int pCode, String pMessage, ErrorDetails pDetails) {
+            try {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(body);
+                data.writeInt(pCode);
+                writeString(data, String.valueOf(pMessage));
+                if (pDetails != null) {
+                    pDetails.write(data);
+                }
+                write(pVersion, pStream, ERROR, null, body);
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        private void respond(short pStream, int pOpcode, UUID pTraceId, ByteArrayOutputStream pBody) {
+            try {
+                write(PROTOCOL_VERSION, pStream, pOpcode, pTraceId, pBody);
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write(int pVersion, short pStream, int pOpcode, UUID pTraceId, ByteArrayOutputStream pBody)
+                throws IOException {
+
+            int length = pBody.size() + ((pTraceId != null) ? 16 : 0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + ((pTraceId != null) ? 16 : 0));
+            header.put((byte) (RESPONSE | pVersion));
+            header.put((byte) ((pTraceId != null) ? FLAG_TRACING : 0));
+            header.putShort(pStream);
+            header.put((byte) pOpcode);
+            header.putInt(length);
+            if (pTraceId != null) {
+                header.putLong(pTraceId.getMostSignificantBits());
+                header.putLong(pTraceId.getLeastSignificantBits());
+            }
+
+            synchronized (out) {
+                out.write(header.array());
+                pBody.writeTo(out);
+                out.flush();
+            }
+        }
+    }
+
+    /*
+    The <query_parameters> of a QUERY or EXECUTE request.
+     */
+    private static final class QueryParameters {
+
+        final ConsistencyLevel consistency;
+        final List<ByteBuffer> values;
+        final boolean skipMetadata;
+        final int pageSize;
+        final byte[] pagingState;
+        final ConsistencyLevel serialConsistency;
+        final long defaultTimestamp;
+
+        QueryParameters(ByteBuffer pBody) {
+
+            consistency = readConsistency(pBody);
+            int flags = pBody.get();
+
+            if ((flags & WITH_NAMES_FOR_VALUES) != 0) {
+                throw new InvalidQueryException("Named values are not simulated");
+            }
+            values = ((flags & VALUES) != 0) ? readValues(pBody) : Collections.<ByteBuffer>emptyList();
+            skipMetadata = (flags & SKIP_METADATA) != 0;
+            pageSize = ((flags & PAGE_SIZE) != 0) ? pBody.getInt() : -1;
+            pagingState = ((flags & WITH_PAGING_STATE) != 0) ? readBytes(pBody) : null;
+            serialConsistency = ((flags & WITH_SERIAL_CONSISTENCY) != 0) ? readConsistency(pBody) : null;
+            defaultTimestamp = ((flags & WITH_DEFAULT_TIMESTAMP) != 0) ? pBody.getLong() : Long.MIN_VALUE;
+        }
+
+        void applyTo(Statement pStatement) {
+
+            pStatement.setConsistencyLevel(consistency);
+            // Without a page size, a node returns every row at once
+            pStatement.setFetchSize((pageSize > 0) ? pageSize : Integer.MAX_VALUE);
+            if (pagingState != null) {
+                pStatement.setPagingStateUnsafe(pagingState);
+            }
+            if (serialConsistency != null) {
+                pStatement.setSerialConsistencyLevel(serialConsistency);
+            }
+            if (defaultTimestamp != Long.MIN_VALUE) {
+                pStatement.setDefaultTimestamp(defaultTimestamp);
+            }
+            // The client keeps its own timeout; the session must not time the request out a second time
+            pStatement.setReadTimeoutMillis(0);
+        }
+    }
+
+    /*
+    The SCHEMA_CHANGE result of a DDL statement, or none if it changed nothing (IF [NOT] EXISTS).
+     */
+    private static final class SchemaChange {
+
+        final String change;
+        final String target;
+        final String keyspace;
+        final String table;
+
+        private SchemaChange(String pChange, String pTarget, String pKeyspace, String pTable) {
+            change = pChange;
+            target = pTarget;
+            keyspace = pKeyspace;
+            table = pTable;
+        }
+
+        // Checked before the statement runs, to know whether it will change anything
+        static SchemaChange of(String pQuery, SimulatedSession pSession) {
+
+            Matcher keyspace = KEYSPACE_CHANGE.matcher(pQuery);
+            if (keyspace.matches()) {
+                String name = keyspace.group(3).toLowerCase(Locale.ROOT);
+                boolean exists = pSession.getKeyspaces().containsKey(name);
+                return of(keyspace.group(1), keyspace.group(2) != null, exists, "KEYSPACE", name, null);
+            }
+
+            Matcher table = TABLE_CHANGE.matcher(pQuery);
+            if (table.matches()) {
+                boolean exists = pSession.getTable(table.group(3), table.group(4)) != null;
+                return of(table.group(1), table.group(2) != null, exists, "TABLE",
+                        table.group(3).toLowerCase(Locale.ROOT), table.group(4).toLowerCase(Locale.ROOT));
+            }
+
+            Matcher index = INDEX_CHANGE.matcher(pQuery);
+            if (index.matches()) {
+                return new SchemaChange("UPDATED", "TABLE",
+                        index.group(2).toLowerCase(Locale.ROOT), index.group(3).toLowerCase(Locale.ROOT));
+            }
+            return null;
+        }
+
+        private static SchemaChange of(String pVerb, boolean pConditional, boolean pExists, String pTarget,
+                                       String pKeyspace, String pTable) {
+
+            String verb = pVerb.toUpperCase(Locale.ROOT);
+            if (pConditional && (verb.equals("CREATE") == pExists)) {
+                return null;
+            }
+            String change = verb.equals("CREATE") ? "CREATED" : verb.equals("DROP") ? "DROPPED" : "UPDATED";
+            return new SchemaChange(change, pTarget, pKeyspace, pTable);
+        }
+    }
+
+    private interface ErrorDetails {
+        void write(DataOutputStream pData) throws IOException;
+    }
+
+    private SimulatedTable tableOf(Statement pStatement) {
+
+        if (pStatement instanceof BoundStatement) {
+            return ((SimulatedPreparedStatement) ((BoundStatement) pStatement).preparedStatement()).getTable();
+        }
+        if (pStatement instanceof SimpleStatement) {
+            try {
+                return SimulatedQuery.parse(((SimpleStatement) pStatement).getQueryString(codecRegistry),
+                        session::getTable).getTable();
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        if (pStatement instanceof BatchStatement && !((BatchStatement) pStatement).getStatements().isEmpty()) {
+            return tableOf(((BatchStatement) pStatement).getStatements().iterator().next());
+        }
+        return null;
+    }
+
+    private static SimpleStatement simpleStatement(String pQuery, List<ByteBuffer> pValues) {
+
+        for (ByteBuffer value : pValues) {
+            if (value == SimulatedQuery.UNSET) {
+                throw new InvalidQueryException("Unset values are only simulated for prepared statements");
+            }
+        }
+        return new SimpleStatement(pQuery, pValues.toArray());
+    }
+
+    private static BoundStatement bind(PreparedStatement pStatement, List<ByteBuffer> pValues) {
+
+        if (pValues.size() != pStatement.getVariables().size()) {
+            throw new InvalidQueryException("There were " + pValues.size() + " markers(?) in CQL but "
+                    + pStatement.getVariables().size() + " bound variables");
+        }
+
+        BoundStatement bound = pStatement.bind();
+        for (int i = 0; i < pValues.size(); i++) {
+            if (pValues.get(i) != SimulatedQuery.UNSET) {
+                bound.setBytesUnsafe(i, pValues.get(i));
+            }
+        }
+        return bound;
+    }
+
+    private static ConsistencyLevel readConsistency(ByteBuffer pBody) {
+
+        int code = pBody.getShort();
+        if (code < 0 || code >= CONSISTENCY_LEVELS.size()) {
+            throw new InvalidQueryException("Unknown consistency level " + code);
+        }
+        return CONSISTENCY_LEVELS.get(code);
+    }
+
+    // Unset values (length -2) are returned as SimulatedQuery.UNSET
+    private static List<ByteBuffer> readValues(ByteBuffer pBody) {
+
+        int count = pBody.getShort() & 0xFFFF;
+        List<ByteBuffer> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = pBody.getInt();
+            if (length == -1) {
+                values.add(null);
+            }
+            else if (length == -2) {
+                values.add(SimulatedQuery.UNSET);
+            }
+            else {
+                ByteBuffer value = pBody.slice();
+                value.limit(length);
+                pBody.position(pBody.position() + length);
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private static byte[] readBytes(ByteBuffer pBody) {
+
+        int length = pBody.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        pBody.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readShortBytes(ByteBuffer pBody) {
+
+        byte[] bytes = new byte[pBody.getShort() & 0xFFFF];
+        pBody.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer pBody) {
+        return new String(readShortBytes(pBody), StandardCharsets.UTF_8);
+    }
+
+    private static String readLongString(ByteBuffer pBody) {
+
+        byte[] bytes = new byte[pBody.getInt()];
+        pBody.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> readStringMap(ByteBuffer pBody) {
+
+        int count = pBody.getShort() & 0xFFFF;
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(readString(pBody), readString(pBody));
+        }
+        return map;
+    }
+
+    private static void skipBytesMap(ByteBuffer pBody) {
+
+        int count = pBody.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            readString(pBody);
+            readBytes(pBody);
+        }
+    }
+
+    private static void writeString(DataOutputStream pData, String pValue) throws IOException {
+
+        byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+        pData.writeShort(bytes.length);
+        pData.write(bytes);
+    }
+
+    private static void writeStringList(DataOutputStream pData, List<String> pValues) throws IOException {
+
+        pData.writeShort(pValues.size());
+        for (String value : pValues) {
+            writeString(pData, value);
+        }
+    }
+
+    private static void writeShortBytes(DataOutputStream pData, byte[] pValue) throws IOException {
+        pData.writeShort(pValue.length);
+        pData.write(pValue);
+    }
+
+    private static void writeBytes(DataOutputStream pData, ByteBuffer pValue) throws IOException {
+
+        if (pValue == null) {
+            pData.writeInt(-1);
+            return;
+        }
+        ByteBuffer value = pValue.duplicate();
+        pData.writeInt(value.remaining());
+        while (value.hasRemaining()) {
+            pData.write(value.get());
+        }
+    }
+
+    private static void writeColumnSpecs(DataOutputStream pData, String pKeyspace, String pTable,
+                                         ColumnDefinitions pColumns) throws IOException {
+
+        if (pColumns.size() == 0) {
+            return;
+        }
+        writeString(pData, pKeyspace);
+        writeString(pData, pTable);
+        for (ColumnDefinitions.Definition column : pColumns) {
+            writeString(pData, column.getName());
+            writeType(pData, column.getType());
+        }
+    }
+
+    // A type as an <option>: its protocol id, followed by its element types for a collection
+    private static void writeType(DataOutputStream pData, DataType pType) throws IOException {
+
+        switch (pType.getName()) {
+            case ASCII: pData.writeShort(0x0001); break;
+            case BIGINT: pData.writeShort(0x0002); break;
+            case BLOB: pData.writeShort(0x0003); break;
+            case BOOLEAN: pData.writeShort(0x0004); break;
+            case COUNTER: pData.writeShort(0x0005); break;
+            case DECIMAL: pData.writeShort(0x0006); break;
+            case DOUBLE: pData.writeShort(0x0007); break;
+            case FLOAT: pData.writeShort(0x0008); break;
+            case INT: pData.writeShort(0x0009); break;
+            case TIMESTAMP: pData.writeShort(0x000B); break;
+            case UUID: pData.writeShort(0x000C); break;
+            case TEXT:
+            case VARCHAR: pData.writeShort(0x000D); break;
+            case VARINT: pData.writeShort(0x000E); break;
+            case TIMEUUID: pData.writeShort(0x000F); break;
+            case INET: pData.writeShort(0x0010); break;
+            case DATE: pData.writeShort(0x0011); break;
+            case TIME: pData.writeShort(0x0012); break;
+            case SMALLINT: pData.writeShort(0x0013); break;
+            case TINYINT: pData.writeShort(0x0014); break;
+            case LIST:
+                pData.writeShort(0x0020);
+                writeType(pData, pType.getTypeArguments().get(0));
+                break;
+            case MAP:
+                pData.writeShort(0x0021);
+                writeType(pData, pType.getTypeArguments().get(0));
+                writeType(pData, pType.getTypeArguments().get(1));
+                break;
+            case SET:
+                pData.writeShort(0x0022);
+                writeType(pData, pType.getTypeArguments().get(0));
+                break;
+            default:
+                throw new IllegalArgumentException("Type " + pType + " is not simulated");
+        }
+    }
+
+    private static byte[] md5(String pQuery) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(pQuery.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] pBytes) {
+
+        StringBuilder hex = new StringBuilder("0x");
+        for (byte b : pBytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        long medianMicros = (args.length > 1) ? Long.parseLong(args[1]) : 500;
+        long p99Micros = (args.length > 2) ? Long.parseLong(args[2]) : medianMicros;
+
+        SimulatedLatency latency = (p99Micros > medianMicros)
+                ? SimulatedLatency.logNormal(medianMicros, p99Micros)
+                : SimulatedLatency.fixed(medianMicros);
+        SimulatedSession backend = new SimulatedSession(1, latency);
+
+        try (SimulatedCqlServer server = new SimulatedCqlServer(backend, port).start()) {
+            System.out.println("Simulated DSE node listening on " + server.getAddress()
+                    + ", data center " + SimulatedSystemTables.DATA_CENTER);
+            System.out.println("Press Enter to stop.");
+            System.in.read();
+        }
+
+        backend.printReport();
+        backend.close();
+    }
+}
@@ -0,0 +1,89 @@
+package com.datastax.kellett;
+
+/*
+Tests of SimulatedCqlServer through the real driver and object mapper, connected on the loopback address.
+*/
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.dse.DseCluster;
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class SimulatedCqlServerTest extends TestCase {
+
+    private SimulatedSession backend;
+    private SimulatedCqlServer server;
+    private DseCluster cluster;
+    private Session session;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        backend = new SimulatedSession(0);
+        server = new SimulatedCqlServer(backend, 0).start();
+        cluster = DseCluster.builder()
+                .addContactPoint("127.0.0.1")
+                .withPort(server.getAddress().getPort())
+                .withoutJMXReporting()
+                .build();
+        session = cluster.connect();
+
+        session.execute("CREATE KEYSPACE lab8 "
+                + "WITH REPLICATION = { 'class' : 'NetworkTopologyStrategy', 'DC1' : 1 };");
+        session.execute("CREATE TABLE lab8.customers ( country text, membership_tier int, income_tier int, "
+                + "acct_no int, first_name text, last_name text, "
+                + "PRIMARY KEY ((country, membership_tier), income_tier, acct_no));");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        session.close();
+        cluster.close();
+        server.close();
+        backend.close();
+    }
+
+    public void testSelectedColumnsAreNamedByTheirAliases() {
+
+        session.execute("INSERT INTO lab8.customers "
+                + "(country, membership_tier, income_tier, acct_no, first_name, last_name) "
+                + "VALUES ('US', 1, 2, 3, 'Ada', 'Lovelace');");
+
+        ResultSet rs = session.execute("SELECT first_name AS name, acct_no, last_name AS \"Surname\" "
+                + "FROM lab8.customers WHERE country = 'US' AND membership_tier = 1");
+        assertEquals("name", rs.getColumnDefinitions().getName(0));
+        assertEquals("acct_no", rs.getColumnDefinitions().getName(1));
+        assertEquals("Surname", rs.getColumnDefinitions().getName(2));
+
+        Row row = rs.one();
+        assertEquals("Ada", row.getString("name"));
+        assertEquals(3, row.getInt("acct_no"));
+        assertEquals("Lovelace", row.getString("\"Surname\""));
+    }
+
+    public void testMapperRoundTrip() {
+
+        Mapper<Lab8Customer> mapper = new MappingManager(session).mapper(Lab8Customer.class);
+        assertNull(mapper.get("US", 1, 2, 3));
+
+        mapper.save(new Lab8Customer("US", 1, 2, 3, "Ada", "Lovelace"));
+        assertEquals(1, backend.getTable("lab8", "customers").getRowCount());
+
+        Lab8Customer loaded = mapper.get("US", 1, 2, 3);
+        assertEquals("US", loaded.getCountry());
+        assertEquals(Integer.valueOf(1), loaded.getMembership_tier());
+        assertEquals(Integer.valueOf(2), loaded.getIncome_tier());
+        assertEquals(Integer.valueOf(3), loaded.getAcct_no());
+        assertEquals("Ada", loaded.getFirst_name());
+        assertEquals("Lovelace", loaded.getLast_name());
+
+        mapper.delete(loaded);
+        assertNull(mapper.get("US", 1, 2, 3));
+        assertEquals(0, backend.getTable("lab8", "customers").getRowCount());
+    }
+}
@@ -0,0 +1,46 @@
+package com.datastax.kellett;
+
+/*
+SimulatedLatency is how long a SimulatedSession takes to serve one request, drawn afresh for every request.
+
+Real request latencies are not fixed: most requests take about the same time, and a few take many times longer
+(a GC pause, a compaction, a slow disk).  logNormal() gives that long right tail from two numbers that are easy to
+read off a real latency report, the median and the 99th percentile.  withOutliers() adds rare stalls on top of any
+distribution, for testing features such as hedged reads that only pay off in the tail.
+*/
+
+import java.util.Random;
+
+public interface SimulatedLatency {
+
+    // The z-score of the 99th percentile of a normal distribution
+    double Z_99 = 2.326;
+
+    long nextMicros(Random pRandom);
+
+    static SimulatedLatency fixed(long pMicros) {
+        return random -> pMicros;
+    }
+
+    static SimulatedLatency uniform(long pMinMicros, long pMaxMicros) {
+        return random -> pMinMicros + (long) (random.nextDouble() * (pMaxMicros - pMinMicros));
+    }
+
+    /*
+    Half of all requests take less than pMedianMicros, and 99% take less than pP99Micros.
+     */
+    static SimulatedLatency logNormal(long pMedianMicros, long pP99Micros) {
+
+        double mu = Math.log(pMedianMicros);
+        double sigma = Math.log((double) pP99Micros / pMedianMicros) / Z_99;
+
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    /*
+    A fraction pRate of requests take pOutlier's latency instead of this one's.
+     */
+    default SimulatedLatency withOutliers(double pRate, SimulatedLatency pOutlier) {
+        return random -> (random.nextDouble() < pRate) ? pOutlier.nextMicros(random) : nextMicros(random);
+    }
+}
@@ -0,0 +1,211 @@
+package com.datastax.kellett;
+
+/*
+SimulatedPreparedStatement is the PreparedStatement returned by SimulatedSession.prepare().
+
+The statement is parsed once, here, into a SimulatedQuery, and its bound variables are the query's bind markers,
+typed from the table's schema.  If all of the partition key is bound, BoundStatement.getRoutingKey() works just as
+it does against a real cluster, so partition-aware code such as PartitionBatchWriter behaves the same.
+*/
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.SimulatedDriverAccess;
+import com.datastax.driver.core.policies.RetryPolicy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+public class SimulatedPreparedStatement implements PreparedStatement {
+
+    private final String query;
+    private final SimulatedQuery parsed;
+    private final ColumnDefinitions variables;
+    private final ColumnDefinitions resultColumns;
+    private final PreparedId preparedId;
+    private final CodecRegistry codecRegistry;
+
+    private volatile ByteBuffer routingKey;
+    private volatile ConsistencyLevel consistencyLevel;
+    private volatile ConsistencyLevel serialConsistencyLevel;
+    private volatile boolean tracing;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Boolean idempotent;
+    private volatile Map<String, ByteBuffer> outgoingPayload;
+
+    SimulatedPreparedStatement(String pQuery, SimulatedQuery pParsed,
+                               ProtocolVersion pProtocolVersion, CodecRegistry pCodecRegistry) {
+
+        query = pQuery;
+        parsed = pParsed;
+        codecRegistry = pCodecRegistry;
+
+        SimulatedTable table = pParsed.getTable();
+        variables = SimulatedDriverAccess.columnDefinitions(table.getKeyspace(), table.getName(),
+                pParsed.getVariableNames(), pParsed.getVariableTypes(), pCodecRegistry);
+        resultColumns = SimulatedDriverAccess.columnDefinitions(table.getKeyspace(), table.getName(),
+                pParsed.getResultColumnNames(), pParsed.getResultColumnTypes(), pCodecRegistry);
+        preparedId = SimulatedDriverAccess.preparedId(
+                pQuery, variables, resultColumns, routingKeyIndexes(pParsed.getVariableNames()), pProtocolVersion);
+    }
+
+    public SimulatedTable getTable() {
+        return parsed.getTable();
+    }
+
+    @Override
+    public ColumnDefinitions getVariables() {
+        return variables;
+    }
+
+    public ColumnDefinitions getResultColumns() {
+        return resultColumns;
+    }
+
+    SimulatedQuery getQuery() {
+        return parsed;
+    }
+
+    @Override
+    public BoundStatement bind(Object... pValues) {
+        return new BoundStatement(this).bind(pValues);
+    }
+
+    @Override
+    public BoundStatement bind() {
+        return new BoundStatement(this);
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(ByteBuffer pRoutingKey) {
+        routingKey = pRoutingKey;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(ByteBuffer... pRoutingKeyComponents) {
+        throw new UnsupportedOperationException("Composite routing keys are computed from the bound values");
+    }
+
+    @Override
+    public ByteBuffer getRoutingKey() {
+        return routingKey;
+    }
+
+    @Override
+    public PreparedStatement setConsistencyLevel(ConsistencyLevel pConsistencyLevel) {
+        consistencyLevel = pConsistencyLevel;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistencyLevel;
+    }
+
+    @Override
+    public PreparedStatement setSerialConsistencyLevel(ConsistencyLevel pSerialConsistencyLevel) {
+        serialConsistencyLevel = pSerialConsistencyLevel;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getSerialConsistencyLevel() {
+        return serialConsistencyLevel;
+    }
+
+    @Override
+    public String getQueryString() {
+        return query;
+    }
+
+    @Override
+    public String getQueryKeyspace() {
+        return parsed.getTable().getKeyspace();
+    }
+
+    @Override
+    public PreparedStatement enableTracing() {
+        tracing = true;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement disableTracing() {
+        tracing = false;
+        return this;
+    }
+
+    @Override
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    @Override
+    public PreparedStatement setRetryPolicy(RetryPolicy pRetryPolicy) {
+        retryPolicy = pRetryPolicy;
+        return this;
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    @Override
+    public PreparedId getPreparedId() {
+        return preparedId;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getIncomingPayload() {
+        return null;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getOutgoingPayload() {
+        return outgoingPayload;
+    }
+
+    @Override
+    public PreparedStatement setOutgoingPayload(Map<String, ByteBuffer> pPayload) {
+        outgoingPayload = pPayload;
+        return this;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    @Override
+    public PreparedStatement setIdempotent(Boolean pIdempotent) {
+        idempotent = pIdempotent;
+        return this;
+    }
+
+    @Override
+    public Boolean isIdempotent() {
+        return idempotent;
+    }
+
+    private int[] routingKeyIndexes(List<String> pVariableNames) {
+
+        List<String> partitionKey = parsed.getTable().getPartitionKey();
+        int[] indexes = new int[partitionKey.size()];
+
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = pVariableNames.indexOf(partitionKey.get(i));
+            if (indexes[i] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+}
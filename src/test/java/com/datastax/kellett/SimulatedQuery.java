@@ -0,0 +1,1019 @@
+package com.datastax.kellett;
+
+/*
+SimulatedQuery is one CQL statement parsed by SimulatedSession, ready to run against the rows of a SimulatedTable.
+
+Only the statements applications send for their data are understood, not schema changes:
+- SELECT columns [AS alias] (or *) FROM ks.table [WHERE ...] [ORDER BY column [ASC|DESC]] [LIMIT n] [ALLOW FILTERING]
+- INSERT INTO ks.table (columns) VALUES (values) [IF NOT EXISTS] [USING TTL n AND TIMESTAMP n]
+- UPDATE ks.table [USING ...] SET column = value, ... WHERE ... [IF EXISTS]
+- DELETE [columns] FROM ks.table [USING TIMESTAMP n] WHERE ... [IF EXISTS]
+- TRUNCATE [TABLE] ks.table
+
+A WHERE clause is relations joined by AND: column = value, column IN (values) or IN ?, column < value (or <=, >,
+>=), and token(partition key columns) compared with a value.  A value is a bind marker (? or :name) or a literal.
+Bind markers are numbered in the order they appear, which is also the order of the prepared statement's variables.
+
+The simulator is more forgiving than Cassandra: any column may be restricted, as though ALLOW FILTERING were always
+given, and ORDER BY on anything but the first clustering column is ignored rather than refused (so Lab 7's search
+query still runs, in token order).  TTLs and write timestamps are parsed and then ignored.
+
+A SELECT returns one page at a time.  The paging state handed back for the next page records where the page ended
+(the partition key and clustering key of its last row) and how many rows have been returned so far, for LIMIT.
+*/
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.kellett.SimulatedTable.PartitionKey;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class SimulatedQuery {
+
+    enum Kind {SELECT, INSERT, UPDATE, DELETE, TRUNCATE}
+
+    /*
+    Stands for a bound variable that was left unset, which leaves the column as it is.
+     */
+    static final ByteBuffer UNSET = ByteBuffer.allocate(0);
+
+    private static final String UUID_LITERAL =
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}";
+
+    private static final Pattern TOKEN = Pattern.compile("\\s*("
+            + "'(?:[^']|'')*'"
+            + "|\"(?:[^\"]|\"\")*\""
+            + "|" + UUID_LITERAL
+            + "|0[xX][0-9a-fA-F]*"
+            + "|-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?"
+            + "|\\w+"
+            + "|<=|>=|!="
+            + "|[(),;=<>?*.:])");
+
+    // Marks a relation on token(partition key) rather than on a column
+    private static final int TOKEN_RELATION = -1;
+
+    private final String query;
+    private final List<String> tokens = new ArrayList<>();
+    private int position;
+
+    private Kind kind;
+    private SimulatedTable table;
+
+    private final List<Integer> selection = new ArrayList<>();
+    private final List<String> selectionNames = new ArrayList<>();
+    private final List<Relation> where = new ArrayList<>();
+    private final List<Integer> assignedColumns = new ArrayList<>();
+    private final List<Term> assignedValues = new ArrayList<>();
+    private Term limit;
+    private boolean reversed;
+    private boolean ifNotExists;
+    private boolean ifExists;
+
+    private final List<String> variableNames = new ArrayList<>();
+    private final List<DataType> variableTypes = new ArrayList<>();
+
+    private SimulatedQuery(String pQuery) {
+        query = pQuery;
+    }
+
+    /*
+    Parses pQuery, looking up the table it names with pTables(keyspace, table).  Throws IllegalArgumentException if
+    the statement is not understood or names an unknown table or column.
+     */
+    static SimulatedQuery parse(String pQuery, BiFunction<String, String, SimulatedTable> pTables) {
+
+        SimulatedQuery parsed = new SimulatedQuery(pQuery);
+        parsed.tokenize();
+        parsed.parseStatement(pTables);
+        return parsed;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    SimulatedTable getTable() {
+        return table;
+    }
+
+    List<String> getVariableNames() {
+        return Collections.unmodifiableList(variableNames);
+    }
+
+    List<DataType> getVariableTypes() {
+        return Collections.unmodifiableList(variableTypes);
+    }
+
+    /*
+    The names of the selected columns, or their aliases where the query gave them one.
+     */
+    List<String> getResultColumnNames() {
+        return Collections.unmodifiableList(selectionNames);
+    }
+
+    List<DataType> getResultColumnTypes() {
+
+        List<DataType> types = new ArrayList<>();
+        for (int column : selection) {
+            types.add(table.getColumnTypes().get(column));
+        }
+        return types;
+    }
+
+    /*
+    Runs the statement with pValues bound to its markers, in order.  For a SELECT, pPagingState is where the
+    previous page ended (null for the first page) and pFetchSize the most rows to return.
+     */
+    Page execute(ByteBuffer[] pValues, ByteBuffer pPagingState, int pFetchSize) {
+
+        if (pValues.length != variableNames.size()) {
+            throw new IllegalArgumentException("There were " + variableNames.size()
+                    + " markers(?) in CQL but " + pValues.length + " values");
+        }
+
+        switch (kind) {
+            case SELECT:
+                return select(pValues, pPagingState, pFetchSize);
+            case INSERT:
+                return new Page(insert(pValues));
+            case UPDATE:
+                return new Page(update(pValues));
+            case DELETE:
+                return new Page(delete(pValues));
+            default:
+                table.truncate();
+                return new Page(true);
+        }
+    }
+
+    private boolean insert(ByteBuffer[] pValues) {
+
+        ByteBuffer[] row = new ByteBuffer[table.getColumnNames().size()];
+        boolean[] set = new boolean[row.length];
+
+        for (int i = 0; i < assignedColumns.size(); i++) {
+            int column = assignedColumns.get(i);
+            ByteBuffer value = resolve(assignedValues.get(i), table.getColumnTypes().get(column), pValues);
+            if (value != UNSET) {
+                row[column] = value;
+                set[column] = true;
+            }
+        }
+        return table.write(row, set, ifNotExists, false);
+    }
+
+    private boolean update(ByteBuffer[] pValues) {
+
+        ByteBuffer[] row = primaryKey(pValues);
+        boolean[] set = new boolean[row.length];
+
+        for (int i = 0; i < assignedColumns.size(); i++) {
+            int column = assignedColumns.get(i);
+            ByteBuffer value = resolve(assignedValues.get(i), table.getColumnTypes().get(column), pValues);
+            if (value != UNSET) {
+                row[column] = value;
+                set[column] = true;
+            }
+        }
+        return table.write(row, set, false, ifExists);
+    }
+
+    private boolean delete(ByteBuffer[] pValues) {
+
+        List<List<ByteBuffer>> bound = bindRelations(pValues);
+        ByteBuffer[] keyRow = new ByteBuffer[table.getColumnNames().size()];
+        for (int column : table.getPartitionKeyIndexes()) {
+            keyRow[column] = equalityValue(column, bound, "DELETE");
+        }
+        PartitionKey key = table.partitionKeyOf(keyRow);
+
+        NavigableMap<ByteBuffer[], ByteBuffer[]> partition = table.getPartitions().get(key);
+        if (partition == null) {
+            return !ifExists;
+        }
+
+        // Deleting a whole partition
+        if (assignedColumns.isEmpty() && where.size() == table.getPartitionKeyIndexes().length) {
+            table.getPartitions().remove(key);
+            return true;
+        }
+
+        boolean deleted = false;
+        for (Map.Entry<ByteBuffer[], ByteBuffer[]> row : partition.entrySet()) {
+            if (!matches(row.getValue(), bound)) {
+                continue;
+            }
+            deleted = true;
+            if (assignedColumns.isEmpty()) {
+                partition.remove(row.getKey());
+            }
+            else {
+                partition.computeIfPresent(row.getKey(), (clustering, existing) -> {
+                    ByteBuffer[] remaining = existing.clone();
+                    for (int column : assignedColumns) {
+                        remaining[column] = null;
+                    }
+                    return remaining;
+                });
+            }
+        }
+        return deleted || !ifExists;
+    }
+
+    private Page select(ByteBuffer[] pValues, ByteBuffer pPagingState, int pFetchSize) {
+
+        List<List<ByteBuffer>> bound = bindRelations(pValues);
+
+        long rowLimit = Long.MAX_VALUE;
+        if (limit != null) {
+            ByteBuffer value = resolve(limit, DataType.cint(), pValues);
+            if (value == null || value == UNSET || value.getInt(value.position()) <= 0) {
+                throw new IllegalArgumentException("LIMIT must be strictly positive");
+            }
+            rowLimit = value.getInt(value.position());
+        }
+
+        PagingPosition resume = (pPagingState == null) ? null : new PagingPosition(pPagingState);
+        long returnedBefore = (resume == null) ? 0 : resume.returned;
+        long wanted = Math.min(pFetchSize, rowLimit - returnedBefore);
+
+        List<ByteBuffer[]> rows = new ArrayList<>();
+        boolean more = false;
+
+        Iterator<PartitionKey> keys = partitionsToRead(bound, (resume == null) ? null : resume.partitionKey);
+        partitions:
+        while (wanted > 0 && keys.hasNext()) {
+
+            PartitionKey key = keys.next();
+            if (!matchesToken(key, bound)) {
+                if (pastTokenRange(key, bound)) {
+                    break;
+                }
+                continue;
+            }
+
+            NavigableMap<ByteBuffer[], ByteBuffer[]> partition = table.getPartitions().get(key);
+            if (partition == null) {
+                continue;
+            }
+            if (reversed) {
+                partition = partition.descendingMap();
+            }
+            if (resume != null && key.equals(resume.partitionKey)) {
+                partition = partition.tailMap(resume.clusteringKey, false);
+            }
+
+            for (ByteBuffer[] row : partition.values()) {
+                if (matches(row, bound)) {
+                    if (rows.size() == wanted) {
+                        // There is another page only if the LIMIT has not been reached
+                        more = returnedBefore + wanted < rowLimit;
+                        break partitions;
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+
+        ByteBuffer nextPagingState = null;
+        if (more) {
+            ByteBuffer[] last = rows.get(rows.size() - 1);
+            nextPagingState = PagingPosition.encode(
+                    table.partitionKeyOf(last).getComponents(), table.clusteringKeyOf(last), returnedBefore + rows.size());
+        }
+
+        List<List<ByteBuffer>> projected = new ArrayList<>(rows.size());
+        for (ByteBuffer[] row : rows) {
+            List<ByteBuffer> values = new ArrayList<>(selection.size());
+            for (int column : selection) {
+                values.add((row[column] == null) ? null : row[column].duplicate());
+            }
+            projected.add(values);
+        }
+        return new Page(projected, nextPagingState);
+    }
+
+    /*
+    The partitions a SELECT has to look at, in token order, starting from pResumeKey if it is not null.  When the
+    whole partition key is restricted by = or IN, those partitions are looked up directly; otherwise every partition
+    is visited, from the start of the token range if there is one.
+     */
+    private Iterator<PartitionKey> partitionsToRead(List<List<ByteBuffer>> pBound, PartitionKey pResumeKey) {
+
+        int[] keyColumns = table.getPartitionKeyIndexes();
+        List<List<ByteBuffer>> keyValues = new ArrayList<>();
+        for (int column : keyColumns) {
+            List<ByteBuffer> values = equalityValues(column, pBound);
+            if (values == null) {
+                keyValues = null;
+                break;
+            }
+            keyValues.add(values);
+        }
+
+        if (keyValues != null) {
+            TreeSet<PartitionKey> keys = new TreeSet<>();
+            addKeys(keyValues, new ByteBuffer[keyColumns.length], 0, keys);
+            return ((pResumeKey == null) ? keys : keys.tailSet(pResumeKey, true)).iterator();
+        }
+
+        PartitionKey from = pResumeKey;
+        for (int i = 0; i < where.size() && from == null; i++) {
+            Relation relation = where.get(i);
+            if (relation.column == TOKEN_RELATION && relation.operator.startsWith(">")) {
+                long token = tokenValue(pBound.get(i).get(0));
+                from = PartitionKey.lowest(token);
+            }
+        }
+        return ((from == null) ? table.getPartitions() : table.getPartitions().tailMap(from, true))
+                .keySet().iterator();
+    }
+
+    private static void addKeys(List<List<ByteBuffer>> pValues, ByteBuffer[] pKey, int pColumn,
+                                TreeSet<PartitionKey> pKeys) {
+
+        if (pColumn == pKey.length) {
+            pKeys.add(new PartitionKey(pKey.clone()));
+            return;
+        }
+        for (ByteBuffer value : pValues.get(pColumn)) {
+            pKey[pColumn] = value;
+            addKeys(pValues, pKey, pColumn + 1, pKeys);
+        }
+    }
+
+    private boolean matchesToken(PartitionKey pKey, List<List<ByteBuffer>> pBound) {
+
+        for (int i = 0; i < where.size(); i++) {
+            Relation relation = where.get(i);
+            if (relation.column == TOKEN_RELATION && !endOfRing(relation, pBound.get(i))
+                    && !relation.accepts(Long.compare(pKey.getToken(), tokenValue(pBound.get(i).get(0))))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Partitions are in token order, so once an upper token bound fails, so will every later partition
+    private boolean pastTokenRange(PartitionKey pKey, List<List<ByteBuffer>> pBound) {
+
+        for (int i = 0; i < where.size(); i++) {
+            Relation relation = where.get(i);
+            if (relation.column == TOKEN_RELATION && relation.operator.startsWith("<")
+                    && !endOfRing(relation, pBound.get(i))
+                    && !relation.accepts(Long.compare(pKey.getToken(), tokenValue(pBound.get(i).get(0))))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    As in Cassandra, an upper token bound of the minimum token means the end of the ring, not the token itself.
+    TokenRange.unwrap() gives the last range of the ring exactly that bound: (x, MIN].
+     */
+    private static boolean endOfRing(Relation pRelation, List<ByteBuffer> pBound) {
+        return pRelation.operator.startsWith("<") && tokenValue(pBound.get(0)) == Long.MIN_VALUE;
+    }
+
+    private boolean matches(ByteBuffer[] pRow, List<List<ByteBuffer>> pBound) {
+
+        for (int i = 0; i < where.size(); i++) {
+            Relation relation = where.get(i);
+            if (relation.column == TOKEN_RELATION) {
+                continue;
+            }
+
+            ByteBuffer value = pRow[relation.column];
+            if (value == null) {
+                return false;
+            }
+
+            boolean matched = false;
+            for (ByteBuffer candidate : pBound.get(i)) {
+                if (relation.accepts(table.compare(relation.column, value, candidate))) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Every relation's values, serialized, in the same order as the relations
+    private List<List<ByteBuffer>> bindRelations(ByteBuffer[] pValues) {
+
+        List<List<ByteBuffer>> bound = new ArrayList<>(where.size());
+        for (Relation relation : where) {
+
+            DataType type = (relation.column == TOKEN_RELATION)
+                    ? DataType.bigint() : table.getColumnTypes().get(relation.column);
+            List<ByteBuffer> values = new ArrayList<>();
+
+            if (relation.listMarker >= 0) {
+                ByteBuffer list = pValues[relation.listMarker];
+                if (list == null || list == UNSET) {
+                    throw new IllegalArgumentException("Invalid null or unset value for IN list");
+                }
+                TypeCodec<List<Object>> listCodec = CodecRegistry.DEFAULT_INSTANCE.codecFor(DataType.list(type));
+                TypeCodec<Object> elementCodec = CodecRegistry.DEFAULT_INSTANCE.codecFor(type);
+                for (Object element : listCodec.deserialize(list.duplicate(), ProtocolVersion.V4)) {
+                    values.add(elementCodec.serialize(element, ProtocolVersion.V4));
+                }
+            }
+            else {
+                for (Term term : relation.values) {
+                    ByteBuffer value = resolve(term, type, pValues);
+                    if (value == null || value == UNSET) {
+                        throw new IllegalArgumentException("Invalid null or unset value in relation "
+                                + "on " + columnName(relation.column));
+                    }
+                    values.add(value);
+                }
+            }
+            bound.add(values);
+        }
+        return bound;
+    }
+
+    // The values pColumn is restricted to by = or IN, or null if it is not
+    private List<ByteBuffer> equalityValues(int pColumn, List<List<ByteBuffer>> pBound) {
+
+        for (int i = 0; i < where.size(); i++) {
+            Relation relation = where.get(i);
+            if (relation.column == pColumn && (relation.operator.equals("=") || relation.operator.equals("IN"))) {
+                return pBound.get(i);
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer equalityValue(int pColumn, List<List<ByteBuffer>> pBound, String pStatement) {
+
+        List<ByteBuffer> values = equalityValues(pColumn, pBound);
+        if (values == null || values.size() != 1) {
+            throw new IllegalArgumentException(pStatement + " must restrict " + columnName(pColumn)
+                    + " with = (IN and ranges are not simulated)");
+        }
+        return values.get(0);
+    }
+
+    // For UPDATE: a row holding just the primary key, which the WHERE clause must give in full
+    private ByteBuffer[] primaryKey(ByteBuffer[] pValues) {
+
+        List<List<ByteBuffer>> bound = bindRelations(pValues);
+        ByteBuffer[] row = new ByteBuffer[table.getColumnNames().size()];
+
+        for (int column : table.getPartitionKeyIndexes()) {
+            row[column] = equalityValue(column, bound, "UPDATE");
+        }
+        for (int column : table.getClusteringIndexes()) {
+            row[column] = equalityValue(column, bound, "UPDATE");
+        }
+        return row;
+    }
+
+    private ByteBuffer resolve(Term pTerm, DataType pType, ByteBuffer[] pValues) {
+
+        if (pTerm.marker >= 0) {
+            return pValues[pTerm.marker];
+        }
+
+        TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(pType);
+        try {
+            return codec.serialize(codec.parse(pTerm.literal), ProtocolVersion.V4);
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid " + pType + " literal: " + pTerm.literal, e);
+        }
+    }
+
+    private static long tokenValue(ByteBuffer pValue) {
+        return pValue.getLong(pValue.position());
+    }
+
+    private String columnName(int pColumn) {
+        return (pColumn == TOKEN_RELATION) ? "token" : table.getColumnNames().get(pColumn);
+    }
+
+    // ---- Parsing ----
+
+    private void tokenize() {
+
+        Matcher token = TOKEN.matcher(query);
+        int end = 0;
+        while (token.find(end) && token.start() == end) {
+            tokens.add(token.group(1));
+            end = token.end();
+        }
+        if (!query.substring(end).trim().isEmpty()) {
+            throw new IllegalArgumentException("Cannot parse CQL at '" + query.substring(end).trim() + "': " + query);
+        }
+    }
+
+    private void parseStatement(BiFunction<String, String, SimulatedTable> pTables) {
+
+        String first = nextWord();
+        switch (first) {
+
+            case "SELECT":
+                kind = Kind.SELECT;
+                parseSelect(pTables);
+                break;
+
+            case "INSERT":
+                kind = Kind.INSERT;
+                expect("INTO");
+                parseTable(pTables);
+                parseInsert();
+                break;
+
+            case "UPDATE":
+                kind = Kind.UPDATE;
+                parseTable(pTables);
+                parseUpdate();
+                break;
+
+            case "DELETE":
+                kind = Kind.DELETE;
+                parseDelete(pTables);
+                break;
+
+            case "TRUNCATE":
+                kind = Kind.TRUNCATE;
+                accept("TABLE");
+                parseTable(pTables);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Statement not simulated: " + query);
+        }
+
+        accept(";");
+        if (position < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + tokens.get(position) + "' in: " + query);
+        }
+    }
+
+    private void parseSelect(BiFunction<String, String, SimulatedTable> pTables) {
+
+        List<String> columns = new ArrayList<>();
+        List<String> aliases = new ArrayList<>();
+        if (!accept("*")) {
+            do {
+                columns.add(nextIdentifier());
+                aliases.add(accept("AS") ? nextIdentifier() : null);
+            } while (accept(","));
+        }
+
+        expect("FROM");
+        parseTable(pTables);
+
+        if (columns.isEmpty()) {
+            for (int i = 0; i < table.getColumnNames().size(); i++) {
+                selection.add(i);
+                selectionNames.add(table.getColumnNames().get(i));
+            }
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            selection.add(column(columns.get(i)));
+            selectionNames.add((aliases.get(i) != null) ? aliases.get(i) : columns.get(i));
+        }
+
+        if (accept("WHERE")) {
+            parseWhere();
+        }
+
+        if (accept("ORDER")) {
+            expect("BY");
+            String column = nextIdentifier();
+            boolean descending = accept("DESC");
+            if (!descending) {
+                accept("ASC");
+            }
+            List<String> clustering = table.getClusteringColumns();
+            if (!clustering.isEmpty() && clustering.get(0).equals(column)) {
+                reversed = (descending != table.isDescending(0));
+            }
+            // Later orderings only break ties, and the clustering order already does that
+            while (accept(",")) {
+                nextIdentifier();
+                if (!accept("DESC")) {
+                    accept("ASC");
+                }
+            }
+        }
+
+        if (accept("LIMIT")) {
+            limit = parseTerm("[limit]", DataType.cint());
+        }
+
+        if (accept("ALLOW")) {
+            expect("FILTERING");
+        }
+    }
+
+    private void parseInsert() {
+
+        List<Integer> columns = new ArrayList<>();
+        expect("(");
+        do {
+            columns.add(column(nextIdentifier()));
+        } while (accept(","));
+        expect(")");
+
+        expect("VALUES");
+        expect("(");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                expect(",");
+            }
+            int column = columns.get(i);
+            assignedColumns.add(column);
+            assignedValues.add(parseTerm(table.getColumnNames().get(column), table.getColumnTypes().get(column)));
+        }
+        if (!accept(")")) {
+            throw new IllegalArgumentException("Unmatched column names/values in " + query);
+        }
+
+        while (position < tokens.size() && !peek(";")) {
+            if (accept("IF")) {
+                expect("NOT");
+                expect("EXISTS");
+                ifNotExists = true;
+            }
+            else {
+                expect("USING");
+                parseUsing();
+            }
+        }
+    }
+
+    private void parseUpdate() {
+
+        if (accept("USING")) {
+            parseUsing();
+        }
+
+        expect("SET");
+        do {
+            int column = column(nextIdentifier());
+            expect("=");
+            assignedColumns.add(column);
+            assignedValues.add(parseTerm(table.getColumnNames().get(column), table.getColumnTypes().get(column)));
+        } while (accept(","));
+
+        expect("WHERE");
+        parseWhere();
+        parseIfExists();
+    }
+
+    private void parseDelete(BiFunction<String, String, SimulatedTable> pTables) {
+
+        List<String> columns = new ArrayList<>();
+        if (!peek("FROM")) {
+            do {
+                columns.add(nextIdentifier());
+            } while (accept(","));
+        }
+
+        expect("FROM");
+        parseTable(pTables);
+        for (String column : columns) {
+            assignedColumns.add(column(column));
+        }
+
+        if (accept("USING")) {
+            parseUsing();
+        }
+
+        expect("WHERE");
+        parseWhere();
+        parseIfExists();
+    }
+
+    private void parseIfExists() {
+        if (accept("IF")) {
+            expect("EXISTS");
+            ifExists = true;
+        }
+    }
+
+    // USING TTL n AND TIMESTAMP n: bound like any other value, but then ignored
+    private void parseUsing() {
+        do {
+            String option = nextWord();
+            if (option.equals("TTL")) {
+                parseTerm("[ttl]", DataType.cint());
+            }
+            else if (option.equals("TIMESTAMP")) {
+                parseTerm("[timestamp]", DataType.bigint());
+            }
+            else {
+                throw new IllegalArgumentException("Unknown USING option " + option + " in: " + query);
+            }
+        } while (accept("AND"));
+    }
+
+    private void parseWhere() {
+        do {
+            parseRelation();
+        } while (accept("AND"));
+    }
+
+    private void parseRelation() {
+
+        if (peek("TOKEN") && position + 1 < tokens.size() && tokens.get(position + 1).equals("(")) {
+            position++;
+            expect("(");
+            List<String> columns = new ArrayList<>();
+            do {
+                columns.add(nextIdentifier());
+            } while (accept(","));
+            expect(")");
+            if (!columns.equals(table.getPartitionKey())) {
+                throw new IllegalArgumentException("The token function must be applied to the partition key "
+                        + table.getPartitionKey() + " in order, in: " + query);
+            }
+
+            String operator = nextToken();
+            if (!operator.equals("=") && !operator.startsWith("<") && !operator.startsWith(">")) {
+                throw new IllegalArgumentException("Unsupported token relation " + operator + " in: " + query);
+            }
+            where.add(new Relation(TOKEN_RELATION, operator,
+                    Collections.singletonList(parseTerm("partition key token", DataType.bigint())), -1));
+            return;
+        }
+
+        String name = nextIdentifier();
+        int column = column(name);
+        DataType type = table.getColumnTypes().get(column);
+
+        String operator = nextToken().toUpperCase(Locale.ROOT);
+        switch (operator) {
+
+            case "=":
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                where.add(new Relation(column, operator, Collections.singletonList(parseTerm(name, type)), -1));
+                break;
+
+            case "IN":
+                if (accept("?")) {
+                    where.add(new Relation(column, operator, Collections.<Term>emptyList(),
+                            addVariable(name, DataType.list(type))));
+                    break;
+                }
+                List<Term> values = new ArrayList<>();
+                expect("(");
+                do {
+                    values.add(parseTerm(name, type));
+                } while (accept(","));
+                expect(")");
+                where.add(new Relation(column, operator, values, -1));
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported operator " + operator + " in: " + query);
+        }
+    }
+
+    // A bind marker, which becomes the next variable, or a literal
+    private Term parseTerm(String pName, DataType pType) {
+
+        if (accept("?")) {
+            return new Term(addVariable(pName, pType), null);
+        }
+        if (accept(":")) {
+            return new Term(addVariable(nextIdentifier(), pType), null);
+        }
+
+        String literal = nextToken();
+        char first = literal.charAt(0);
+        boolean isLiteral = first == '\'' || first == '-' || Character.isDigit(first)
+                || literal.equalsIgnoreCase("true") || literal.equalsIgnoreCase("false")
+                || literal.equalsIgnoreCase("null") || literal.matches(UUID_LITERAL);
+        if (!isLiteral) {
+            throw new IllegalArgumentException("Expected a value but found '" + literal + "' in: " + query);
+        }
+        return new Term(-1, literal);
+    }
+
+    private int addVariable(String pName, DataType pType) {
+        variableNames.add(pName);
+        variableTypes.add(pType);
+        return variableNames.size() - 1;
+    }
+
+    private void parseTable(BiFunction<String, String, SimulatedTable> pTables) {
+
+        String keyspace = nextIdentifier();
+        expect(".");
+        String name = nextIdentifier();
+
+        table = pTables.apply(keyspace, name);
+        if (table == null) {
+            throw new IllegalArgumentException("unconfigured table " + name);
+        }
+    }
+
+    private int column(String pName) {
+
+        int column = table.indexOf(pName);
+        if (column < 0) {
+            throw new IllegalArgumentException("Undefined column name " + pName + " in table " + table.getQualifiedName());
+        }
+        return column;
+    }
+
+    private String nextToken() {
+        if (position >= tokens.size()) {
+            throw new IllegalArgumentException("Unexpected end of CQL: " + query);
+        }
+        return tokens.get(position++);
+    }
+
+    private String nextWord() {
+        return nextToken().toUpperCase(Locale.ROOT);
+    }
+
+    // Unquoted identifiers are case-insensitive; "Quoted" ones keep their case
+    private String nextIdentifier() {
+
+        String identifier = nextToken();
+        if (identifier.startsWith("\"")) {
+            return identifier.substring(1, identifier.length() - 1).replace("\"\"", "\"");
+        }
+        if (!Character.isLetter(identifier.charAt(0)) && identifier.charAt(0) != '_') {
+            throw new IllegalArgumentException("Expected an identifier but found '" + identifier + "' in: " + query);
+        }
+        return identifier.toLowerCase(Locale.ROOT);
+    }
+
+    private boolean peek(String pToken) {
+        return position < tokens.size() && tokens.get(position).equalsIgnoreCase(pToken);
+    }
+
+    private boolean accept(String pToken) {
+        if (peek(pToken)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String pToken) {
+        if (!accept(pToken)) {
+            throw new IllegalArgumentException("Expected " + pToken + " but found "
+                    + ((position < tokens.size()) ? "'" + tokens.get(position) + "'" : "the end") + " in: " + query);
+        }
+    }
+
+    /*
+    The outcome of one execution: a page of rows (each holding the selected columns' values, serialized) and the
+    paging state of the next page, or for a write, whether it was applied.
+     */
+    static final class Page {
+
+        final List<List<ByteBuffer>> rows;
+        final ByteBuffer pagingState;
+        final boolean applied;
+
+        Page(List<List<ByteBuffer>> pRows, ByteBuffer pPagingState) {
+            rows = pRows;
+            pagingState = pPagingState;
+            applied = true;
+        }
+
+        Page(boolean pApplied) {
+            rows = Collections.emptyList();
+            pagingState = null;
+            applied = pApplied;
+        }
+    }
+
+    // A value in the query: either bind marker number marker, or a literal
+    private static final class Term {
+
+        final int marker;
+        final String literal;
+
+        Term(int pMarker, String pLiteral) {
+            marker = pMarker;
+            literal = pLiteral;
+        }
+    }
+
+    private static final class Relation {
+
+        final int column;
+        final String operator;
+        final List<Term> values;
+        final int listMarker;
+
+        Relation(int pColumn, String pOperator, List<Term> pValues, int pListMarker) {
+            column = pColumn;
+            operator = pOperator;
+            values = pValues;
+            listMarker = pListMarker;
+        }
+
+        // Whether a value comparing as pComparison to the relation's value satisfies the relation
+        boolean accepts(int pComparison) {
+            switch (operator) {
+                case "<":
+                    return pComparison < 0;
+                case "<=":
+                    return pComparison <= 0;
+                case ">":
+                    return pComparison > 0;
+                case ">=":
+                    return pComparison >= 0;
+                default:
+                    return pComparison == 0;
+            }
+        }
+    }
+
+    /*
+    Where a page ended: <rows returned so far><partition key values><clustering key values>, each value as
+    <length><bytes>.
+     */
+    private static final class PagingPosition {
+
+        final long returned;
+        final PartitionKey partitionKey;
+        final ByteBuffer[] clusteringKey;
+
+        PagingPosition(ByteBuffer pPagingState) {
+
+            ByteBuffer state = pPagingState.duplicate();
+            try {
+                returned = state.getLong();
+                partitionKey = new PartitionKey(readValues(state));
+                clusteringKey = readValues(state);
+            }
+            catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid paging state", e);
+            }
+        }
+
+        static ByteBuffer encode(ByteBuffer[] pPartitionKey, ByteBuffer[] pClusteringKey, long pReturned) {
+
+            int size = 8 + 4 + 4;
+            for (ByteBuffer value : pPartitionKey) {
+                size += 4 + value.remaining();
+            }
+            for (ByteBuffer value : pClusteringKey) {
+                size += 4 + value.remaining();
+            }
+
+            ByteBuffer state = ByteBuffer.allocate(size);
+            state.putLong(pReturned);
+            writeValues(state, pPartitionKey);
+            writeValues(state, pClusteringKey);
+            state.flip();
+            return state;
+        }
+
+        private static void writeValues(ByteBuffer pState, ByteBuffer[] pValues) {
+            pState.putInt(pValues.length);
+            for (ByteBuffer value : pValues) {
+                pState.putInt(value.remaining());
+                pState.put(value.duplicate());
+            }
+        }
+
+        private static ByteBuffer[] readValues(ByteBuffer pState) {
+
+            ByteBuffer[] values = new ByteBuffer[pState.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                int length = pState.getInt();
+                ByteBuffer value = pState.slice();
+                value.limit(length);
+                pState.position(pState.position() + length);
+                values[i] = value;
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.datastax.kellett;
+
+/*
+SimulatedResultSet is the ResultSet returned by SimulatedSession.
+
+Like the driver's, it holds one page of rows at a time.  When the rows of a page run out and the server said there
+are more, the next page is fetched with the paging state of the last one, either in the background with
+fetchMoreResults() or, when iteration gets there first, by blocking until it arrives.
+*/
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+public class SimulatedResultSet implements ResultSet {
+
+    private final ColumnDefinitions columns;
+    private final boolean applied;
+    private final SimulatedSession session;
+
+    private final Deque<Row> rows;
+    private final List<ExecutionInfo> executionInfos = new ArrayList<>();
+
+    // The fetch of the last page asked for; once it is done, its rows have been added
+    private ListenableFuture<ResultSet> fetching;
+
+    public SimulatedResultSet(ColumnDefinitions pColumns, List<Row> pRows, ExecutionInfo pExecutionInfo,
+                              boolean pApplied, SimulatedSession pSession) {
+        columns = pColumns;
+        rows = new ArrayDeque<>(pRows);
+        executionInfos.add(pExecutionInfo);
+        applied = pApplied;
+        session = pSession;
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        return columns;
+    }
+
+    @Override
+    public boolean wasApplied() {
+        return applied;
+    }
+
+    @Override
+    public boolean isExhausted() {
+
+        while (true) {
+            ListenableFuture<ResultSet> nextPage;
+            synchronized (this) {
+                if (!rows.isEmpty() || isFullyFetched()) {
+                    return rows.isEmpty();
+                }
+                nextPage = fetchMoreResults();
+            }
+
+            // Wait outside the lock, since the page is added from the thread that completes the fetch
+            try {
+                Uninterruptibles.getUninterruptibly(nextPage);
+            }
+            catch (ExecutionException e) {
+                throw DriverErrors.propagate(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isFullyFetched() {
+        return getExecutionInfo().getPagingStateUnsafe() == null;
+    }
+
+    @Override
+    public synchronized int getAvailableWithoutFetching() {
+        return rows.size();
+    }
+
+    @Override
+    public synchronized ListenableFuture<ResultSet> fetchMoreResults() {
+
+        if (isFullyFetched()) {
+            return Futures.<ResultSet>immediateFuture(this);
+        }
+
+        if (fetching == null || fetching.isDone()) {
+            ExecutionInfo lastPage = getExecutionInfo();
+            fetching = Futures.transform(
+                    session.executeAsync(lastPage.getStatement(), ByteBuffer.wrap(lastPage.getPagingStateUnsafe())),
+                    (Function<ResultSet, ResultSet>) page -> addPage((SimulatedResultSet) page),
+                    MoreExecutors.directExecutor());
+        }
+        return fetching;
+    }
+
+    @Override
+    public Row one() {
+        return isExhausted() ? null : takeRow();
+    }
+
+    @Override
+    public List<Row> all() {
+
+        List<Row> remaining = new ArrayList<>();
+        while (!isExhausted()) {
+            remaining.add(takeRow());
+        }
+        return remaining;
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+
+            @Override
+            public boolean hasNext() {
+                return !isExhausted();
+            }
+
+            @Override
+            public Row next() {
+                if (isExhausted()) {
+                    throw new NoSuchElementException();
+                }
+                return takeRow();
+            }
+        };
+    }
+
+    @Override
+    public synchronized ExecutionInfo getExecutionInfo() {
+        return executionInfos.get(executionInfos.size() - 1);
+    }
+
+    @Override
+    public synchronized List<ExecutionInfo> getAllExecutionInfo() {
+        return Collections.unmodifiableList(new ArrayList<>(executionInfos));
+    }
+
+    private synchronized Row takeRow() {
+        return rows.poll();
+    }
+
+    private synchronized ResultSet addPage(SimulatedResultSet pPage) {
+        rows.addAll(pPage.rows);
+        executionInfos.addAll(pPage.executionInfos);
+        return this;
+    }
+}
@@ -0,0 +1,853 @@
+package com.datastax.kellett;
+
+/*
+SimulatedSession is an in-process stand-in for a DseSession connected to a cluster, so that the ingest and query
+paths (and the benchmarks) can run without a DSE node, including in CI.
+
+Statements really run.  CREATE KEYSPACE, CREATE TABLE and DROP statements change the schema; SELECT, INSERT, UPDATE, DELETE and
+TRUNCATE run against an in-memory copy of each table (see SimulatedTable and SimulatedQuery), in batches too.
+Results are paged by fetch size, and the paging state works the same way as the driver's: it can be read from a
+page's ExecutionInfo, saved as a string, and set on the same statement later to carry on from there.
+
+Timing is modelled on a small cluster:
+- There are a number of simulated hosts.  A statement with a routing key goes to the host owning its token, as with
+  TokenAwarePolicy; other statements go round-robin.  If that host is saturated the next one is tried.
+- Each host serves up to maxRequestsPerHost requests at once, and queues up to maxQueueSize more, like the driver's
+  connection pool.  When every host's queue is full the request fails with NoHostAvailableException, holding a
+  BusyPoolException for each host, as the driver would fail it.
+- Each request takes a latency drawn from a SimulatedLatency, one for reads and one for writes, or one per host.
+- A chosen fraction of requests (or those matching a filter) time out: the host works on them for the server
+  timeout, then fails them with ReadTimeoutException or WriteTimeoutException.  A request that would take longer
+  than the client read timeout fails with OperationTimedOutException instead, as the driver's would.
+With a seed, the sequence of latencies and timeouts is the same from run to run.  The retry policy is not applied;
+callers see errors as the first attempt got them.
+
+Futures are completed on a timer thread, just as a real response completes them on a driver I/O thread.  A request
+that takes no time at all completes on the calling thread.  close() fails the requests still queued, as the driver
+fails requests on a closed session; those already being served complete as they would have.
+
+Keyspaces whose names start with "system" or "dse" are taken to exist, with no rows, so that statements such as
+TRUNCATE system_traces.sessions succeed.  Graph queries are not simulated.
+
+getCluster() returns a DseCluster that is never connected.  It only supplies the configuration (protocol version,
+codec registry, default fetch size and timeouts) that calling code reads.
+*/
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.SimulatedDriverAccess;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.dse.DseCluster;
+import com.datastax.driver.dse.DseSession;
+import com.datastax.driver.dse.graph.GraphResultSet;
+import com.datastax.driver.dse.graph.GraphStatement;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SimulatedSession implements DseSession {
+
+    private static final Pattern TABLE_NAME = Pattern.compile(
+            "\\s(?:FROM|INTO|UPDATE|TABLE|TRUNCATE)\\s+(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?(\\w+)\\.(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SCHEMA_CHANGE = Pattern.compile(
+            "\\s*(?:CREATE|ALTER|DROP|USE|GRANT|REVOKE)\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern CREATE_KEYSPACE = Pattern.compile(
+            "\\s*CREATE\\s+KEYSPACE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)\\s+WITH\\s+REPLICATION\\s*=\\s*\\{([^}]*)}.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern OPTION = Pattern.compile("'([^']*)'\\s*:\\s*'?([^',]*?)'?\\s*(?:,|$)");
+
+    private static final Pattern DROP_KEYSPACE = Pattern.compile(
+            "\\s*DROP\\s+KEYSPACE\\s+(?:IF\\s+EXISTS\\s+)?(\\w+).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern DROP_TABLE = Pattern.compile(
+            "\\s*DROP\\s+TABLE\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern SELECT = Pattern.compile("\\s*SELECT\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final DseCluster cluster;
+    private final ProtocolVersion protocolVersion = ProtocolVersion.V4;
+    private final CodecRegistry codecRegistry;
+    private final ScheduledExecutorService responder;
+
+    private final Map<String, SimulatedTable> tables = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> keyspaces = new ConcurrentHashMap<>();
+
+    private final List<SimulatedHost> hosts = new ArrayList<>();
+    private final AtomicInteger nextHost = new AtomicInteger();
+
+    // Guarded by itself, so that a seeded run draws the same sequence
+    private final Random random = new Random();
+
+    private volatile SimulatedLatency readLatency;
+    private volatile SimulatedLatency writeLatency;
+    private volatile int maxRequestsPerHost = Integer.MAX_VALUE;
+    private volatile int maxQueueSize = 256;
+    private volatile double timeoutRate;
+    private volatile Predicate<Statement> timeoutFilter = statement -> false;
+    private volatile long serverTimeoutMillis = 2000;
+
+    private volatile boolean closed;
+
+    /*
+    A single host on which every request takes pLatencyMicros; 0 completes each request on the calling thread.
+     */
+    public SimulatedSession(long pLatencyMicros) {
+        this(1, SimulatedLatency.fixed(pLatencyMicros));
+    }
+
+    /*
+    pHosts hosts on which every request, read or write, takes a latency drawn from pLatency.
+     */
+    public SimulatedSession(int pHosts, SimulatedLatency pLatency) {
+
+        readLatency = pLatency;
+        writeLatency = pLatency;
+
+        cluster = DseCluster.builder()
+                .addContactPoint("127.0.0.1")
+                .withProtocolVersion(protocolVersion)
+                .withoutJMXReporting()
+                .build();
+        codecRegistry = cluster.getConfiguration().getCodecRegistry();
+
+        for (int i = 0; i < pHosts; i++) {
+            hosts.add(new SimulatedHost(InetSocketAddress.createUnresolved("127.0.0." + (i + 1), 9042)));
+        }
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "simulated-session-responder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        responder = timer;
+    }
+
+    public SimulatedSession setReadLatency(SimulatedLatency pLatency) {
+        readLatency = pLatency;
+        return this;
+    }
+
+    public SimulatedSession setWriteLatency(SimulatedLatency pLatency) {
+        writeLatency = pLatency;
+        return this;
+    }
+
+    /*
+    Every request served by host number pHost (from 0) takes pLatency, whether a read or a write: a slow node.
+     */
+    public SimulatedSession setHostLatency(int pHost, SimulatedLatency pLatency) {
+        hosts.get(pHost).latency = pLatency;
+        return this;
+    }
+
+    /*
+    How many requests a host serves at once; more than that wait in its queue.
+     */
+    public SimulatedSession setMaxRequestsPerHost(int pMaxRequestsPerHost) {
+        maxRequestsPerHost = pMaxRequestsPerHost;
+        return this;
+    }
+
+    /*
+    How many requests may wait for each host before it is considered busy.  256 by default, as in PoolingOptions.
+     */
+    public SimulatedSession setMaxQueueSize(int pMaxQueueSize) {
+        maxQueueSize = pMaxQueueSize;
+        return this;
+    }
+
+    /*
+    The fraction of requests, chosen at random, that time out on the server.
+     */
+    public SimulatedSession setTimeoutRate(double pTimeoutRate) {
+        timeoutRate = pTimeoutRate;
+        return this;
+    }
+
+    /*
+    Statements matching pFilter always time out on the server.
+     */
+    public SimulatedSession setTimeoutFilter(Predicate<Statement> pFilter) {
+        timeoutFilter = pFilter;
+        return this;
+    }
+
+    /*
+    How long a host works on a request that times out before failing it.  2 seconds by default, as Cassandra's
+    write_request_timeout_in_ms.
+     */
+    public SimulatedSession setServerTimeoutMillis(long pServerTimeoutMillis) {
+        serverTimeoutMillis = pServerTimeoutMillis;
+        return this;
+    }
+
+    public SimulatedSession setSeed(long pSeed) {
+        synchronized (random) {
+            random.setSeed(pSeed);
+        }
+        return this;
+    }
+
+    /*
+    The schema and rows of pKeyspace.pTable, or null if it has not been created.
+     */
+    public SimulatedTable getTable(String pKeyspace, String pTable) {
+        return tables.get(pKeyspace.toLowerCase(Locale.ROOT) + "." + pTable.toLowerCase(Locale.ROOT));
+    }
+
+    /*
+    Every table created so far.
+     */
+    public Collection<SimulatedTable> getTables() {
+        return Collections.unmodifiableCollection(tables.values());
+    }
+
+    /*
+    The replication options of each keyspace created so far, by name, as given in CREATE KEYSPACE.
+     */
+    public Map<String, Map<String, String>> getKeyspaces() {
+        return Collections.unmodifiableMap(keyspaces);
+    }
+
+    public void printReport() {
+
+        for (SimulatedHost host : hosts) {
+            synchronized (host) {
+                System.out.println("Simulated host " + host.address + ": "
+                        + host.requests + " requests, "
+                        + host.mostQueued + " queued at most, "
+                        + host.rejected + " rejected as busy, "
+                        + host.timedOut + " timed out");
+            }
+        }
+    }
+
+    @Override
+    public String getLoggedKeyspace() {
+        return null;
+    }
+
+    @Override
+    public Session init() {
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        return Futures.<Session>immediateFuture(this);
+    }
+
+    @Override
+    public ResultSet execute(String pQuery) {
+        return execute(new SimpleStatement(pQuery));
+    }
+
+    @Override
+    public ResultSet execute(String pQuery, Object... pValues) {
+        return execute(new SimpleStatement(pQuery, pValues));
+    }
+
+    @Override
+    public ResultSet execute(String pQuery, Map<String, Object> pValues) {
+        return execute(new SimpleStatement(pQuery, pValues));
+    }
+
+    @Override
+    public ResultSet execute(Statement pStatement) {
+        return executeAsync(pStatement).getUninterruptibly();
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String pQuery) {
+        return executeAsync(new SimpleStatement(pQuery));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String pQuery, Object... pValues) {
+        return executeAsync(new SimpleStatement(pQuery, pValues));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String pQuery, Map<String, Object> pValues) {
+        return executeAsync(new SimpleStatement(pQuery, pValues));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement pStatement) {
+        return executeAsync(pStatement, SimulatedDriverAccess.pagingState(pStatement));
+    }
+
+    /*
+    Runs pStatement from pPagingState (null for the first page).  SimulatedResultSet fetches later pages with this.
+     */
+    ResultSetFuture executeAsync(Statement pStatement, ByteBuffer pPagingState) {
+
+        if (closed) {
+            throw closedError();
+        }
+
+        Request request = new Request(pStatement, pPagingState);
+
+        Map<InetSocketAddress, Throwable> errors = new LinkedHashMap<>();
+        for (SimulatedHost host : queryPlan(pStatement)) {
+            if (offer(host, request)) {
+                return request.future;
+            }
+            errors.put(host.address, new BusyPoolException(host.address, maxQueueSize));
+        }
+
+        request.future.fail(new NoHostAvailableException(errors));
+        return request.future;
+    }
+
+    @Override
+    public PreparedStatement prepare(String pQuery) {
+        try {
+            return new SimulatedPreparedStatement(
+                    pQuery, SimulatedQuery.parse(pQuery, this::getTable), protocolVersion, codecRegistry);
+        }
+        catch (IllegalArgumentException e) {
+            throw new InvalidQueryException(e.getMessage());
+        }
+    }
+
+    @Override
+    public PreparedStatement prepare(RegularStatement pStatement) {
+
+        PreparedStatement prepared = prepare(pStatement.getQueryString(codecRegistry));
+        prepared.setConsistencyLevel(pStatement.getConsistencyLevel());
+        if (pStatement.isIdempotent() != null) {
+            prepared.setIdempotent(pStatement.isIdempotent());
+        }
+        return prepared;
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(String pQuery) {
+        try {
+            return Futures.immediateFuture(prepare(pQuery));
+        }
+        catch (DriverException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement pStatement) {
+        try {
+            return Futures.immediateFuture(prepare(pStatement));
+        }
+        catch (DriverException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public GraphResultSet executeGraph(String pQuery) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public GraphResultSet executeGraph(String pQuery, Map<String, Object> pValues) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public GraphResultSet executeGraph(GraphStatement pStatement) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public ListenableFuture<GraphResultSet> executeGraphAsync(String pQuery) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public ListenableFuture<GraphResultSet> executeGraphAsync(String pQuery, Map<String, Object> pValues) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public ListenableFuture<GraphResultSet> executeGraphAsync(GraphStatement pStatement) {
+        throw new UnsupportedOperationException("Graph queries are not simulated");
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        close();
+        return SimulatedDriverAccess.closedFuture();
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+
+        // Requests already being served complete; those still queued never will, so fail them now
+        for (SimulatedHost host : hosts) {
+            List<Request> queued;
+            synchronized (host) {
+                queued = new ArrayList<>(host.queue);
+                host.queue.clear();
+            }
+            for (Request request : queued) {
+                request.future.fail(closedError());
+            }
+        }
+
+        responder.shutdown();
+        cluster.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public DseCluster getCluster() {
+        return cluster;
+    }
+
+    @Override
+    public State getState() {
+
+        return new State() {
+
+            @Override
+            public Session getSession() {
+                return SimulatedSession.this;
+            }
+
+            @Override
+            public Collection<Host> getConnectedHosts() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int getOpenConnections(Host pHost) {
+                return 0;
+            }
+
+            @Override
+            public int getTrashedConnections(Host pHost) {
+                return 0;
+            }
+
+            @Override
+            public int getInFlightQueries(Host pHost) {
+                return 0;
+            }
+        };
+    }
+
+    // The owner of the statement's token first, if it has a routing key, then the other hosts in turn
+    private List<SimulatedHost> queryPlan(Statement pStatement) {
+
+        int first;
+        ByteBuffer routingKey = pStatement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey != null) {
+            // The ring is split evenly between the hosts
+            long offset = SimulatedDriverAccess.murmur3Token(routingKey) - Long.MIN_VALUE;
+            first = (int) (((offset >>> 33) * hosts.size()) >>> 31);
+        }
+        else {
+            first = Math.floorMod(nextHost.getAndIncrement(), hosts.size());
+        }
+
+        List<SimulatedHost> plan = new ArrayList<>(hosts.size());
+        for (int i = 0; i < hosts.size(); i++) {
+            plan.add(hosts.get((first + i) % hosts.size()));
+        }
+        return plan;
+    }
+
+    // Starts pRequest on pHost, or queues it there; false if pHost's queue is full
+    private boolean offer(SimulatedHost pHost, Request pRequest) {
+
+        boolean closedMeanwhile = false;
+        synchronized (pHost) {
+            if (closed) {
+                // Closed since executeAsync() checked, and close() may already have failed this host's queue
+                closedMeanwhile = true;
+            }
+            else if (pHost.inFlight < maxRequestsPerHost) {
+                pHost.inFlight++;
+            }
+            else if (pHost.queue.size() < maxQueueSize) {
+                pHost.queue.add(pRequest);
+                pHost.mostQueued = Math.max(pHost.mostQueued, pHost.queue.size());
+                return true;
+            }
+            else {
+                pHost.rejected++;
+                return false;
+            }
+        }
+
+        if (closedMeanwhile) {
+            pRequest.future.fail(closedError());
+        }
+        else {
+            serve(pHost, pRequest);
+        }
+        return true;
+    }
+
+    private void serve(SimulatedHost pHost, Request pRequest) {
+
+        Statement statement = pRequest.statement;
+        boolean read = isRead(statement);
+
+        boolean timesOut;
+        long serviceMicros;
+        synchronized (random) {
+            timesOut = timeoutFilter.test(statement) || random.nextDouble() < timeoutRate;
+            SimulatedLatency latency = (pHost.latency != null) ? pHost.latency : (read ? readLatency : writeLatency);
+            serviceMicros = timesOut ? TimeUnit.MILLISECONDS.toMicros(serverTimeoutMillis) : latency.nextMicros(random);
+        }
+
+        ResultSet result = null;
+        Throwable error = null;
+        try {
+            result = apply(statement, pRequest.pagingState);
+        }
+        catch (IllegalArgumentException e) {
+            error = new InvalidQueryException(e.getMessage());
+        }
+        catch (RuntimeException e) {
+            error = e;
+        }
+
+        synchronized (pHost) {
+            pHost.requests++;
+            if (timesOut) {
+                pHost.timedOut++;
+            }
+        }
+        if (timesOut) {
+            error = serverTimeout(statement, read);
+        }
+
+        // The client gives up first if the server takes longer than the read timeout
+        long clientTimeoutMillis = clientTimeoutMillis(statement);
+        if (clientTimeoutMillis > 0 && serviceMicros > TimeUnit.MILLISECONDS.toMicros(clientTimeoutMillis)) {
+            responder.schedule(() -> pRequest.future.fail(new OperationTimedOutException(
+                            pHost.address, "Timed out waiting for server response")),
+                    clientTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        ResultSet response = result;
+        Throwable failure = error;
+        Runnable respond = () -> {
+            if (failure != null) {
+                pRequest.future.fail(failure);
+            }
+            else {
+                pRequest.future.complete(response);
+            }
+            release(pHost);
+        };
+
+        if (serviceMicros <= 0) {
+            respond.run();
+        }
+        else {
+            responder.schedule(respond, serviceMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    // Frees pHost's slot for the next queued request, if any
+    private void release(SimulatedHost pHost) {
+
+        Request next;
+        synchronized (pHost) {
+            next = closed ? null : pHost.queue.poll();
+            if (next == null) {
+                pHost.inFlight--;
+            }
+        }
+        if (next != null) {
+            serve(pHost, next);
+        }
+    }
+
+    private ResultSet apply(Statement pStatement, ByteBuffer pPagingState) {
+
+        if (pStatement instanceof BatchStatement) {
+            for (Statement statement : ((BatchStatement) pStatement).getStatements()) {
+                apply(statement, null);
+            }
+            return emptyResult(pStatement);
+        }
+
+        if (pStatement instanceof BoundStatement) {
+            BoundStatement bound = (BoundStatement) pStatement;
+            SimulatedPreparedStatement prepared = (SimulatedPreparedStatement) bound.preparedStatement();
+
+            ByteBuffer[] values = new ByteBuffer[prepared.getVariables().size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = bound.isSet(i) ? bound.getBytesUnsafe(i) : SimulatedQuery.UNSET;
+            }
+            return run(pStatement, prepared.getQuery(), prepared.getResultColumns(), values, pPagingState);
+        }
+
+        if (pStatement instanceof RegularStatement) {
+            RegularStatement regular = (RegularStatement) pStatement;
+            String query = regular.getQueryString(codecRegistry);
+
+            if (SCHEMA_CHANGE.matcher(query).matches()) {
+                applySchemaChange(query);
+                return emptyResult(pStatement);
+            }
+            if (isSystemTable(query)) {
+                return emptyResult(pStatement);
+            }
+            if (regular.usesNamedValues()) {
+                throw new IllegalArgumentException("Named values are not simulated: " + query);
+            }
+
+            SimulatedQuery parsed = SimulatedQuery.parse(query, this::getTable);
+            ByteBuffer[] values = regular.hasValues(codecRegistry)
+                    ? regular.getValues(protocolVersion, codecRegistry) : new ByteBuffer[0];
+            ColumnDefinitions columns = SimulatedDriverAccess.columnDefinitions(
+                    parsed.getTable().getKeyspace(), parsed.getTable().getName(),
+                    parsed.getResultColumnNames(), parsed.getResultColumnTypes(), codecRegistry);
+            return run(pStatement, parsed, columns, values, pPagingState);
+        }
+
+        throw new IllegalArgumentException("Unsupported statement type " + pStatement.getClass().getName());
+    }
+
+    private ResultSet run(Statement pStatement, SimulatedQuery pQuery, ColumnDefinitions pColumns,
+                          ByteBuffer[] pValues, ByteBuffer pPagingState) {
+
+        int fetchSize = (pStatement.getFetchSize() > 0)
+                ? pStatement.getFetchSize()
+                : cluster.getConfiguration().getQueryOptions().getFetchSize();
+
+        SimulatedQuery.Page page = pQuery.execute(pValues, pPagingState, fetchSize);
+
+        List<Row> rows = new ArrayList<>(page.rows.size());
+        for (List<ByteBuffer> values : page.rows) {
+            rows.add(SimulatedDriverAccess.row(pColumns, values, protocolVersion));
+        }
+
+        return new SimulatedResultSet(
+                pColumns,
+                rows,
+                SimulatedDriverAccess.executionInfo(pStatement, page.pagingState, protocolVersion, codecRegistry),
+                page.applied,
+                this);
+    }
+
+    private void applySchemaChange(String pQuery) {
+
+        SimulatedTable created = SimulatedTable.parse(pQuery);
+        if (created != null) {
+            tables.putIfAbsent(created.getQualifiedName(), created);
+            return;
+        }
+
+        Matcher createKeyspace = CREATE_KEYSPACE.matcher(pQuery);
+        if (createKeyspace.matches()) {
+            Map<String, String> replication = new LinkedHashMap<>();
+            Matcher option = OPTION.matcher(createKeyspace.group(2).trim());
+            while (option.find()) {
+                replication.put(option.group(1), option.group(2).trim());
+            }
+            keyspaces.putIfAbsent(createKeyspace.group(1).toLowerCase(Locale.ROOT), replication);
+            return;
+        }
+
+        Matcher dropKeyspace = DROP_KEYSPACE.matcher(pQuery);
+        if (dropKeyspace.matches()) {
+            String prefix = dropKeyspace.group(1).toLowerCase(Locale.ROOT) + ".";
+            keyspaces.remove(dropKeyspace.group(1).toLowerCase(Locale.ROOT));
+            tables.keySet().removeIf(name -> name.startsWith(prefix));
+            return;
+        }
+
+        Matcher tableName = TABLE_NAME.matcher(" " + pQuery);
+        if (DROP_TABLE.matcher(pQuery).matches() && tableName.find()) {
+            tables.remove(tableName.group(1).toLowerCase(Locale.ROOT) + "." + tableName.group(2).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private boolean isSystemTable(String pQuery) {
+
+        Matcher tableName = TABLE_NAME.matcher(" " + pQuery);
+        if (!tableName.find()) {
+            return false;
+        }
+        String keyspace = tableName.group(1).toLowerCase(Locale.ROOT);
+        return (keyspace.startsWith("system") || keyspace.startsWith("dse"))
+                && getTable(keyspace, tableName.group(2)) == null;
+    }
+
+    private boolean isRead(Statement pStatement) {
+
+        if (pStatement instanceof BoundStatement) {
+            SimulatedPreparedStatement prepared =
+                    (SimulatedPreparedStatement) ((BoundStatement) pStatement).preparedStatement();
+            return prepared.getQuery().getKind() == SimulatedQuery.Kind.SELECT;
+        }
+        if (pStatement instanceof RegularStatement) {
+            return SELECT.matcher(((RegularStatement) pStatement).getQueryString(codecRegistry)).matches();
+        }
+        return false;
+    }
+
+    private DriverException serverTimeout(Statement pStatement, boolean pRead) {
+
+        ConsistencyLevel consistency = (pStatement.getConsistencyLevel() != null)
+                ? pStatement.getConsistencyLevel()
+                : cluster.getConfiguration().getQueryOptions().getConsistencyLevel();
+
+        if (pRead) {
+            return new ReadTimeoutException(consistency, 0, 1, false);
+        }
+        return new WriteTimeoutException(consistency,
+                (pStatement instanceof BatchStatement) ? WriteType.BATCH : WriteType.SIMPLE, 0, 1);
+    }
+
+    // As the driver reads it: the statement's own timeout if set, 0 for none, otherwise the socket options'
+    private long clientTimeoutMillis(Statement pStatement) {
+
+        int statementTimeout = pStatement.getReadTimeoutMillis();
+        if (statementTimeout >= 0) {
+            return statementTimeout;
+        }
+        return cluster.getConfiguration().getSocketOptions().getReadTimeoutMillis();
+    }
+
+    private ResultSet emptyResult(Statement pStatement) {
+
+        ColumnDefinitions noColumns = SimulatedDriverAccess.columnDefinitions(
+                null, null, Collections.<String>emptyList(), Collections.emptyList(), codecRegistry);
+        return new SimulatedResultSet(
+                noColumns,
+                Collections.<Row>emptyList(),
+                SimulatedDriverAccess.executionInfo(pStatement, null, protocolVersion, codecRegistry),
+                true,
+                this);
+    }
+
+    private static IllegalStateException closedError() {
+        return new IllegalStateException("Could not send request, session is closed");
+    }
+
+    private static class SimulatedHost {
+
+        final InetSocketAddress address;
+        volatile SimulatedLatency latency;
+
+        // Guarded by the host itself
+        final Queue<Request> queue = new ArrayDeque<>();
+        int inFlight;
+        long requests;
+        int mostQueued;
+        long rejected;
+        long timedOut;
+
+        SimulatedHost(InetSocketAddress pAddress) {
+            address = pAddress;
+        }
+    }
+
+    private static class Request {
+
+        final Statement statement;
+        final ByteBuffer pagingState;
+        final SimulatedResultSetFuture future = new SimulatedResultSetFuture();
+
+        Request(Statement pStatement, ByteBuffer pPagingState) {
+            statement = pStatement;
+            pagingState = pPagingState;
+        }
+    }
+
+    /*
+    Completed from the responder thread, like a driver future is completed from an I/O thread.
+     */
+    private static class SimulatedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+        void complete(ResultSet pResult) {
+            set(pResult);
+        }
+
+        void fail(Throwable pError) {
+            setException(pError);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            }
+            catch (ExecutionException e) {
+                throw DriverErrors.propagate(e.getCause());
+            }
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long pTimeout, TimeUnit pUnit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, pTimeout, pUnit);
+            }
+            catch (ExecutionException e) {
+                throw DriverErrors.propagate(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package com.datastax.kellett;
+
+/*
+SimulatedSystemTables answers the queries on system tables that the driver makes on its control connection, for
+SimulatedCqlServer.
+
+When the driver connects it reads system.local and system.peers to learn the cluster (its name, partitioner, data
+centers and token ring), then the system_schema tables to build its schema Metadata.  After every schema change it
+reads them again for the keyspace or table that changed, and to fetch a query trace it reads system_traces.  Those
+rows are made up here from the state of the SimulatedSession behind the server: one node in data center DC1 owning
+the whole ring, the keyspaces and tables created so far, and the traces of traced requests.
+
+Only SELECT with equality relations (key = 'local', keyspace_name = ?, ...) is understood, which is all the driver
+sends.  Any other table in a system keyspace exists and is empty.
+*/
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.utils.UUIDs;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class SimulatedSystemTables {
+
+    static final String DATA_CENTER = "DC1";
+
+    private static final String RELEASE_VERSION = "3.11.3.5117";
+    private static final String DSE_VERSION = "5.1.17";
+    private static final String PARTITIONER = "org.apache.cassandra.dht.Murmur3Partitioner";
+
+    // Like the real tables, traces are kept for a while only; these are the most recent ones
+    private static final int MAX_TRACES = 10000;
+
+    private static final Pattern SELECT = Pattern.compile(
+            "\\s*SELECT\\s+(.+?)\\s+FROM\\s+(\\w+)\\.(\\w+)(?:\\s+WHERE\\s+(.+?))?(?:\\s+ALLOW\\s+FILTERING)?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern TRUNCATE_TRACES = Pattern.compile(
+            "\\s*TRUNCATE\\s+(?:TABLE\\s+)?system_traces\\.\\w+\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern AND = Pattern.compile("\\s+AND\\s+", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern RELATION = Pattern.compile("(\\w+)\\s*=\\s*('(?:[^']|'')*'|\\?|[\\w-]+)");
+
+    private static final DataType TEXT_MAP = DataType.map(DataType.text(), DataType.text());
+    private static final DataType TEXT_SET = DataType.set(DataType.text());
+
+    private final SimulatedSession session;
+    private final InetAddress address;
+    private final CodecRegistry codecRegistry;
+    private final ProtocolVersion protocolVersion;
+
+    private final UUID hostId = UUID.randomUUID();
+    private final UUID schemaVersion = UUID.randomUUID();
+    private final int gossipGeneration = (int) (System.currentTimeMillis() / 1000);
+
+    private final Map<String, Table> tables = new HashMap<>();
+
+    // Both guarded by traceSessions
+    private final Map<UUID, Object[]> traceSessions = new LinkedHashMap<UUID, Object[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Object[]> pEldest) {
+            if (size() > MAX_TRACES) {
+                traceEvents.remove(pEldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<UUID, List<Object[]>> traceEvents = new HashMap<>();
+
+    SimulatedSystemTables(SimulatedSession pSession, InetAddress pAddress,
+                          CodecRegistry pCodecRegistry, ProtocolVersion pProtocolVersion) {
+
+        session = pSession;
+        address = pAddress;
+        codecRegistry = pCodecRegistry;
+        protocolVersion = pProtocolVersion;
+
+        define("system", "local", this::localRows,
+                "key", DataType.text(),
+                "bootstrapped", DataType.text(),
+                "broadcast_address", DataType.inet(),
+                "cluster_name", DataType.text(),
+                "cql_version", DataType.text(),
+                "data_center", DataType.text(),
+                "dse_version", DataType.text(),
+                "gossip_generation", DataType.cint(),
+                "graph", DataType.cboolean(),
+                "host_id", DataType.uuid(),
+                "listen_address", DataType.inet(),
+                "native_protocol_version", DataType.text(),
+                "partitioner", DataType.text(),
+                "rack", DataType.text(),
+                "release_version", DataType.text(),
+                "rpc_address", DataType.inet(),
+                "schema_version", DataType.uuid(),
+                "server_id", DataType.text(),
+                "thrift_version", DataType.text(),
+                "tokens", TEXT_SET,
+                "workload", DataType.text(),
+                "workloads", TEXT_SET);
+
+        define("system", "peers", Collections::emptyList,
+                "peer", DataType.inet(),
+                "data_center", DataType.text(),
+                "dse_version", DataType.text(),
+                "graph", DataType.cboolean(),
+                "host_id", DataType.uuid(),
+                "preferred_ip", DataType.inet(),
+                "rack", DataType.text(),
+                "release_version", DataType.text(),
+                "rpc_address", DataType.inet(),
+                "schema_version", DataType.uuid(),
+                "server_id", DataType.text(),
+                "tokens", TEXT_SET,
+                "workload", DataType.text(),
+                "workloads", TEXT_SET);
+
+        define("system_schema", "keyspaces", this::keyspaceRows,
+                "keyspace_name", DataType.text(),
+                "durable_writes", DataType.cboolean(),
+                "replication", TEXT_MAP);
+
+        define("system_schema", "tables", this::tableRows,
+                "keyspace_name", DataType.text(),
+                "table_name", DataType.text(),
+                "bloom_filter_fp_chance", DataType.cdouble(),
+                "caching", TEXT_MAP,
+                "cdc", DataType.cboolean(),
+                "comment", DataType.text(),
+                "compaction", TEXT_MAP,
+                "compression", TEXT_MAP,
+                "crc_check_chance", DataType.cdouble(),
+                "dclocal_read_repair_chance", DataType.cdouble(),
+                "default_time_to_live", DataType.cint(),
+                "extensions", DataType.map(DataType.text(), DataType.blob()),
+                "flags", TEXT_SET,
+                "gc_grace_seconds", DataType.cint(),
+                "id", DataType.uuid(),
+                "max_index_interval", DataType.cint(),
+                "memtable_flush_period_in_ms", DataType.cint(),
+                "min_index_interval", DataType.cint(),
+                "read_repair_chance", DataType.cdouble(),
+                "speculative_retry", DataType.text());
+
+        define("system_schema", "columns", this::columnRows,
+                "keyspace_name", DataType.text(),
+                "table_name", DataType.text(),
+                "column_name", DataType.text(),
+                "clustering_order", DataType.text(),
+                "column_name_bytes", DataType.blob(),
+                "kind", DataType.text(),
+                "position", DataType.cint(),
+                "type", DataType.text());
+
+        define("system_traces", "sessions", this::traceSessionRows,
+                "session_id", DataType.uuid(),
+                "client", DataType.inet(),
+                "command", DataType.text(),
+                "coordinator", DataType.inet(),
+                "duration", DataType.cint(),
+                "parameters", TEXT_MAP,
+                "request", DataType.text(),
+                "started_at", DataType.timestamp());
+
+        define("system_traces", "events", this::traceEventRows,
+                "session_id", DataType.uuid(),
+                "event_id", DataType.timeuuid(),
+                "activity", DataType.text(),
+                "source", DataType.inet(),
+                "source_elapsed", DataType.cint(),
+                "thread", DataType.text());
+    }
+
+    static boolean isSystemKeyspace(String pKeyspace) {
+        return pKeyspace.toLowerCase(Locale.ROOT).startsWith("system");
+    }
+
+    /*
+    The result of pQuery if it reads a system table, or null if it does not.  pValues are its bound values.
+     */
+    Result execute(String pQuery, List<ByteBuffer> pValues) {
+
+        if (TRUNCATE_TRACES.matcher(pQuery).matches()) {
+            synchronized (traceSessions) {
+                traceSessions.clear();
+                traceEvents.clear();
+            }
+            return new Result(null, null, Collections.<String>emptyList(), Collections.<DataType>emptyList(),
+                    Collections.<List<ByteBuffer>>emptyList());
+        }
+
+        Matcher select = SELECT.matcher(pQuery);
+        if (!select.matches() || !isSystemKeyspace(select.group(2))) {
+            return null;
+        }
+
+        String keyspace = select.group(2).toLowerCase(Locale.ROOT);
+        String name = select.group(3).toLowerCase(Locale.ROOT);
+        Table table = tables.get(keyspace + "." + name);
+        if (table == null) {
+            return new Result(keyspace, name, Collections.<String>emptyList(), Collections.<DataType>emptyList(),
+                    Collections.<List<ByteBuffer>>emptyList());
+        }
+
+        // The selected columns, by their positions in the table
+        int[] selected;
+        String selection = select.group(1).trim();
+        if (selection.equals("*")) {
+            selected = new int[table.columns.size()];
+            Arrays.setAll(selected, i -> i);
+        }
+        else {
+            List<String> names = SimulatedTable.splitTopLevel(selection);
+            selected = new int[names.size()];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] = table.indexOf(names.get(i).trim());
+            }
+        }
+
+        List<Relation> relations = parseWhere(table, select.group(4), pValues);
+
+        List<String> names = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
+        for (int column : selected) {
+            names.add(table.columns.get(column));
+            types.add(table.types.get(column));
+        }
+
+        List<List<ByteBuffer>> rows = new ArrayList<>();
+        for (Object[] row : table.rows.get()) {
+            if (relations.stream().allMatch(relation -> relation.matches(row))) {
+                List<ByteBuffer> values = new ArrayList<>(selected.length);
+                for (int column : selected) {
+                    values.add(serialize(table.types.get(column), row[column]));
+                }
+                rows.add(values);
+            }
+        }
+        return new Result(keyspace, name, names, types, rows);
+    }
+
+    /*
+    Keeps the trace of a request, served by this node, as system_traces would: one session and an event for each
+    step.  The steps are those Cassandra logs for a single-partition read or write, spread over pDurationMicros.
+     */
+    void addTrace(UUID pSessionId, InetAddress pClient, String pRequest, Map<String, String> pParameters,
+                  long pStartedAtMillis, int pDurationMicros, String pTable, boolean pRead, int pRows) {
+
+        Object[] session = {pSessionId, pClient, "QUERY", address, pDurationMicros, pParameters, pRequest,
+                new Date(pStartedAtMillis)};
+
+        List<Object[]> events = new ArrayList<>();
+        String query = pParameters.getOrDefault("query", "");
+        addEvent(events, pSessionId, "Parsing " + query, 0, "Native-Transport-Requests-1");
+        addEvent(events, pSessionId, "Preparing statement", pDurationMicros / 20, "Native-Transport-Requests-1");
+        if (pRead) {
+            addEvent(events, pSessionId, "Executing single-partition query on " + pTable,
+                    pDurationMicros / 10, "ReadStage-2");
+            addEvent(events, pSessionId, "Acquiring sstable references", pDurationMicros / 8, "ReadStage-2");
+            addEvent(events, pSessionId, "Read " + pRows + " live rows and 0 tombstone cells",
+                    pDurationMicros * 9 / 10, "ReadStage-2");
+        }
+        else {
+            addEvent(events, pSessionId, "Determining replicas for mutation", pDurationMicros / 10,
+                    "Native-Transport-Requests-1");
+            addEvent(events, pSessionId, "Appending to commitlog", pDurationMicros / 5, "MutationStage-3");
+            addEvent(events, pSessionId, "Adding to " + pTable + " memtable", pDurationMicros * 9 / 10,
+                    "MutationStage-3");
+        }
+
+        synchronized (traceSessions) {
+            traceEvents.put(pSessionId, events);
+            traceSessions.put(pSessionId, session);
+        }
+    }
+
+    private void addEvent(List<Object[]> pEvents, UUID pSessionId, String pActivity, int pElapsedMicros,
+                          String pThread) {
+        pEvents.add(new Object[]{pSessionId, UUIDs.timeBased(), pActivity, address, pElapsedMicros, pThread});
+    }
+
+    private List<Object[]> localRows() {
+
+        Object[] local = {
+                "local",
+                "COMPLETED",
+                address,
+                "Simulated Cluster",
+                "3.4.4",
+                DATA_CENTER,
+                DSE_VERSION,
+                gossipGeneration,
+                false,
+                hostId,
+                address,
+                "4",
+                PARTITIONER,
+                "rack1",
+                RELEASE_VERSION,
+                address,
+                schemaVersion,
+                "simulated",
+                "20.1.0",
+                Collections.singleton("0"),
+                "Cassandra",
+                Collections.singleton("Cassandra")};
+        return Collections.singletonList(local);
+    }
+
+    private List<Object[]> keyspaceRows() {
+
+        Map<String, Map<String, String>> keyspaces = new LinkedHashMap<>(session.getKeyspaces());
+
+        // A table may have been created without its keyspace
+        for (SimulatedTable table : session.getTables()) {
+            Map<String, String> replication = new LinkedHashMap<>();
+            replication.put("class", "org.apache.cassandra.locator.SimpleStrategy");
+            replication.put("replication_factor", "1");
+            keyspaces.putIfAbsent(table.getKeyspace(), replication);
+        }
+
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, Map<String, String>> keyspace : keyspaces.entrySet()) {
+            Map<String, String> replication = new LinkedHashMap<>(keyspace.getValue());
+            String strategy = replication.getOrDefault("class", "SimpleStrategy");
+            replication.put("class", strategy.contains(".") ? strategy : "org.apache.cassandra.locator." + strategy);
+            rows.add(new Object[]{keyspace.getKey(), true, replication});
+        }
+        return rows;
+    }
+
+    private List<Object[]> tableRows() {
+
+        Map<String, String> caching = new LinkedHashMap<>();
+        caching.put("keys", "ALL");
+        caching.put("rows_per_partition", "NONE");
+
+        Map<String, String> compaction = new LinkedHashMap<>();
+        compaction.put("class", "org.apache.cassandra.db.compaction.SizeTieredCompactionStrategy");
+        compaction.put("max_threshold", "32");
+        compaction.put("min_threshold", "4");
+
+        Map<String, String> compression = new LinkedHashMap<>();
+        compression.put("chunk_length_in_kb", "64");
+        compression.put("class", "org.apache.cassandra.io.compress.LZ4Compressor");
+
+        List<Object[]> rows = new ArrayList<>();
+        for (SimulatedTable table : session.getTables()) {
+            rows.add(new Object[]{
+                    table.getKeyspace(),
+                    table.getName(),
+                    0.01,
+                    caching,
+                    false,
+                    "",
+                    compaction,
+                    compression,
+                    1.0,
+                    0.1,
+                    0,
+                    Collections.<String, ByteBuffer>emptyMap(),
+                    Collections.singleton("compound"),
+                    864000,
+                    UUID.nameUUIDFromBytes(table.getQualifiedName().getBytes(StandardCharsets.UTF_8)),
+                    2048,
+                    0,
+                    128,
+                    0.0,
+                    "99PERCENTILE"});
+        }
+        return rows;
+    }
+
+    private List<Object[]> columnRows() {
+
+        List<Object[]> rows = new ArrayList<>();
+        for (SimulatedTable table : session.getTables()) {
+            List<String> partitionKey = table.getPartitionKey();
+            List<String> clustering = table.getClusteringColumns();
+
+            for (String column : table.getColumnNames()) {
+                String kind = "regular";
+                String order = "none";
+                int position = partitionKey.indexOf(column);
+                if (position >= 0) {
+                    kind = "partition_key";
+                }
+                else if ((position = clustering.indexOf(column)) >= 0) {
+                    kind = "clustering";
+                    order = table.isDescending(position) ? "desc" : "asc";
+                }
+
+                rows.add(new Object[]{
+                        table.getKeyspace(),
+                        table.getName(),
+                        column,
+                        order,
+                        ByteBuffer.wrap(column.getBytes(StandardCharsets.UTF_8)),
+                        kind,
+                        position,
+                        table.getType(column).toString()});
+            }
+        }
+        return rows;
+    }
+
+    private List<Object[]> traceSessionRows() {
+        synchronized (traceSessions) {
+            return new ArrayList<>(traceSessions.values());
+        }
+    }
+
+    private List<Object[]> traceEventRows() {
+
+        List<Object[]> rows = new ArrayList<>();
+        synchronized (traceSessions) {
+            for (List<Object[]> events : traceEvents.values()) {
+                rows.addAll(events);
+            }
+        }
+        return rows;
+    }
+
+    private void define(String pKeyspace, String pName, Supplier<List<Object[]>> pRows, Object... pColumns) {
+
+        Table table = new Table(pRows);
+        for (int i = 0; i < pColumns.length; i += 2) {
+            table.columns.add((String) pColumns[i]);
+            table.types.add((DataType) pColumns[i + 1]);
+        }
+        tables.put(pKeyspace + "." + pName, table);
+    }
+
+    private List<Relation> parseWhere(Table pTable, String pWhere, List<ByteBuffer> pValues) {
+
+        List<Relation> relations = new ArrayList<>();
+        if (pWhere == null) {
+            return relations;
+        }
+
+        int nextValue = 0;
+        for (String part : AND.split(pWhere.trim())) {
+            Matcher relation = RELATION.matcher(part.trim());
+            if (!relation.matches()) {
+                throw new IllegalArgumentException("Only equality relations on system tables are simulated: " + part);
+            }
+
+            int column = pTable.indexOf(relation.group(1));
+            TypeCodec<Object> codec = codecRegistry.codecFor(pTable.types.get(column));
+            String operand = relation.group(2);
+
+            Object value;
+            if (operand.equals("?")) {
+                if (nextValue >= pValues.size()) {
+                    throw new IllegalArgumentException("Missing value for bind marker " + (nextValue + 1));
+                }
+                value = codec.deserialize(pValues.get(nextValue++), protocolVersion);
+            }
+            else {
+                value = codec.parse(operand);
+            }
+            relations.add(new Relation(column, value));
+        }
+        return relations;
+    }
+
+    private ByteBuffer serialize(DataType pType, Object pValue) {
+        return (pValue == null) ? null : codecRegistry.codecFor(pType).serialize(pValue, protocolVersion);
+    }
+
+    /*
+    Rows read from a system table, serialized.  pKeyspace and pTable are the table's name.
+     */
+    static final class Result {
+
+        final String keyspace;
+        final String table;
+        final List<String> columnNames;
+        final List<DataType> columnTypes;
+        final List<List<ByteBuffer>> rows;
+
+        Result(String pKeyspace, String pTable, List<String> pColumnNames, List<DataType> pColumnTypes,
+               List<List<ByteBuffer>> pRows) {
+            keyspace = pKeyspace;
+            table = pTable;
+            columnNames = pColumnNames;
+            columnTypes = pColumnTypes;
+            rows = pRows;
+        }
+    }
+
+    private static final class Table {
+
+        final List<String> columns = new ArrayList<>();
+        final List<DataType> types = new ArrayList<>();
+        final Supplier<List<Object[]>> rows;
+
+        Table(Supplier<List<Object[]>> pRows) {
+            rows = pRows;
+        }
+
+        int indexOf(String pColumn) {
+
+            int index = columns.indexOf(pColumn.toLowerCase(Locale.ROOT));
+            if (index < 0) {
+                throw new IllegalArgumentException("Undefined column name " + pColumn);
+            }
+            return index;
+        }
+    }
+
+    private static final class Relation {
+
+        final int column;
+        final Object value;
+
+        Relation(int pColumn, Object pValue) {
+            column = pColumn;
+            value = pValue;
+        }
+
+        boolean matches(Object[] pRow) {
+            return value.equals(pRow[column]);
+        }
+    }
+}
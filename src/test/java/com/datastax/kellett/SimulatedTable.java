@@ -0,0 +1,550 @@
+package com.datastax.kellett;
+
+/*
+SimulatedTable is one table known to a SimulatedSession: its schema, built from the same CREATE TABLE statement the
+labs send to a real cluster, and its rows.
+
+Rows are kept the way Cassandra keeps them.  Partitions are sorted by the Murmur3 token of their partition key, so a
+full scan (or a token range scan) visits them in the same order as against a real cluster.  Within a partition, rows
+are sorted by their clustering columns, honouring WITH CLUSTERING ORDER BY.  Every value is kept serialized, exactly
+as it arrived in the request, so a write followed by a read round-trips through the same codecs as it would over the
+wire.
+
+Only the column types the labs use (and the other simple types) are understood; collections, UDTs, static columns
+and table options other than the clustering order are not.
+*/
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.SimulatedDriverAccess;
+import com.datastax.driver.core.TypeCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SimulatedTable {
+
+    private static final Pattern CREATE_TABLE = Pattern.compile(
+            "\\s*CREATE\\s+TABLE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)\\.(\\w+)\\s*\\(.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern PRIMARY_KEY = Pattern.compile(
+            "PRIMARY\\s+KEY\\s*\\((.*)\\)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern CLUSTERING_ORDER = Pattern.compile(
+            "CLUSTERING\\s+ORDER\\s+BY\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+    private static final Map<String, DataType> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("ascii", DataType.ascii());
+        TYPES.put("bigint", DataType.bigint());
+        TYPES.put("blob", DataType.blob());
+        TYPES.put("boolean", DataType.cboolean());
+        TYPES.put("date", DataType.date());
+        TYPES.put("decimal", DataType.decimal());
+        TYPES.put("double", DataType.cdouble());
+        TYPES.put("float", DataType.cfloat());
+        TYPES.put("inet", DataType.inet());
+        TYPES.put("int", DataType.cint());
+        TYPES.put("smallint", DataType.smallint());
+        TYPES.put("text", DataType.text());
+        TYPES.put("timestamp", DataType.timestamp());
+        TYPES.put("timeuuid", DataType.timeuuid());
+        TYPES.put("tinyint", DataType.tinyint());
+        TYPES.put("uuid", DataType.uuid());
+        TYPES.put("varchar", DataType.varchar());
+        TYPES.put("varint", DataType.varint());
+    }
+
+    private final String keyspace;
+    private final String name;
+    private final List<String> columnNames = new ArrayList<>();
+    private final List<DataType> columnTypes = new ArrayList<>();
+    private final List<String> partitionKey = new ArrayList<>();
+    private final List<String> clusteringColumns = new ArrayList<>();
+    private final List<Boolean> clusteringDescending = new ArrayList<>();
+
+    // Set once the CREATE TABLE statement has been parsed
+    private int[] partitionKeyIndexes;
+    private int[] clusteringIndexes;
+    private Comparator<ByteBuffer[]> clusteringOrder;
+
+    private final ConcurrentSkipListMap<PartitionKey, ConcurrentNavigableMap<ByteBuffer[], ByteBuffer[]>> partitions =
+            new ConcurrentSkipListMap<>();
+
+    private SimulatedTable(String pKeyspace, String pName) {
+        keyspace = pKeyspace;
+        name = pName;
+    }
+
+    /*
+    Returns null if pQuery is not a CREATE TABLE statement.
+     */
+    public static SimulatedTable parse(String pQuery) {
+
+        Matcher createTable = CREATE_TABLE.matcher(pQuery);
+        if (!createTable.matches()) {
+            return null;
+        }
+
+        SimulatedTable table = new SimulatedTable(
+                createTable.group(1).toLowerCase(Locale.ROOT), createTable.group(2).toLowerCase(Locale.ROOT));
+
+        // The column definitions run to the parenthesis matching the one after the table name
+        int open = pQuery.indexOf('(', createTable.end(2));
+        int close = closingParenthesis(pQuery, open);
+        String options = pQuery.substring(close + 1);
+
+        for (String definition : splitTopLevel(pQuery.substring(open + 1, close))) {
+
+            Matcher primaryKey = PRIMARY_KEY.matcher(definition);
+            if (definition.toUpperCase(Locale.ROOT).startsWith("PRIMARY") && primaryKey.matches()) {
+                table.setPrimaryKey(primaryKey.group(1));
+                continue;
+            }
+
+            String[] words = definition.split("\\s+");
+            if (words.length < 2) {
+                throw new IllegalArgumentException("Cannot parse column definition: " + definition);
+            }
+
+            String column = words[0].toLowerCase(Locale.ROOT);
+            DataType type = TYPES.get(words[1].toLowerCase(Locale.ROOT));
+            if (type == null) {
+                throw new IllegalArgumentException("Unsupported column type: " + words[1]);
+            }
+            table.columnNames.add(column);
+            table.columnTypes.add(type);
+
+            // "acct_no int PRIMARY KEY"
+            if (words.length >= 4 && words[2].equalsIgnoreCase("PRIMARY")) {
+                table.partitionKey.add(column);
+            }
+        }
+
+        if (table.partitionKey.isEmpty()) {
+            throw new IllegalArgumentException("Table " + table.getQualifiedName() + " has no primary key");
+        }
+
+        // "WITH CLUSTERING ORDER BY (income_tier DESC, acct_no ASC)"
+        Matcher clusteringOrder = CLUSTERING_ORDER.matcher(options);
+        if (clusteringOrder.find()) {
+            for (String ordering : splitTopLevel(clusteringOrder.group(1))) {
+                String[] words = ordering.split("\\s+");
+                int clustering = table.clusteringColumns.indexOf(words[0].toLowerCase(Locale.ROOT));
+                if (clustering < 0) {
+                    throw new IllegalArgumentException("Only clustering columns can be ordered: " + words[0]);
+                }
+                table.clusteringDescending.set(clustering, words.length > 1 && words[1].equalsIgnoreCase("DESC"));
+            }
+        }
+
+        table.resolveKeys();
+        return table;
+    }
+
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQualifiedName() {
+        return keyspace + "." + name;
+    }
+
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(columnNames);
+    }
+
+    public List<DataType> getColumnTypes() {
+        return Collections.unmodifiableList(columnTypes);
+    }
+
+    public List<String> getPartitionKey() {
+        return Collections.unmodifiableList(partitionKey);
+    }
+
+    public List<String> getClusteringColumns() {
+        return Collections.unmodifiableList(clusteringColumns);
+    }
+
+    /*
+    True if the i'th clustering column is stored in descending order.
+     */
+    public boolean isDescending(int pClustering) {
+        return clusteringDescending.get(pClustering);
+    }
+
+    /*
+    The position of pColumn in the table definition, or -1.
+     */
+    public int indexOf(String pColumn) {
+        return columnNames.indexOf(pColumn.toLowerCase(Locale.ROOT));
+    }
+
+    public DataType getType(String pColumn) {
+
+        int index = indexOf(pColumn);
+        if (index < 0) {
+            throw new IllegalArgumentException("Undefined column name " + pColumn + " in table " + getQualifiedName());
+        }
+        return columnTypes.get(index);
+    }
+
+    /*
+    The number of rows held, counted partition by partition, so only approximate while writes are in progress.
+     */
+    public long getRowCount() {
+
+        long rows = 0;
+        for (Map<ByteBuffer[], ByteBuffer[]> partition : partitions.values()) {
+            rows += partition.size();
+        }
+        return rows;
+    }
+
+    int[] getPartitionKeyIndexes() {
+        return partitionKeyIndexes;
+    }
+
+    int[] getClusteringIndexes() {
+        return clusteringIndexes;
+    }
+
+    /*
+    The partitions in token order, each mapping the clustering key of a row to all of the row's values (null for a
+    column that has no value), indexed as in the table definition.
+     */
+    ConcurrentNavigableMap<PartitionKey, ConcurrentNavigableMap<ByteBuffer[], ByteBuffer[]>> getPartitions() {
+        return partitions;
+    }
+
+    /*
+    The partition key of a row, made from the partition key values in pRow.
+     */
+    PartitionKey partitionKeyOf(ByteBuffer[] pRow) {
+
+        ByteBuffer[] components = new ByteBuffer[partitionKeyIndexes.length];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = pRow[partitionKeyIndexes[i]];
+        }
+        return new PartitionKey(components);
+    }
+
+    ByteBuffer[] clusteringKeyOf(ByteBuffer[] pRow) {
+
+        ByteBuffer[] clustering = new ByteBuffer[clusteringIndexes.length];
+        for (int i = 0; i < clustering.length; i++) {
+            clustering[i] = pRow[clusteringIndexes[i]];
+        }
+        return clustering;
+    }
+
+    /*
+    Upserts the columns of pRow that pSet marks as written; a written null deletes that column's value.
+    With pIfNotExists, nothing is written if the row already exists; with pIfExists, nothing is written unless
+    it does.  Returns whether the write was applied.
+     */
+    boolean write(ByteBuffer[] pRow, boolean[] pSet, boolean pIfNotExists, boolean pIfExists) {
+
+        for (int index : partitionKeyIndexes) {
+            checkKeyPart(pRow, index);
+        }
+        for (int index : clusteringIndexes) {
+            checkKeyPart(pRow, index);
+        }
+
+        ConcurrentNavigableMap<ByteBuffer[], ByteBuffer[]> partition;
+        PartitionKey key = partitionKeyOf(pRow);
+        if (pIfExists) {
+            partition = partitions.get(key);
+            if (partition == null) {
+                return false;
+            }
+        }
+        else {
+            partition = partitions.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>(clusteringOrder));
+        }
+
+        // compute() may call the function more than once, so the flag is set on every call
+        boolean[] applied = new boolean[1];
+        partition.compute(clusteringKeyOf(pRow), (clustering, existing) -> {
+
+            applied[0] = (existing == null) ? !pIfExists : !pIfNotExists;
+            if (!applied[0]) {
+                return existing;
+            }
+
+            ByteBuffer[] merged = (existing == null) ? new ByteBuffer[columnNames.size()] : existing.clone();
+            for (int i = 0; i < merged.length; i++) {
+                if (pSet[i]) {
+                    merged[i] = pRow[i];
+                }
+            }
+            return merged;
+        });
+        return applied[0];
+    }
+
+    void truncate() {
+        partitions.clear();
+    }
+
+    /*
+    Compares two serialized values of pColumn the way Cassandra orders them.  A null sorts first.
+     */
+    int compare(int pColumn, ByteBuffer pLeft, ByteBuffer pRight) {
+        return compareValues(columnTypes.get(pColumn), pLeft, pRight);
+    }
+
+    static int compareValues(DataType pType, ByteBuffer pLeft, ByteBuffer pRight) {
+
+        if (pLeft == null || pRight == null) {
+            return (pLeft == null) ? ((pRight == null) ? 0 : -1) : 1;
+        }
+
+        switch (pType.getName()) {
+
+            // These sort by their bytes, unsigned
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+            case BLOB:
+            case BOOLEAN:
+            case DATE:
+            case TIME:
+            case INET:
+                return compareUnsigned(pLeft, pRight);
+
+            case TIMEUUID:
+                UUID left = (UUID) deserialize(pType, pLeft);
+                UUID right = (UUID) deserialize(pType, pRight);
+                int byTime = Long.compare(left.timestamp(), right.timestamp());
+                return (byTime != 0) ? byTime : compareUnsigned(pLeft, pRight);
+
+            // The numeric types, timestamp and uuid deserialize to Comparable values
+            default:
+                @SuppressWarnings("unchecked")
+                Comparable<Object> leftValue = (Comparable<Object>) deserialize(pType, pLeft);
+                return leftValue.compareTo(deserialize(pType, pRight));
+        }
+    }
+
+    static int compareUnsigned(ByteBuffer pLeft, ByteBuffer pRight) {
+
+        int length = Math.min(pLeft.remaining(), pRight.remaining());
+        for (int i = 0; i < length; i++) {
+            int byCurrentByte = Integer.compare(
+                    pLeft.get(pLeft.position() + i) & 0xff, pRight.get(pRight.position() + i) & 0xff);
+            if (byCurrentByte != 0) {
+                return byCurrentByte;
+            }
+        }
+        return Integer.compare(pLeft.remaining(), pRight.remaining());
+    }
+
+    private static Object deserialize(DataType pType, ByteBuffer pValue) {
+        TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(pType);
+        return codec.deserialize(pValue.duplicate(), ProtocolVersion.V4);
+    }
+
+    private void checkKeyPart(ByteBuffer[] pRow, int pIndex) {
+        if (pRow[pIndex] == null) {
+            throw new IllegalArgumentException("Invalid null value in condition for column " + columnNames.get(pIndex));
+        }
+    }
+
+    // "(country, membership_tier), income_tier, acct_no" or "tier, acct_no"
+    private void setPrimaryKey(String pKey) {
+
+        List<String> parts = splitTopLevel(pKey);
+        String first = parts.get(0);
+
+        if (first.startsWith("(")) {
+            for (String column : splitTopLevel(first.substring(1, first.length() - 1))) {
+                partitionKey.add(column.toLowerCase(Locale.ROOT));
+            }
+        }
+        else {
+            partitionKey.add(first.toLowerCase(Locale.ROOT));
+        }
+
+        for (String column : parts.subList(1, parts.size())) {
+            clusteringColumns.add(column.toLowerCase(Locale.ROOT));
+            clusteringDescending.add(false);
+        }
+    }
+
+    private void resolveKeys() {
+
+        partitionKeyIndexes = new int[partitionKey.size()];
+        for (int i = 0; i < partitionKeyIndexes.length; i++) {
+            partitionKeyIndexes[i] = columnIndexOf(partitionKey.get(i));
+        }
+
+        clusteringIndexes = new int[clusteringColumns.size()];
+        for (int i = 0; i < clusteringIndexes.length; i++) {
+            clusteringIndexes[i] = columnIndexOf(clusteringColumns.get(i));
+        }
+
+        clusteringOrder = (left, right) -> {
+            for (int i = 0; i < clusteringIndexes.length; i++) {
+                int byColumn = compare(clusteringIndexes[i], left[i], right[i]);
+                if (byColumn != 0) {
+                    return clusteringDescending.get(i) ? -byColumn : byColumn;
+                }
+            }
+            return 0;
+        };
+    }
+
+    private int columnIndexOf(String pKeyColumn) {
+
+        int index = indexOf(pKeyColumn);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown definition " + pKeyColumn + " referenced in PRIMARY KEY");
+        }
+        return index;
+    }
+
+    private static int closingParenthesis(String pText, int pOpen) {
+
+        int depth = 0;
+        for (int i = pOpen; i < pText.length(); i++) {
+            if (pText.charAt(i) == '(') {
+                depth++;
+            }
+            else if (pText.charAt(i) == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unbalanced parentheses in: " + pText);
+    }
+
+    // Split on commas that are not inside parentheses, trimming each part
+    static List<String> splitTopLevel(String pList) {
+
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+
+        for (int i = 0; i < pList.length(); i++) {
+            char c = pList.charAt(i);
+            if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth--;
+            }
+            else if (c == ',' && depth == 0) {
+                parts.add(pList.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+
+        String last = pList.substring(start).trim();
+        if (!last.isEmpty()) {
+            parts.add(last);
+        }
+        return parts;
+    }
+
+    /*
+    A partition key, ordered as Cassandra orders partitions: by the Murmur3 token of its routing key, then by the
+    routing key itself for the rare keys whose tokens collide.
+     */
+    static final class PartitionKey implements Comparable<PartitionKey> {
+
+        private final long token;
+        private final ByteBuffer routingKey;
+        private final ByteBuffer[] components;
+
+        PartitionKey(ByteBuffer[] pComponents) {
+            components = pComponents;
+            routingKey = routingKey(pComponents);
+            token = SimulatedDriverAccess.murmur3Token(routingKey);
+        }
+
+        private PartitionKey(long pToken) {
+            token = pToken;
+            routingKey = null;
+            components = null;
+        }
+
+        /*
+        Sorts before every partition key whose token is pToken.
+         */
+        static PartitionKey lowest(long pToken) {
+            return new PartitionKey(pToken);
+        }
+
+        long getToken() {
+            return token;
+        }
+
+        ByteBuffer[] getComponents() {
+            return components;
+        }
+
+        @Override
+        public int compareTo(PartitionKey pOther) {
+
+            int byToken = Long.compare(token, pOther.token);
+            if (byToken != 0 || routingKey == pOther.routingKey) {
+                return byToken;
+            }
+            if (routingKey == null || pOther.routingKey == null) {
+                return (routingKey == null) ? -1 : 1;
+            }
+            return compareUnsigned(routingKey, pOther.routingKey);
+        }
+
+        @Override
+        public boolean equals(Object pOther) {
+            return pOther instanceof PartitionKey && compareTo((PartitionKey) pOther) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(token);
+        }
+
+        // As the driver builds it: the value itself, or for a composite key each value as <length><value><0>
+        private static ByteBuffer routingKey(ByteBuffer[] pComponents) {
+
+            if (pComponents.length == 1) {
+                return pComponents[0].duplicate();
+            }
+
+            int size = 0;
+            for (ByteBuffer component : pComponents) {
+                size += 2 + component.remaining() + 1;
+            }
+
+            ByteBuffer routingKey = ByteBuffer.allocate(size);
+            for (ByteBuffer component : pComponents) {
+                routingKey.putShort((short) component.remaining());
+                routingKey.put(component.duplicate());
+                routingKey.put((byte) 0);
+            }
+            routingKey.flip();
+            return routingKey;
+        }
+    }
+}
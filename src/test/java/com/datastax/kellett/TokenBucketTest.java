@@ -0,0 +1,68 @@
+package com.datastax.kellett;
+
+/*
+Tests of TokenBucket's rate, burst allowance and unlimited mode.
+*/
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucketTest extends TestCase {
+
+    public void testUnlimitedNeverWaits() {
+
+        TokenBucket bucket = new TokenBucket(0, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, bucket.acquire(1000));
+        }
+        assertEquals(0, bucket.getThrottledRequests());
+    }
+
+    public void testBurstIsFreeAfterIdling() throws InterruptedException {
+
+        // 100 permits a second with a one second burst: an idle bucket allows 100 at once
+        TokenBucket bucket = new TokenBucket(100, 1);
+        Thread.sleep(1100);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("permit " + i, 0, bucket.acquire(1));
+        }
+        assertEquals(0, bucket.getThrottledRequests());
+    }
+
+    public void testSustainedRateIsEnforced() {
+
+        // 1000 permits a second, no burst: 200 permits take about 200 milliseconds
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            bucket.acquire(1);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 190);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2000);
+        assertTrue(bucket.getThrottledRequests() > 0);
+        assertTrue(bucket.getThrottledNanos() > 0);
+    }
+
+    public void testPermitsCostTheirWeight() {
+
+        // One acquire of 50 permits at 500 a second reserves 100 ms, which the next caller waits for
+        TokenBucket bucket = new TokenBucket(500, 0);
+        bucket.acquire(50);
+        long waited = bucket.acquire(1);
+
+        assertTrue("waited " + waited + " ns", waited >= TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    public void testRateChangeTakesEffect() {
+
+        TokenBucket bucket = new TokenBucket(10, 0);
+        bucket.setRate(0, 0);
+
+        assertEquals(0.0, bucket.getRate(), 0);
+        assertEquals(0, bucket.acquire(1000));
+    }
+}
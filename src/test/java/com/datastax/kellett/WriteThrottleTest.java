@@ -0,0 +1,63 @@
+package com.datastax.kellett;
+
+/*
+Tests of WriteThrottle with both a global and a table budget: statements wait for both, and a statement held up by
+both is counted as one throttled request.
+*/
+
+import com.datastax.driver.core.PreparedStatement;
+import junit.framework.TestCase;
+
+public class WriteThrottleTest extends TestCase {
+
+    private SimulatedSession session;
+    private PreparedStatement insert;
+
+    @Override
+    protected void setUp() {
+
+        session = new SimulatedSession(0);
+        session.execute("CREATE KEYSPACE test "
+                + "WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 };");
+        session.execute("CREATE TABLE test.accounts ( acct_no int, balance int, PRIMARY KEY (acct_no));");
+        insert = session.prepare("INSERT INTO test.accounts (acct_no, balance) VALUES (?, ?)");
+    }
+
+    @Override
+    protected void tearDown() {
+        session.close();
+    }
+
+    public void testRequestHeldUpByBothBudgetsCountsOnce() {
+
+        // The same rate for both, so that past the burst every statement waits on each bucket
+        WriteThrottle throttle = new WriteThrottle(2000);
+        throttle.setTableRate("test.accounts", 2000);
+
+        int waited = 0;
+        long waitedNanos = 0;
+        for (int i = 0; i < 400; i++) {
+            long wait = throttle.acquire(insert.bind(i, i));
+            if (wait > 0) {
+                waited++;
+                waitedNanos += wait;
+            }
+        }
+
+        assertTrue(waited > 0);
+        assertEquals(waited, throttle.getThrottledRequests());
+        assertEquals(waitedNanos / 1000000, throttle.getThrottledMillis());
+        assertEquals(2000.0, throttle.getTableRate("TEST.ACCOUNTS"));
+    }
+
+    public void testOtherTablesAreSubjectToTheGlobalBudgetOnly() {
+
+        WriteThrottle throttle = new WriteThrottle(0);
+        throttle.setTableRate("test.customers", 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, throttle.acquire(insert.bind(i, i)));
+        }
+        assertEquals(0, throttle.getThrottledRequests());
+    }
+}